@@ -15,6 +15,10 @@ pub struct Config {
     /// What target code should be generated.
     pub targets: BTreeSet<String>,
 
+    /// Options of code generation.
+    #[serde(flatten)]
+    pub options: riko_core::Options,
+
     #[serde(skip)]
     pub cached: ConfigCachedFields,
 }
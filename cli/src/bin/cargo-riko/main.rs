@@ -30,6 +30,7 @@ async fn main() -> anyhow::Result<()> {
             &config.cached.entry,
             &config.cached.output_directory,
             config.targets.iter(),
+            &config.options,
         )
         .await?;
     }
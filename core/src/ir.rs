@@ -21,6 +21,7 @@ use strum_macros::*;
 use syn::AttrStyle;
 use syn::Attribute;
 use syn::FnArg;
+use syn::GenericArgument;
 use syn::Item;
 use syn::ItemFn;
 use syn::ItemMod;
@@ -29,6 +30,8 @@ use syn::Meta;
 use syn::PathArguments;
 use syn::ReturnType;
 use syn::Type;
+use syn::TypeImplTrait;
+use syn::TypeParamBound;
 use syn::TypePath;
 
 /// Resolve the file path to a chile module.
@@ -150,6 +153,12 @@ pub enum MarshalingRule {
     /// this rule.
     Bytes,
 
+    /// [f32].
+    F32,
+
+    /// [f64].
+    F64,
+
     /// [i8].
     I8,
 
@@ -186,6 +195,10 @@ impl MarshalingRule {
             Self::I64
         } else if "i8" == type_path_str {
             Self::I8
+        } else if "f32" == type_path_str {
+            Self::F32
+        } else if "f64" == type_path_str {
+            Self::F64
         } else if type_path_str.trim().is_empty() {
             Self::Unit
         } else if type_path_matches(&["", "std", "string", "String"], &type_path_str) {
@@ -393,12 +406,30 @@ pub(crate) struct Function {
 
     /// Public name exported to the target side.
     pub pubname: String,
+
+    /// If the function is run on a blocking thread pool, see [Fun::blocking].
+    pub blocking: bool,
 }
 
 impl Function {
     /// Parses an [ItemFn].
     fn parse(item: ItemFn, args: Fun) -> syn::Result<Self> {
         let name = item.sig.ident.to_string();
+        let future_hint = item.sig.asyncness.is_some();
+        if args.blocking && future_hint {
+            return Err(syn::Error::new_spanned(
+                item.sig.asyncness,
+                "`blocking` does not apply to async functions",
+            ));
+        }
+
+        let output = Output::parse(&item.sig.output, args.marshal, future_hint || args.blocking)?;
+        if output.stream && (future_hint || args.blocking) {
+            return Err(syn::Error::new_spanned(
+                &item.sig.output,
+                "Streams are only returned by non-async and non-blocking functions",
+            ));
+        }
 
         Ok(Self {
             inputs: item
@@ -413,8 +444,9 @@ impl Function {
                 args.name
             },
             name,
-            output: Output::parse(&item.sig.output, args.marshal, item.sig.asyncness.is_some())?,
+            output,
             cfg: extract_cfg(item.attrs.into_iter()),
+            blocking: args.blocking,
         })
     }
 
@@ -435,6 +467,9 @@ pub(crate) struct Input {
     /// If the parameter accepts a reference.
     pub borrow: bool,
 
+    /// If the actual type is wrapped inside an [Option].
+    pub optional: bool,
+
     /// The actual type wrapped inside a [Result] or an [Option].
     pub unwrapped_type: syn::Path,
 }
@@ -448,6 +483,9 @@ impl Input {
                 } else {
                     (false, crate::util::assert_type_is_path(&*typed.ty)?)
                 };
+                let optional = crate::util::wrapper_names(original_type.clone())
+                    .iter()
+                    .any(|name| name == "Option");
                 let unwrapped_type = crate::util::unwrap_type(original_type);
                 let rule = if let Some(args) = Marshal::take_from(typed.attrs.iter())? {
                     args.value
@@ -458,6 +496,7 @@ impl Input {
                 Ok(Self {
                     rule,
                     borrow,
+                    optional,
                     unwrapped_type,
                 })
             }
@@ -471,8 +510,22 @@ impl Input {
 pub(crate) struct Output {
     pub future: bool,
 
+    /// If the function returns an `impl Stream`, in which case the rest describes its items.
+    ///
+    /// Implies [future](Output::future) as the items are produced by Riko's executor.
+    pub stream: bool,
+
     pub rule: MarshalingRule,
 
+    /// If the actual type is wrapped inside an [Option].
+    pub optional: bool,
+
+    /// If the actual type is wrapped inside a [Result].
+    pub fallible: bool,
+
+    /// The error type of the [Result], unless it is hidden behind an alias.
+    pub error_type: Option<syn::Path>,
+
     /// The actual type wrapped inside a [Result] or an [Option].
     pub unwrapped_type: syn::Path,
 }
@@ -483,14 +536,22 @@ impl Output {
         rule_hint: Option<MarshalingRule>,
         future_hint: bool,
     ) -> syn::Result<Self> {
-        let original_type = match sig {
-            ReturnType::Default => syn::Path {
-                leading_colon: None,
-                segments: Default::default(),
+        let (original_type, stream) = match sig {
+            ReturnType::Default => (
+                syn::Path {
+                    leading_colon: None,
+                    segments: Default::default(),
+                },
+                false,
+            ),
+            ReturnType::Type(_, ty) => match &**ty {
+                Type::ImplTrait(bounds) => (Self::stream_item(bounds)?, true),
+                _ => (crate::util::assert_type_is_path(&*ty)?, false),
             },
-            ReturnType::Type(_, ty) => crate::util::assert_type_is_path(&*ty)?,
         };
         let unwrapped_type = crate::util::unwrap_type(original_type.clone());
+        let wrappers = crate::util::wrapper_names(original_type.clone());
+        let error_type = crate::util::error_type(original_type.clone());
 
         // Marshaling rule
         let rule = if let Some(inner) = rule_hint {
@@ -501,6 +562,7 @@ impl Output {
 
         // future
         let future = future_hint
+            || stream
             || TypeLayerIter::new(original_type)
                 .next()
                 .map_or(false, |mut ty| {
@@ -514,11 +576,42 @@ impl Output {
 
         Ok(Self {
             future,
+            stream,
             rule,
+            optional: wrappers.iter().any(|name| name == "Option"),
+            fallible: wrappers.iter().any(|name| name == "Result"),
+            error_type,
             unwrapped_type,
         })
     }
 
+    /// Finds `T` in `impl Stream<Item = T>`.
+    fn stream_item(src: &TypeImplTrait) -> syn::Result<syn::Path> {
+        src.bounds
+            .iter()
+            .find_map(|bound| match bound {
+                TypeParamBound::Trait(bound) => {
+                    let last = bound.path.segments.last()?;
+                    if last.ident != "Stream" {
+                        return None;
+                    }
+                    match &last.arguments {
+                        PathArguments::AngleBracketed(args) => {
+                            args.args.iter().find_map(|arg| match arg {
+                                GenericArgument::Binding(binding) if binding.ident == "Item" => {
+                                    crate::util::assert_type_is_path(&binding.ty).ok()
+                                }
+                                _ => None,
+                            })
+                        }
+                        _ => None,
+                    }
+                }
+                _ => None,
+            })
+            .ok_or_else(|| syn::Error::new_spanned(src, "Expect `impl Stream<Item = T>`"))
+    }
+
     /// Strips a [Path](syn::Path) of its type parameters.
     ///
     /// For example: `std::option::Option<bool>` becomes `std::option::Option`.
@@ -531,7 +624,7 @@ impl Output {
     /// The type to use in the bridge code as `Returned<#marshaled_type>`.
     pub fn marshaled_type(&self) -> Type {
         if self.future {
-            syn::parse_quote! { ::riko_runtime::Handle }
+            syn::parse_quote! { ::riko_runtime::FutureHandle }
         } else {
             self.returned_type()
         }
@@ -539,9 +632,11 @@ impl Output {
 
     pub fn returned_type(&self) -> Type {
         match self.rule {
-            MarshalingRule::Object => syn::parse_quote! { ::riko_runtime::Handle },
+            MarshalingRule::Object => syn::parse_quote! { ::riko_runtime::ObjectHandle },
             MarshalingRule::Bool => syn::parse_quote! { bool },
             MarshalingRule::Bytes => syn::parse_quote! { ::serde_bytes::ByteBuf },
+            MarshalingRule::F32 => syn::parse_quote! { f32 },
+            MarshalingRule::F64 => syn::parse_quote! { f64 },
             MarshalingRule::I8 => syn::parse_quote! { i8 },
             MarshalingRule::I32 => syn::parse_quote! { i32 },
             MarshalingRule::I64 => syn::parse_quote! { i64 },
@@ -559,7 +654,11 @@ impl Default for Output {
     fn default() -> Self {
         Self {
             future: false,
+            stream: false,
             rule: MarshalingRule::Unit,
+            optional: false,
+            fallible: false,
+            error_type: None,
             unwrapped_type: syn::Path {
                 leading_colon: None,
                 segments: Default::default(),
@@ -637,6 +736,14 @@ mod test {
             MarshalingRule::infer(&syn::parse_quote! { bool }),
             MarshalingRule::Bool
         );
+        assert_eq!(
+            MarshalingRule::infer(&syn::parse_quote! { f32 }),
+            MarshalingRule::F32
+        );
+        assert_eq!(
+            MarshalingRule::infer(&syn::parse_quote! { f64 }),
+            MarshalingRule::F64
+        );
         assert_eq!(
             MarshalingRule::infer(&syn::parse_quote! { crate::Love }),
             MarshalingRule::Struct
@@ -662,21 +769,28 @@ mod test {
                 Input {
                     rule: MarshalingRule::Bool,
                     borrow: false,
+                    optional: false,
                     unwrapped_type: syn::parse_quote! { bool },
                 },
                 Input {
                     rule: MarshalingRule::Bytes,
                     borrow: true,
+                    optional: false,
                     unwrapped_type: syn::parse_quote! { String },
                 },
             ],
             output: Output {
                 future: false,
+                stream: false,
                 rule: MarshalingRule::I32,
+                optional: false,
+                fallible: false,
+                error_type: None,
                 unwrapped_type: syn::parse_quote! { Vec<u8> },
             },
             pubname: "function2".into(),
             cfg: Default::default(),
+            blocking: false,
         };
         let actual = Function::parse(function, args).unwrap();
         assert_eq!(expected, actual);
@@ -688,6 +802,7 @@ mod test {
             Input {
                 rule: MarshalingRule::String,
                 borrow: false,
+                optional: false,
                 unwrapped_type: syn::parse_quote! { String },
             },
             Input::parse(&syn::parse_quote! { a: String }).unwrap(),
@@ -696,6 +811,7 @@ mod test {
             Input {
                 rule: MarshalingRule::String,
                 borrow: false,
+                optional: false,
                 unwrapped_type: syn::parse_quote! { usize },
             },
             Input::parse(&syn::parse_quote! { #[riko::marshal = "String"] b: usize }).unwrap(),
@@ -704,6 +820,7 @@ mod test {
             Input {
                 rule: MarshalingRule::Bytes,
                 borrow: true,
+                optional: false,
                 unwrapped_type: syn::parse_quote! { ByteBuf },
             },
             Input::parse(&syn::parse_quote! { c: &ByteBuf }).unwrap(),
@@ -712,6 +829,7 @@ mod test {
             Input {
                 rule: MarshalingRule::I32,
                 borrow: true,
+                optional: false,
                 unwrapped_type: syn::parse_quote! { Vec<u8> },
             },
             Input::parse(&syn::parse_quote! { #[riko::marshal = "I32"] d: &Vec<u8> }).unwrap(),
@@ -720,10 +838,20 @@ mod test {
             Input {
                 rule: MarshalingRule::String,
                 borrow: false,
+                optional: false,
                 unwrapped_type: syn::parse_quote! { String },
             },
             Input::parse(&syn::parse_quote! { a: String }).unwrap(),
         );
+        assert_eq!(
+            Input {
+                rule: MarshalingRule::F64,
+                borrow: false,
+                optional: true,
+                unwrapped_type: syn::parse_quote! { f64 },
+            },
+            Input::parse(&syn::parse_quote! { e: Option<f64> }).unwrap(),
+        );
     }
 
     #[test]
@@ -731,7 +859,11 @@ mod test {
         assert_eq!(
             Output {
                 future: false,
+                stream: false,
                 rule: MarshalingRule::Bool,
+                optional: false,
+                fallible: false,
+                error_type: None,
                 unwrapped_type: syn::parse_quote! { bool },
             },
             Output::parse(&syn::parse_quote! { -> bool }, None, false).unwrap(),
@@ -741,17 +873,44 @@ mod test {
         assert_eq!(
             Output {
                 future: true,
+                stream: false,
                 rule: MarshalingRule::Bool,
+                optional: false,
+                fallible: false,
+                error_type: None,
                 unwrapped_type: syn::parse_quote! { bool },
             },
             Output::parse(&syn::parse_quote! { -> Future<Output = bool> }, None, false).unwrap(),
         );
 
+        // Stream
+        assert_eq!(
+            Output {
+                future: true,
+                stream: true,
+                rule: MarshalingRule::Bool,
+                optional: false,
+                fallible: true,
+                error_type: Some(syn::parse_quote! { Error }),
+                unwrapped_type: syn::parse_quote! { bool },
+            },
+            Output::parse(
+                &syn::parse_quote! { -> impl Stream<Item = Result<bool, Error>> + Send },
+                None,
+                false
+            )
+            .unwrap(),
+        );
+
         // Force future
         assert_eq!(
             Output {
                 future: true,
+                stream: false,
                 rule: MarshalingRule::Bool,
+                optional: false,
+                fallible: false,
+                error_type: None,
                 unwrapped_type: syn::parse_quote! { bool },
             },
             Output::parse(&syn::parse_quote! { -> bool }, None, true).unwrap(),
@@ -761,7 +920,11 @@ mod test {
         assert_eq!(
             Output {
                 future: false,
+                stream: false,
                 rule: MarshalingRule::I32,
+                optional: false,
+                fallible: false,
+                error_type: None,
                 unwrapped_type: syn::parse_quote! { bool },
             },
             Output::parse(
@@ -775,7 +938,11 @@ mod test {
         assert_eq!(
             Output {
                 future: false,
+                stream: false,
                 rule: MarshalingRule::I32,
+                optional: true,
+                fallible: true,
+                error_type: Some(syn::parse_quote! { Error }),
                 unwrapped_type: syn::parse_quote! { bool },
             },
             Output::parse(
@@ -20,21 +20,28 @@ pub(crate) fn simple_function() -> Crate {
             functions: vec![Function {
                 name: "function".into(),
                 pubname: "function".into(),
+                blocking: false,
                 inputs: vec![
                     Input {
                         rule: MarshalingRule::I32,
                         borrow: true,
+                        optional: false,
                         unwrapped_type: syn::parse_quote! { i32 },
                     },
                     Input {
                         rule: MarshalingRule::I64,
                         borrow: false,
+                        optional: false,
                         unwrapped_type: syn::parse_quote! { i64 },
                     },
                 ],
                 output: Output {
                     future: false,
+                    stream: false,
                     rule: MarshalingRule::String,
+                    optional: false,
+                    fallible: false,
+                    error_type: None,
                     unwrapped_type: syn::parse_quote! { String },
                 },
                 cfg: Default::default(),
@@ -52,10 +59,15 @@ pub(crate) fn returning_object() -> Crate {
             functions: vec![Function {
                 name: "function".into(),
                 pubname: "function".into(),
+                blocking: false,
                 inputs: vec![],
                 output: Output {
                     future: false,
+                    stream: false,
                     rule: MarshalingRule::Object,
+                    optional: false,
+                    fallible: false,
+                    error_type: None,
                     unwrapped_type: syn::parse_quote! { crate::Love },
                 },
                 cfg: vec![],
@@ -73,10 +85,15 @@ pub(crate) fn function_with_nothing() -> Crate {
             functions: vec![Function {
                 name: "function".into(),
                 pubname: "function".into(),
+                blocking: false,
                 inputs: vec![],
                 output: Output {
                     future: false,
+                    stream: false,
                     rule: MarshalingRule::Unit,
+                    optional: false,
+                    fallible: false,
+                    error_type: None,
                     unwrapped_type: syn::Path {
                         leading_colon: None,
                         segments: Default::default(),
@@ -98,10 +115,15 @@ pub(crate) fn function_async() -> Crate {
             functions: vec![Function {
                 name: "function".into(),
                 pubname: "function".into(),
+                blocking: false,
                 inputs: vec![],
                 output: Output {
                     future: true,
+                    stream: false,
                     rule: MarshalingRule::String,
+                    optional: false,
+                    fallible: true,
+                    error_type: None,
                     unwrapped_type: syn::parse_quote! { String },
                 },
                 cfg: vec![],
@@ -111,3 +133,164 @@ pub(crate) fn function_async() -> Crate {
         }],
     }
 }
+
+/// `#[riko::fun(blocking)] riko_sample::example::function(&String, i32) -> String`
+pub(crate) fn blocking_function() -> Crate {
+    Crate {
+        name: "riko_sample".into(),
+        modules: vec![Module {
+            functions: vec![Function {
+                name: "function".into(),
+                pubname: "function".into(),
+                blocking: true,
+                inputs: vec![
+                    Input {
+                        rule: MarshalingRule::String,
+                        borrow: true,
+                        optional: false,
+                        unwrapped_type: syn::parse_quote! { String },
+                    },
+                    Input {
+                        rule: MarshalingRule::I32,
+                        borrow: false,
+                        optional: false,
+                        unwrapped_type: syn::parse_quote! { i32 },
+                    },
+                ],
+                output: Output {
+                    future: true,
+                    stream: false,
+                    rule: MarshalingRule::String,
+                    optional: false,
+                    fallible: false,
+                    error_type: None,
+                    unwrapped_type: syn::parse_quote! { String },
+                },
+                cfg: vec![],
+            }],
+            path: vec!["example".into()],
+            cfg: vec![],
+        }],
+    }
+}
+
+/// `riko_sample::example::function() -> impl Stream<Item = String>`
+pub(crate) fn stream_function() -> Crate {
+    Crate {
+        name: "riko_sample".into(),
+        modules: vec![Module {
+            functions: vec![Function {
+                name: "function".into(),
+                pubname: "function".into(),
+                blocking: false,
+                inputs: vec![],
+                output: Output {
+                    future: true,
+                    stream: true,
+                    rule: MarshalingRule::String,
+                    optional: false,
+                    fallible: false,
+                    error_type: None,
+                    unwrapped_type: syn::parse_quote! { String },
+                },
+                cfg: vec![],
+            }],
+            path: vec!["example".into()],
+            cfg: vec![],
+        }],
+    }
+}
+
+/// `riko_sample::example::function(i32, Option<bool>) -> Option<i32>`
+pub(crate) fn primitive_function() -> Crate {
+    Crate {
+        name: "riko_sample".into(),
+        modules: vec![Module {
+            functions: vec![Function {
+                name: "function".into(),
+                pubname: "function".into(),
+                blocking: false,
+                inputs: vec![
+                    Input {
+                        rule: MarshalingRule::I32,
+                        borrow: false,
+                        optional: false,
+                        unwrapped_type: syn::parse_quote! { i32 },
+                    },
+                    Input {
+                        rule: MarshalingRule::Bool,
+                        borrow: false,
+                        optional: true,
+                        unwrapped_type: syn::parse_quote! { bool },
+                    },
+                ],
+                output: Output {
+                    future: false,
+                    stream: false,
+                    rule: MarshalingRule::I32,
+                    optional: true,
+                    fallible: false,
+                    error_type: None,
+                    unwrapped_type: syn::parse_quote! { i32 },
+                },
+                cfg: vec![],
+            }],
+            path: vec!["example".into()],
+            cfg: vec![],
+        }],
+    }
+}
+
+/// `riko_sample::example::function() -> crate::Love` where `Love` is a struct.
+pub(crate) fn returning_struct() -> Crate {
+    Crate {
+        name: "riko_sample".into(),
+        modules: vec![Module {
+            functions: vec![Function {
+                name: "function".into(),
+                pubname: "function".into(),
+                blocking: false,
+                inputs: vec![],
+                output: Output {
+                    future: false,
+                    stream: false,
+                    rule: MarshalingRule::Struct,
+                    optional: false,
+                    fallible: false,
+                    error_type: None,
+                    unwrapped_type: syn::parse_quote! { crate::Love },
+                },
+                cfg: vec![],
+            }],
+            path: vec!["example".into()],
+            cfg: vec![],
+        }],
+    }
+}
+
+/// `riko_sample::example::function() -> Result<i32, std::io::Error>`
+pub(crate) fn fallible_function() -> Crate {
+    Crate {
+        name: "riko_sample".into(),
+        modules: vec![Module {
+            functions: vec![Function {
+                name: "function".into(),
+                pubname: "function".into(),
+                blocking: false,
+                inputs: vec![],
+                output: Output {
+                    future: false,
+                    stream: false,
+                    rule: MarshalingRule::I32,
+                    optional: false,
+                    fallible: true,
+                    error_type: Some(syn::parse_quote! { std::io::Error }),
+                    unwrapped_type: syn::parse_quote! { i32 },
+                },
+                cfg: vec![],
+            }],
+            path: vec!["example".into()],
+            cfg: vec![],
+        }],
+    }
+}
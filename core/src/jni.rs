@@ -9,15 +9,24 @@
 //! ## Java
 //!
 //! * `riko-runtime-jni`
+//!
+//! # Options
+//!
+//! The generated code can be tuned in `[package.metadata.riko.jni]`, see [JniOptions].
 
 use crate::ir::Crate;
 use crate::ir::Function;
+use crate::ir::Input;
 use crate::ir::MarshalingRule;
 use crate::ir::Module;
+use crate::ir::Output;
+use crate::Error;
 use crate::TargetCodeWriter;
 use itertools::Itertools;
 use proc_macro2::TokenStream;
 use quote::quote;
+use quote::ToTokens;
+use serde::Deserialize;
 use std::collections::HashMap;
 use std::path::PathBuf;
 use syn::Ident;
@@ -28,91 +37,904 @@ const PREFIX_FOR_NATIVE: &str = "__riko_";
 const NULLABLE_ATTRIBUTE: &str = "org.checkerframework.checker.nullness.qual.Nullable";
 const NONNULL_ATTRIBUTE: &str = "org.checkerframework.checker.nullness.qual.NonNull";
 
+/// Options for the JNI target.
+///
+/// All options are off by default, in which case every value is marshaled as BSON.
+#[derive(Deserialize, Default, Debug, Clone, PartialEq)]
+#[serde(default)]
+pub struct JniOptions {
+    /// Passes values of primitive marshaling rules as JNI primitives instead of BSON.
+    ///
+    /// Applies to [Bool](MarshalingRule::Bool), [I8](MarshalingRule::I8),
+    /// [I32](MarshalingRule::I32), [I64](MarshalingRule::I64), [F32](MarshalingRule::F32) and
+    /// [F64](MarshalingRule::F64). The Java side then uses primitive types (or their wrapper
+    /// classes when wrapped inside an [Option]) instead of `BsonValue`.
+    ///
+    /// A returned value inside a [Result] or a `Future` is still marshaled as BSON, so is an
+    /// `Option<i64>` or an `Option<f64>` because it does not fit in a `long` with its presence.
+    ///
+    /// Type aliases are not supported by this option, the Rust types must be the actual primitive
+    /// types.
+    pub primitives: bool,
+
+    /// Passes BSON arguments and results through a thread-local direct `ByteBuffer` instead of
+    /// `byte[]`s.
+    ///
+    /// The arguments are written as consecutive documents at the start of the buffer, the Rust side
+    /// reads them from the memory of the buffer and then writes the result back into it. This saves
+    /// copying the data into and out of Java arrays on both sides.
+    pub direct_buffer: bool,
+
+    /// Returns a [Struct](MarshalingRule::Struct) as a `org.bson.RawBsonDocument` viewing the
+    /// returned bytes instead of a fully parsed `org.bson.BsonDocument`.
+    ///
+    /// The fields are only parsed when they are accessed, which is cheaper when a large result is
+    /// only read partially. The envelope is checked by scanning its type tags, so an error still
+    /// throws right away.
+    pub lazy_structs: bool,
+
+    /// Throws errors as `riko.ReturnedException` from the native code and returns only the value.
+    ///
+    /// Without this option, every result is wrapped in a `riko_runtime::returned::Returned`
+    /// marshaled as BSON and unwrapped on the target side. With this option, a function returning
+    /// [Unit](MarshalingRule::Unit) marshals nothing, and a primitive inside a [Result] can be
+    /// passed as a JNI primitive with [primitives](JniOptions::primitives).
+    ///
+    /// Results of async functions are still wrapped.
+    pub native_exceptions: bool,
+
+    /// Throws each error type as its own stackless subclass of `riko.ReturnedException` carrying
+    /// a numeric code, implies [native_exceptions](JniOptions::native_exceptions).
+    ///
+    /// The subclasses are nested in the `Module` class declaring the function, and the code is a
+    /// hash of the error type as written in the function signature. The error stays on the Rust
+    /// side until its message or its debug info is asked for, so throwing it formats nothing. It is
+    /// dropped once described, or once its exception is garbage collected.
+    ///
+    /// Applies only when the error type is spelled out in a [Result], and not to
+    /// [Object](MarshalingRule::Object)s.
+    pub error_codes: bool,
+
+    /// Generates a `tryXxx` variant for each function returning a [Result], which returns the
+    /// outcome in a `riko.Attempt` instead of throwing.
+    ///
+    /// The errors are kept like with [error_codes](JniOptions::error_codes), and the code of an
+    /// error type hidden behind a [Result] alias is `0`. With that option, the error is of the same
+    /// subclass as what the throwing variant throws. A `riko.Attempt` is reused by each thread, so
+    /// it is only valid until the next `try` call on the same thread.
+    ///
+    /// Does not apply to async functions or [Object](MarshalingRule::Object)s.
+    pub try_variants: bool,
+
+    /// Executor running async functions, chosen once when a module having one is first used.
+    ///
+    /// Read from `[package.metadata.riko.jni.executor]`. Without this table, the executor is left
+    /// to the default of the runtime or to what the application chooses with
+    /// `riko.Initializer.initialize(riko.ExecutorConfig)` beforehand. With this table, a different
+    /// executor chosen by the application beforehand makes the module fail to initialize.
+    pub executor: Option<ExecutorOptions>,
+
+    /// Generates a Kotlin `suspend fun` for each async function, which resumes the coroutine with
+    /// the result directly instead of going through a `riko.Future`.
+    ///
+    /// The functions are in `ModuleSuspend.kt` next to `Module.java`, calling a
+    /// `__riko_spawn_xxx` method added to `Module`. Cancelling the coroutine cancels the `Future`
+    /// on the Rust side. `kotlinx-coroutines-core` is required to compile them.
+    pub kotlin_suspend: bool,
+}
+
+/// Configuration of the executor running async functions.
+///
+/// Mirrors `riko_runtime::executor::ExecutorConfig`.
+#[derive(Deserialize, Debug, Clone, PartialEq)]
+#[serde(default)]
+pub struct ExecutorOptions {
+    pub backend: ExecutorBackend,
+
+    /// Number of worker threads, `0` for as many as [cores](ExecutorOptions::cores).
+    pub workers: u32,
+
+    /// Maximum number of CPU cores to occupy, `0` for all available ones.
+    pub cores: u32,
+
+    /// Name of the threads.
+    pub thread_name: String,
+
+    /// Stack size of each thread in bytes, `0` for the default.
+    pub stack_size: u64,
+
+    /// Number of Java threads reaping results from memory shared with Rust, `0` for receiving
+    /// each result from a Rust thread instead.
+    pub pollers: u32,
+
+    /// Maximum number of threads running blocking functions, `0` for the default.
+    pub blocking_threads: u32,
+}
+
+impl Default for ExecutorOptions {
+    fn default() -> Self {
+        Self {
+            backend: Default::default(),
+            workers: 0,
+            cores: 0,
+            thread_name: "riko".into(),
+            stack_size: 0,
+            pollers: 0,
+            blocking_threads: 0,
+        }
+    }
+}
+
+impl ExecutorOptions {
+    /// Writes a Java expression creating a `riko.ExecutorConfig`.
+    fn write_target(&self) -> String {
+        let backend = match self.backend {
+            ExecutorBackend::Futures => "FUTURES",
+            ExecutorBackend::Tokio => "TOKIO",
+            ExecutorBackend::TokioCurrentThread => "TOKIO_CURRENT_THREAD",
+        };
+        format!(
+            "new riko.ExecutorConfig(riko.ExecutorBackend.{}, {}, {}, {:?}, {}L, {}, null, null, {})",
+            backend,
+            self.workers,
+            self.cores,
+            self.thread_name,
+            self.stack_size,
+            self.pollers,
+            self.blocking_threads
+        )
+    }
+}
+
+/// Implementations of an executor, mirrors `riko_runtime::executor::Backend`.
+#[derive(Deserialize, Debug, Clone, Copy, PartialEq)]
+#[serde(rename_all = "snake_case")]
+pub enum ExecutorBackend {
+    Futures,
+    Tokio,
+    TokioCurrentThread,
+}
+
+impl Default for ExecutorBackend {
+    fn default() -> Self {
+        Self::Futures
+    }
+}
+
 /// Writes JNI bindings.
-pub struct JniWriter;
+#[derive(Default)]
+pub struct JniWriter {
+    options: JniOptions,
+}
 
-impl TargetCodeWriter for JniWriter {
-    fn write_target_all(&self, root: &Crate) -> HashMap<PathBuf, String> {
-        root.modules
+impl JniWriter {
+    pub fn new(options: JniOptions) -> Self {
+        Self { options }
+    }
+
+    fn input_transport(&self, input: &Input) -> Transport {
+        match Primitive::of(input.rule) {
+            Some(primitive) if self.options.primitives => {
+                if input.optional {
+                    Transport::OptionalPrimitive(primitive)
+                } else {
+                    Transport::Primitive(primitive)
+                }
+            }
+            _ => Transport::Bson,
+        }
+    }
+
+    /// Checks if a function passes its BSON arguments and result through a `riko.DirectBuffer`.
+    fn uses_direct_buffer<'a>(
+        &self,
+        mut inputs: impl Iterator<Item = &'a Transport>,
+        output: Transport,
+    ) -> bool {
+        self.options.direct_buffer
+            && (output == Transport::Bson || inputs.any(|input| *input == Transport::Bson))
+    }
+
+    /// Checks if a function throws errors from the native code.
+    fn throws_natively(&self, output: &Output) -> bool {
+        (self.options.native_exceptions || self.options.error_codes) && !output.future
+    }
+
+    /// Checks if a function has a `try` variant.
+    fn has_try_variant(&self, output: &Output) -> bool {
+        self.options.try_variants
+            && output.fallible
+            && !output.future
+            && output.rule != MarshalingRule::Object
+    }
+
+    /// How the value returned by a `try` variant crosses the JNI boundary.
+    fn try_output_transport(&self, output: &Output) -> Transport {
+        if output.rule == MarshalingRule::Unit {
+            return Transport::Void;
+        }
+        match Primitive::of(output.rule) {
+            Some(primitive) if self.options.primitives && !output.optional => {
+                Transport::Primitive(primitive)
+            }
+            _ => Transport::Bson,
+        }
+    }
+
+    /// Statement initializing the runtime before calling an async function.
+    fn write_initialize(&self) -> String {
+        match &self.options.executor {
+            Some(executor) => format!("riko.Initializer.initialize({});", executor.write_target()),
+            None => "riko.Initializer.initialize();".into(),
+        }
+    }
+
+    /// Generates a method spawning an async function and returning its `FutureHandle`, called by
+    /// the `suspend fun`s from [kotlin_suspend](JniOptions::kotlin_suspend).
+    fn write_spawn_target_function(&self, function: &Function) -> Option<String> {
+        if !self.options.kotlin_suspend || !function.output.future || function.output.stream {
+            return None;
+        }
+        let TargetCall {
+            params_public,
+            prologue,
+            args,
+            direct_buffer,
+            ..
+        } = self.target_call(function, Transport::Bson);
+        let (returned_type, decoder) = if direct_buffer {
+            ("int", "buffer.read")
+        } else {
+            ("byte[]", "riko\n.Marshaler\n.decode")
+        };
+        Some(format!(
+            r#"
+              public static long __riko_spawn_{name}( {params_public} ) {{
+                {prologue}
+                final {returned_type} returned = __riko_{name}( {args} );
+                return {decoder}(returned).unwrap().asInt64().longValue();
+              }}
+            "#,
+            args = args.join(", "),
+            decoder = decoder,
+            name = &function.pubname,
+            params_public = params_public,
+            prologue = prologue.join("\n"),
+            returned_type = returned_type,
+        ))
+    }
+
+    /// Generates the Kotlin `suspend fun`s of a module from
+    /// [kotlin_suspend](JniOptions::kotlin_suspend).
+    fn write_suspend_target_module(&self, module: &Module, root: &Crate) -> Option<String> {
+        if !self.options.kotlin_suspend {
+            return None;
+        }
+        let functions = module
+            .functions
             .iter()
-            .map(|module| {
-                let mut file_path = PathBuf::new();
-                file_path.push(&root.name);
-                file_path.extend(module.path.iter());
-                file_path.push(format!("{}.java", CLASS_FOR_MODULE));
+            .filter(|function| function.output.future && !function.output.stream)
+            .map(|function| {
+                let params = function
+                    .inputs
+                    .iter()
+                    .enumerate()
+                    .map(|(idx, input)| {
+                        let transport = self.input_transport(input);
+                        format!("arg_{}: {}", idx, transport.target_type_kotlin(input.rule))
+                    })
+                    .join(", ");
+                let args = (0..function.inputs.len())
+                    .map(|idx| format!("arg_{}", idx))
+                    .join(", ");
+                let awaited = format!(
+                    "riko.awaitFuture({}.__riko_spawn_{}( {} ))",
+                    CLASS_FOR_MODULE, &function.pubname, args
+                );
 
-                let target_code = self.write_target_module(module, root);
-                (file_path, target_code)
+                // Same types as the `riko.Future` of the synchronous wrapper resolves to
+                let body = match function.output.rule {
+                    MarshalingRule::Unit => format!("{{\n{}\n}}", awaited),
+                    _ => format!(": org.bson.BsonValue =\n{}", awaited),
+                };
+                format!(
+                    r#"
+                      suspend fun `{name}`( {params} ){body}
+                    "#,
+                    body = body,
+                    name = &function.pubname,
+                    params = params,
+                )
             })
-            .collect()
+            .collect::<Vec<_>>();
+        if functions.is_empty() {
+            return None;
+        }
+        let package = std::iter::once(&root.name)
+            .chain(module.path.iter())
+            .join(".");
+        Some(format!(
+            r#"
+                @file:JvmName("{class}Suspend")
+
+                package {package}
+
+                {body}
+            "#,
+            body = functions.join("\n"),
+            class = CLASS_FOR_MODULE,
+            package = package,
+        ))
     }
 
-    fn write_target_function(&self, function: &Function, _: &Module, _: &Crate) -> String {
-        // TODO: Support returning nullabe objects
-        let return_type_public =
-            target_type_public(function.output.rule, false, function.output.future);
+    /// Generates the `try` variant of a function on the target side.
+    fn write_try_target_function(&self, function: &Function) -> Option<String> {
+        if !self.has_try_variant(&function.output) {
+            return None;
+        }
+        let output = self.try_output_transport(&function.output);
+        let TargetCall {
+            params_public,
+            prologue,
+            mut params_bridge,
+            mut args,
+            direct_buffer,
+        } = self.target_call(function, output);
+        params_bridge.insert(0, "riko.Attempt attempt".into());
+        args.insert(0, "attempt".into());
 
-        let return_block = if function.output.future {
-            "return new riko.Future(result.asInt32().intValue());"
-        } else {
-            match function.output.rule {
-                MarshalingRule::Unit => "",
-                MarshalingRule::Object => "return new riko.Object(result.asInt32().intValue());",
-                _ => "return result;",
+        let lazy = self.options.lazy_structs && function.output.rule == MarshalingRule::Struct;
+        let decode = format!(
+            "{}Value{}(returned)",
+            if direct_buffer {
+                "buffer.read"
+            } else {
+                "riko.Marshaler.decode"
+            },
+            if lazy { "Lazy" } else { "" },
+        );
+        let (returned_type, succeed) = match output {
+            Transport::Primitive(primitive) => {
+                (primitive.java, "attempt.succeed(returned);".to_string())
             }
+            Transport::Bson if direct_buffer => ("int", format!("attempt.succeed({});", decode)),
+            Transport::Bson => ("byte[]", format!("attempt.succeed({});", decode)),
+            Transport::Void => ("void", String::default()),
+            Transport::OptionalPrimitive(_) => unreachable!("Not used by `try` variants"),
         };
-
-        let initialize_block = if function.output.future {
-            "riko.Initializer.initialize();"
+        let (call, epilogue) = if output == Transport::Void {
+            (String::default(), String::default())
         } else {
-            ""
+            (
+                format!("final {} returned = ", returned_type),
+                format!("if (attempt.isOk()) {{ {} }}", succeed),
+            )
+        };
+
+        let name = &function.pubname;
+        let mut name_public = String::from("try");
+        let mut chars = name.chars();
+        name_public.extend(chars.next().into_iter().flat_map(char::to_uppercase));
+        name_public.extend(chars);
+
+        Some(format!(
+            r#"
+              private static native {returned_type} __riko_try_{name}( {params_bridge} );
+              public static riko. @ {nonnull} Attempt {name_public}( {params_public} ) {{
+                final riko.Attempt attempt = riko.Attempt.acquire();
+                {prologue}
+                {call}__riko_try_{name}( {args} );
+                {epilogue}
+                return attempt;
+              }}
+            "#,
+            args = args.join(", "),
+            call = call,
+            epilogue = epilogue,
+            name = name,
+            name_public = name_public,
+            nonnull = NONNULL_ATTRIBUTE,
+            params_bridge = params_bridge.join(", "),
+            params_public = params_public,
+            prologue = prologue.join("\n"),
+            returned_type = returned_type,
+        ))
+    }
+
+    /// Generates the `try` variant of a function on the Rust side.
+    fn write_try_bridge_function(
+        &self,
+        function: &Function,
+        module: &Module,
+        root: &Crate,
+    ) -> Option<ItemFn> {
+        if !self.has_try_variant(&function.output) {
+            return None;
+        }
+        let returned_type = function.output.returned_type();
+        let full_public_name = full_function_name(&function.name, &module.path);
+        let mangled_name = mangle_function_name(
+            &format!("try_{}", function.pubname),
+            &module.path,
+            &root.name,
+        );
+
+        let mut result_params = vec![
+            quote! { _env: ::jni::JNIEnv },
+            quote! { _class: ::jni::objects::JClass },
+            quote! { attempt_jni: ::jni::objects::JObject },
+        ];
+        let output = self.try_output_transport(&function.output);
+        let BridgeCall {
+            params,
+            prologue,
+            args: result_args,
+            direct_buffer,
+        } = self.bridge_call(function, output);
+        result_params.extend(params);
+
+        let code = proc_macro2::Literal::i32_unsuffixed(
+            function
+                .output
+                .error_type
+                .as_ref()
+                .map_or(0, ErrorClass::code_of),
+        );
+        let class = match self.error_class(&function.output, module) {
+            Some(class) => {
+                let class_name = class.jni_name(module, root);
+                quote! { Some(#class_name) }
+            }
+            None => quote! { None },
+        };
+        let attempt = quote! {
+            ::riko_runtime_jni::exception::attempt::<_, #returned_type, _>(
+                &_env,
+                result,
+                attempt_jni,
+                #code,
+                #class
+            )
+        };
+        let (return_type, marshal) = match output {
+            Transport::Void => (None, quote! { #attempt; }),
+            Transport::Primitive(primitive) => (
+                Some(primitive.bridge_type()),
+                quote! {
+                    let result = #attempt;
+                    ::riko_runtime_jni::primitive::into_jni(result.flatten().unwrap_or_default())
+                },
+            ),
+            Transport::Bson if direct_buffer => (
+                Some(quote! { ::jni::sys::jint }),
+                quote! {
+                    let result = #attempt;
+                    match result {
+                        Some(value) => buffer.marshal_value(value),
+                        None => 0,
+                    }
+                },
+            ),
+            Transport::Bson => (
+                Some(quote! { ::jni::sys::jbyteArray }),
+                quote! {
+                    let result = #attempt;
+                    match result {
+                        Some(value) => ::riko_runtime_jni::marshal_value(value, &_env),
+                        None => ::std::ptr::null_mut(),
+                    }
+                },
+            ),
+            Transport::OptionalPrimitive(_) => unreachable!("Not used by `try` variants"),
         };
+        let return_type = return_type.map(|ty| quote! { -> #ty });
+
+        // Inherited `#[cfg]`
+        let cfg = function.collect_cfg(module, root);
+
+        Some(syn::parse_quote! {
+            #(#cfg)*
+            #[no_mangle]
+            #[allow(clippy::useless_conversion)]
+            #[allow(clippy::let_unit_value)]
+            #[allow(clippy::unit_arg)]
+            pub extern "C" fn #mangled_name(#(#result_params),*) #return_type {
+                #prologue
+                let result = #full_public_name(
+                    #(#result_args),*
+                );
+                #marshal
+            }
+        })
+    }
+
+    /// The exception class thrown for the error of a function if it has one.
+    fn error_class(&self, output: &Output, module: &Module) -> Option<ErrorClass> {
+        if !self.options.error_codes
+            || !self.throws_natively(output)
+            || output.rule == MarshalingRule::Object
+        {
+            return None;
+        }
+        let error_type = output.error_type.as_ref()?;
+        self.error_classes(module)
+            .into_iter()
+            .find(|class| &class.error_type == error_type)
+    }
+
+    /// All exception classes for the errors of the functions in a module.
+    fn error_classes(&self, module: &Module) -> Vec<ErrorClass> {
+        let mut classes = Vec::<ErrorClass>::new();
+        if !self.options.error_codes {
+            return classes;
+        }
+        for function in module.functions.iter() {
+            let output = &function.output;
+            if !self.throws_natively(output) || output.rule == MarshalingRule::Object {
+                continue;
+            }
+            let error_type = match &output.error_type {
+                Some(error_type) => error_type,
+                None => continue,
+            };
+            if classes.iter().any(|class| &class.error_type == error_type) {
+                continue;
+            }
+            let code = ErrorClass::code_of(error_type);
+            let mut name = ErrorClass::name_of(error_type);
+            if classes.iter().any(|class| class.name == name) {
+                name = format!("{}{:08X}", name, code as u32);
+            }
+            classes.push(ErrorClass {
+                error_type: error_type.clone(),
+                name,
+                code,
+            });
+        }
+        classes
+    }
+
+    fn output_transport(&self, output: &Output) -> Transport {
+        let throws = self.throws_natively(output);
+        if throws && output.rule == MarshalingRule::Unit {
+            return Transport::Void;
+        }
+        if !self.options.primitives || output.future || (output.fallible && !throws) {
+            return Transport::Bson;
+        }
+        match Primitive::of(output.rule) {
+            Some(primitive) if !output.optional => Transport::Primitive(primitive),
+            Some(primitive) if primitive.unpack.is_some() => {
+                Transport::OptionalPrimitive(primitive)
+            }
+            _ => Transport::Bson,
+        }
+    }
 
-        let args = function
+    /// Parts of a public method on the target side calling its native method.
+    fn target_call(&self, function: &Function, output: Transport) -> TargetCall {
+        let inputs = function
             .inputs
             .iter()
-            .enumerate()
-            .map(|(idx, _)| format!("riko.Marshaler.encode(arg_{})", idx))
-            .join(", ");
-        let params_public = function
-            .inputs
+            .map(|input| (input, self.input_transport(input)))
+            .collect::<Vec<_>>();
+        let direct_buffer =
+            self.uses_direct_buffer(inputs.iter().map(|(_, transport)| transport), output);
+
+        let params_public = inputs
             .iter()
             .enumerate()
-            .map(|(idx, input)| {
+            .map(|(idx, (input, transport))| {
                 format!(
                     "final {} arg_{}",
-                    target_type_public(input.rule, true, false),
+                    transport.target_type_public(input.rule),
                     idx
                 )
             })
             .join(", ");
-        let params_bridge = function
-            .inputs
+
+        // Statements before calling the native method, its parameters and arguments
+        let mut prologue = Vec::<String>::new();
+        let mut params_bridge = Vec::<String>::new();
+        let mut args = Vec::<String>::new();
+        if direct_buffer {
+            prologue.push("final riko.DirectBuffer buffer = riko.DirectBuffer.acquire();".into());
+            params_bridge.push("java.nio.ByteBuffer buffer".into());
+            params_bridge.push("int length".into());
+            args.push("buffer.buffer()".into());
+            args.push("buffer.length()".into());
+        }
+        let args_bson = inputs
             .iter()
             .enumerate()
-            .map(|(idx, _)| format!("byte[] arg_{}", idx))
-            .join(", ");
+            .filter(|(_, (_, transport))| *transport == Transport::Bson)
+            .map(|(idx, _)| format!("arg_{}", idx))
+            .collect::<Vec<_>>();
+        if direct_buffer {
+            prologue.extend(args_bson.iter().map(|arg| format!("buffer.write({});", arg)));
+        } else if !args_bson.is_empty() {
+            params_bridge.push("byte[] args".into());
+            args.push(format!("riko.Marshaler.encodeAll({})", args_bson.join(", ")));
+        }
+        for (idx, (_, transport)) in inputs.iter().enumerate() {
+            if *transport != Transport::Bson {
+                params_bridge.push(transport.target_params_bridge(idx));
+                args.push(transport.target_args(idx));
+            }
+        }
+        TargetCall {
+            params_public,
+            prologue,
+            params_bridge,
+            args,
+            direct_buffer,
+        }
+    }
+
+    /// Parts of a bridge function receiving the arguments and calling the original function.
+    fn bridge_call(&self, function: &Function, output: Transport) -> BridgeCall {
+        // Parameters of the generated function after `JNIEnv` and `JClass`
+        let mut result_params = Vec::<TokenStream>::new();
+
+        // Function arguments placed at the invocation of the original function
+        let mut result_args = Vec::<TokenStream>::new();
+
+        // Statements before invoking the original function
+        let mut prologue = TokenStream::default();
+
+        let direct_buffer = self.uses_direct_buffer(
+            function
+                .inputs
+                .iter()
+                .map(|input| self.input_transport(input))
+                .collect::<Vec<_>>()
+                .iter(),
+            output,
+        );
+        let args_bson = function
+            .inputs
+            .iter()
+            .any(|input| self.input_transport(input) == Transport::Bson);
+        if direct_buffer {
+            result_params.push(quote! { buffer_jni: ::jni::objects::JByteBuffer });
+            result_params.push(quote! { length_jni: ::jni::sys::jint });
+            prologue = quote! {
+                let mut buffer = match ::riko_runtime_jni::buffer::DirectBuffer::new(
+                    &_env,
+                    buffer_jni,
+                    length_jni
+                ) {
+                    Some(buffer) => buffer,
+                    None => return ::riko_runtime_jni::discarded(),
+                };
+            };
+        } else if args_bson {
+            result_params.push(quote! { args_jni: ::jni::sys::jbyteArray });
+            prologue = quote! {
+                let mut args = match ::riko_runtime_jni::Arguments::new(&_env, args_jni) {
+                    Some(args) => args,
+                    None => return ::riko_runtime_jni::discarded(),
+                };
+            };
+        }
+
+        for (index, input) in function.inputs.iter().enumerate() {
+            let param_name = quote::format_ident!("arg_{}_jni", index);
+            let arg_raw = match self.input_transport(input) {
+                Transport::Bson if direct_buffer => quote! { buffer.unmarshal() },
+                Transport::Bson => quote! { args.unmarshal() },
+                Transport::Primitive(primitive) => {
+                    let param_type = primitive.bridge_type();
+                    result_params.push(quote! { #param_name : #param_type });
+                    quote! {
+                        ::riko_runtime_jni::primitive::from_jni(#param_name)
+                    }
+                }
+                Transport::OptionalPrimitive(primitive) => {
+                    let param_type = primitive.bridge_type();
+                    let param_name_some = quote::format_ident!("arg_{}_some_jni", index);
+                    result_params.push(quote! { #param_name_some : ::jni::sys::jboolean });
+                    result_params.push(quote! { #param_name : #param_type });
+                    quote! {
+                        ::riko_runtime_jni::primitive::optional(#param_name_some, #param_name)
+                    }
+                }
+                Transport::Void => unreachable!("Arguments always have a value"),
+            };
+            // Received on the calling thread before moving to another one
+            let arg_raw = if function.blocking {
+                let local = quote::format_ident!("arg_{}", index);
+                prologue.extend(quote! {
+                    let #local = #arg_raw;
+                });
+                quote! { #local }
+            } else {
+                arg_raw
+            };
+            let arg = if input.borrow {
+                quote! { &(#arg_raw) }
+            } else {
+                arg_raw
+            };
+            result_args.push(arg);
+        }
+
+        BridgeCall {
+            params: result_params,
+            prologue,
+            args: result_args,
+            direct_buffer,
+        }
+    }
+}
+
+impl TargetCodeWriter for JniWriter {
+    fn write_bridge_all(&self, root: &Crate) -> Result<TokenStream, Error> {
+        let mut result = TokenStream::default();
+        for module in root.modules.iter() {
+            for function in module.functions.iter() {
+                result.extend(
+                    self.write_bridge_function(function, module, root)
+                        .into_token_stream(),
+                );
+                if let Some(item) = self.write_try_bridge_function(function, module, root) {
+                    result.extend(item.into_token_stream());
+                }
+            }
+        }
+        Ok(result)
+    }
+
+    fn write_target_all(&self, root: &Crate) -> HashMap<PathBuf, String> {
+        root.modules
+            .iter()
+            .flat_map(|module| {
+                let mut directory = PathBuf::new();
+                directory.push(&root.name);
+                directory.extend(module.path.iter());
+
+                let target_code = self.write_target_module(module, root);
+                let suspend_code = self.write_suspend_target_module(module, root);
+                std::iter::once((
+                    directory.join(format!("{}.java", CLASS_FOR_MODULE)),
+                    target_code,
+                ))
+                .chain(suspend_code.map(|code| {
+                    (
+                        directory.join(format!("{}Suspend.kt", CLASS_FOR_MODULE)),
+                        code,
+                    )
+                }))
+            })
+            .collect()
+    }
+
+    fn write_target_function(&self, function: &Function, _: &Module, _: &Crate) -> String {
+        let output = self.output_transport(&function.output);
+        let TargetCall {
+            params_public,
+            prologue,
+            params_bridge,
+            args,
+            direct_buffer,
+        } = self.target_call(function, output);
+        let prologue = prologue.join("\n");
+        let params_bridge = params_bridge.join(", ");
+        let args = args.join(", ");
+
+        match output {
+            Transport::Primitive(primitive) => {
+                return format!(
+                    r#"
+                      private static native {return_type} __riko_{name}( {params_bridge} );
+                      public static {return_type} {name}( {params_public} ) {{
+                        {prologue}
+                        return __riko_{name}( {args} );
+                      }}
+                    "#,
+                    args = args,
+                    name = &function.pubname,
+                    params_bridge = params_bridge,
+                    params_public = params_public,
+                    prologue = prologue,
+                    return_type = primitive.java,
+                )
+            }
+            Transport::OptionalPrimitive(primitive) => {
+                return format!(
+                    r#"
+                      private static native long __riko_{name}( {params_bridge} );
+                      public static {return_type_public} {name}( {params_public} ) {{
+                        {prologue}
+                        final long returned = __riko_{name}( {args} );
+                        return (returned >>> 32) == 0 ? null : {boxed}.valueOf({unpack});
+                      }}
+                    "#,
+                    args = args,
+                    boxed = primitive.boxed,
+                    name = &function.pubname,
+                    params_bridge = params_bridge,
+                    params_public = params_public,
+                    prologue = prologue,
+                    return_type_public = primitive.target_type_boxed(),
+                    unpack = primitive.unpack.unwrap_or_default(),
+                )
+            }
+            Transport::Void => {
+                return format!(
+                    r#"
+                      private static native void __riko_{name}( {params_bridge} );
+                      public static void {name}( {params_public} ) {{
+                        {prologue}
+                        __riko_{name}( {args} );
+                      }}
+                    "#,
+                    args = args,
+                    name = &function.pubname,
+                    params_bridge = params_bridge,
+                    params_public = params_public,
+                    prologue = prologue,
+                )
+            }
+            Transport::Bson => {}
+        }
+
+        // TODO: Support returning nullabe objects
+        let return_type_public = if function.output.stream {
+            format!("riko. @ {} Publisher", NONNULL_ATTRIBUTE)
+        } else {
+            target_type_public(function.output.rule, false, function.output.future)
+        };
+
+        let return_block = if function.output.stream {
+            "return new riko.Publisher(result.asInt64().longValue());"
+        } else if function.output.future {
+            "return new riko.Future(result.asInt64().longValue());"
+        } else {
+            match function.output.rule {
+                MarshalingRule::Unit => "",
+                MarshalingRule::Object => "return new riko.Object(result.asInt64().longValue());",
+                _ => "return result;",
+            }
+        };
+
+        let lazy = self.options.lazy_structs
+            && !function.output.future
+            && function.output.rule == MarshalingRule::Struct;
+        let (returned_type, decoder) = if direct_buffer {
+            ("int", "buffer.read")
+        } else {
+            ("byte[]", "riko\n.Marshaler\n.decode")
+        };
+        let throws = self.throws_natively(&function.output);
+        let decode = format!(
+            "{}{}{}(returned)",
+            decoder,
+            if throws { "Value" } else { "" },
+            if lazy { "Lazy" } else { "" },
+        );
+        let unwrap = if throws { "" } else { "\n.unwrap()" };
 
         format!(
             r#"
-              private static native byte[] __riko_{name}( {params_bridge} );
+              private static native {returned_type} __riko_{name}( {params_bridge} );
               public static {return_type_public} {name}( {params_public} ) {{
-                {initialize_block}
-                final byte[] returned = __riko_{name}( {args} );
-                final org.bson.BsonValue result = riko
-                    .Marshaler
-                    .decode(returned)
-                    .unwrap();
+                {prologue}
+                final {returned_type} returned = __riko_{name}( {args} );
+                final org.bson.BsonValue result = {decode}{unwrap};
                 {return_block}
               }}
             "#,
             args = args,
-            initialize_block = initialize_block,
+            decode = decode,
             name = &function.pubname,
             params_bridge = params_bridge,
             params_public = params_public,
+            prologue = prologue,
             return_block = return_block,
             return_type_public = return_type_public,
+            returned_type = returned_type,
+            unwrap = unwrap,
         )
     }
 
@@ -130,32 +952,34 @@ impl TargetCodeWriter for JniWriter {
             quote! { _class: ::jni::objects::JClass },
         ];
 
-        // Function arguments placed at the invocation of the original function
-        let mut result_args = Vec::<TokenStream>::new();
-
-        for (index, input) in function.inputs.iter().enumerate() {
-            // Parameters
-            let param_name = quote::format_ident!("arg_{}_jni", index);
-            result_params.push(quote! { #param_name : ::jni::sys::jbyteArray });
-
-            // Arguments
-            let arg_raw = quote! {
-                ::riko_runtime_jni::unmarshal(&_env, #param_name)
-            };
-            let arg = if input.borrow {
-                quote! { &(#arg_raw) }
-            } else {
-                arg_raw
-            };
-            result_args.push(arg);
-        }
+        let output = self.output_transport(&function.output);
+        let BridgeCall {
+            params,
+            prologue,
+            args: result_args,
+            direct_buffer,
+        } = self.bridge_call(function, output);
+        result_params.extend(params);
 
-        // Shelving heap-allocated objects
-        let shelve = if function.output.rule == MarshalingRule::Object {
+        // Shelving heap-allocated objects, or throwing an error with a code
+        let shelve = if let Some(class) = self.error_class(&function.output, module) {
+            let class_name = class.jni_name(module, root);
+            quote! {
+                let result = ::riko_runtime_jni::exception::unwrap_coded::<_, #returned_type, _>(
+                    &_env,
+                    result,
+                    #class_name
+                );
+            }
+        } else if function.output.stream {
+            quote! {
+                let result = ::riko_runtime_jni::stream::spawn::<_, _, #returned_type>(result);
+            }
+        } else if function.output.rule == MarshalingRule::Object {
             quote! {
                 let result = ::riko_runtime::object::Shelve::shelve(result);
             }
-        } else if function.output.future {
+        } else if function.output.future && !function.blocking {
             quote! {
                 let result = ::riko_runtime_jni::future::spawn::<_, _, #returned_type>(result);
             }
@@ -163,178 +987,1119 @@ impl TargetCodeWriter for JniWriter {
             Default::default()
         };
 
-        // Inherited `#[cfg]`
+        // Converting the result to what is returned to JNI
+        let into_returned = quote! {
+            let result: ::riko_runtime::returned::Returned<#output_type> = result.into();
+        };
+        let (return_type, marshal) = if self.throws_natively(&function.output) {
+            let unwrap = quote! {
+                #into_returned
+                let result = ::riko_runtime_jni::exception::unwrap(&_env, result);
+            };
+            match output {
+                Transport::Bson if direct_buffer => (
+                    Some(quote! { ::jni::sys::jint }),
+                    quote! {
+                        #unwrap
+                        buffer.marshal_value(result)
+                    },
+                ),
+                Transport::Bson => (
+                    Some(quote! { ::jni::sys::jbyteArray }),
+                    quote! {
+                        #into_returned
+                        ::riko_runtime_jni::exception::marshal(&_env, result)
+                    },
+                ),
+                Transport::Primitive(primitive) => (
+                    Some(primitive.bridge_type()),
+                    quote! {
+                        #unwrap
+                        ::riko_runtime_jni::primitive::into_jni(result.unwrap_or_default())
+                    },
+                ),
+                Transport::OptionalPrimitive(_) => (
+                    Some(quote! { ::jni::sys::jlong }),
+                    quote! {
+                        #unwrap
+                        ::riko_runtime_jni::primitive::pack(result)
+                    },
+                ),
+                Transport::Void => (
+                    None,
+                    quote! {
+                        #into_returned
+                        ::riko_runtime_jni::exception::unwrap(&_env, result);
+                    },
+                ),
+            }
+        } else {
+            match output {
+                Transport::Bson if direct_buffer => (
+                    Some(quote! { ::jni::sys::jint }),
+                    quote! {
+                        #into_returned
+                        buffer.marshal(&result)
+                    },
+                ),
+                Transport::Bson => (
+                    Some(quote! { ::jni::sys::jbyteArray }),
+                    quote! {
+                        #into_returned
+                        ::riko_runtime_jni::marshal(&result, &_env)
+                    },
+                ),
+                Transport::Primitive(primitive) => (
+                    Some(primitive.bridge_type()),
+                    quote! {
+                        ::riko_runtime_jni::primitive::into_jni(result)
+                    },
+                ),
+                Transport::OptionalPrimitive(_) => (
+                    Some(quote! { ::jni::sys::jlong }),
+                    quote! {
+                        ::riko_runtime_jni::primitive::pack(result)
+                    },
+                ),
+                Transport::Void => unreachable!("Only returned when throwing natively"),
+            }
+        };
+        let return_type = return_type.map(|ty| quote! { -> #ty });
+
+        // Inherited `#[cfg]`
         let cfg = function.collect_cfg(module, root);
 
-        let result: ItemFn = syn::parse_quote! {
-            #(#cfg)*
+        let call = quote! {
+            #full_public_name(
+                #(#result_args),*
+            )
+        };
+        let call = if function.blocking {
+            quote! {
+                ::riko_runtime_jni::future::spawn_blocking::<_, _, #returned_type>(move || #call)
+            }
+        } else {
+            call
+        };
+
+        let result: ItemFn = syn::parse_quote! {
+            #(#cfg)*
+            #[no_mangle]
+            #[allow(clippy::useless_conversion)]
+            #[allow(clippy::let_unit_value)]
+            #[allow(clippy::unit_arg)]
+            pub extern "C" fn #mangled_name(#(#result_params),*) #return_type {
+                #prologue
+                let result = #call;
+                #shelve
+                #marshal
+            }
+        };
+        result
+    }
+
+    fn write_target_module(&self, module: &Module, root: &Crate) -> String {
+        let body = module
+            .functions
+            .iter()
+            .flat_map(|function| {
+                std::iter::once(self.write_target_function(function, module, root))
+                    .chain(self.write_try_target_function(function))
+                    .chain(self.write_spawn_target_function(function))
+            })
+            .chain(
+                self.error_classes(module)
+                    .iter()
+                    .map(ErrorClass::write_target),
+            )
+            .join("\n");
+        let result_package = std::iter::once(&root.name)
+            .chain(module.path.iter())
+            .join(".");
+
+        // Initializing the runtime once before any async function is called
+        let initialize = if module.functions.iter().any(|function| function.output.future) {
+            format!("static {{\n{}\n}}", self.write_initialize())
+        } else {
+            String::default()
+        };
+
+        format!(
+            r#"
+                package {package};
+
+                public final class {class} {{
+
+                    {initialize}
+
+                    private {class}() {{}}
+
+                    {body}
+                }}
+            "#,
+            body = body,
+            class = CLASS_FOR_MODULE,
+            initialize = initialize,
+            package = &result_package,
+        )
+    }
+}
+
+/// Parts of a public method on the target side calling its native method.
+struct TargetCall {
+    /// Parameters of the public method.
+    params_public: String,
+
+    /// Statements before calling the native method.
+    prologue: Vec<String>,
+
+    /// Parameters of the native method.
+    params_bridge: Vec<String>,
+
+    /// Arguments passed to the native method.
+    args: Vec<String>,
+
+    direct_buffer: bool,
+}
+
+/// Parts of a bridge function receiving the arguments and calling the original function.
+struct BridgeCall {
+    /// Parameters after `JNIEnv` and `JClass`.
+    params: Vec<TokenStream>,
+
+    /// Statements before invoking the original function.
+    prologue: TokenStream,
+
+    /// Arguments placed at the invocation of the original function.
+    args: Vec<TokenStream>,
+
+    direct_buffer: bool,
+}
+
+/// Exception class thrown for an error type with [error_codes](JniOptions::error_codes).
+struct ErrorClass {
+    error_type: syn::Path,
+
+    /// Simple name of the class nested in the `Module` class.
+    name: String,
+
+    code: i32,
+}
+
+impl ErrorClass {
+    /// FNV-1a hash of the error type.
+    fn code_of(error_type: &syn::Path) -> i32 {
+        error_type
+            .to_token_stream()
+            .to_string()
+            .bytes()
+            .fold(0x811C_9DC5_u32, |hash, byte| {
+                (hash ^ byte as u32).wrapping_mul(0x0100_0193)
+            }) as i32
+    }
+
+    /// Derives a class name from an error type.
+    ///
+    /// For example, `std::io::Error` becomes `IoErrorException` and `crate::LoveError` becomes
+    /// `LoveErrorException`.
+    fn name_of(error_type: &syn::Path) -> String {
+        let idents = error_type
+            .segments
+            .iter()
+            .map(|segment| segment.ident.to_string())
+            .collect::<Vec<_>>();
+        let last = idents.last().cloned().unwrap_or_default();
+        let prefix = idents
+            .iter()
+            .rev()
+            .nth(1)
+            .filter(|module| {
+                last == "Error" && !["crate", "self", "super"].contains(&module.as_str())
+            })
+            .map(|module| {
+                module
+                    .split('_')
+                    .map(|word| {
+                        let mut chars = word.chars();
+                        chars
+                            .next()
+                            .map(|first| first.to_uppercase().chain(chars).collect::<String>())
+                            .unwrap_or_default()
+                    })
+                    .collect::<String>()
+            })
+            .unwrap_or_default();
+        format!("{}{}Exception", prefix, last)
+    }
+
+    /// Name of the class in its JNI form.
+    fn jni_name(&self, module: &Module, root: &Crate) -> String {
+        format!(
+            "{}/{}${}",
+            std::iter::once(&root.name)
+                .chain(module.path.iter())
+                .join("/"),
+            CLASS_FOR_MODULE,
+            self.name
+        )
+    }
+
+    fn write_target(&self) -> String {
+        format!(
+            r#"
+              /** Thrown when the Rust side returns a {{@code {error_type}}}. */
+              public static final class {name} extends riko.ReturnedException {{
+                public static final int CODE = {code};
+                private {name}(final int handle) {{
+                  super(CODE, handle);
+                }}
+              }}
+            "#,
+            code = self.code,
+            error_type = self.error_type.to_token_stream().to_string().replace(' ', ""),
+            name = &self.name,
+        )
+    }
+}
+
+/// How a value crosses the JNI boundary.
+#[derive(Clone, Copy, PartialEq, Debug)]
+enum Transport {
+    /// BSON bytes in a `byte[]`.
+    Bson,
+
+    /// A JNI primitive.
+    Primitive(Primitive),
+
+    /// An [Option] of a JNI primitive.
+    ///
+    /// As a parameter, it is split into a `boolean` indicating its presence and the primitive
+    /// itself. As a returned value, both of them are packed inside a `long`, the presence being
+    /// the lowest bit of the upper half.
+    OptionalPrimitive(Primitive),
+
+    /// Nothing at all, only for a returned [Unit](MarshalingRule::Unit).
+    Void,
+}
+
+impl Transport {
+    /// Type of a public parameter on the target side.
+    fn target_type_public(&self, rule: MarshalingRule) -> String {
+        match self {
+            Self::Bson => target_type_public(rule, true, false),
+            Self::Primitive(primitive) => primitive.java.into(),
+            Self::OptionalPrimitive(primitive) => primitive.target_type_boxed(),
+            Self::Void => "void".into(),
+        }
+    }
+
+    /// Type of a parameter of a Kotlin function on the target side.
+    fn target_type_kotlin(&self, rule: MarshalingRule) -> String {
+        match self {
+            Self::Bson if rule == MarshalingRule::Object => "riko.Object?".into(),
+            Self::Bson => "org.bson.BsonValue?".into(),
+            Self::Primitive(primitive) => primitive.kotlin().into(),
+            Self::OptionalPrimitive(primitive) => format!("{}?", primitive.kotlin()),
+            Self::Void => unreachable!("Arguments always have a value"),
+        }
+    }
+
+    /// Parameters of the native method on the target side for the argument at `idx`.
+    ///
+    /// BSON arguments are marshaled together and thus not supported by this method.
+    fn target_params_bridge(&self, idx: usize) -> String {
+        match self {
+            Self::Bson => unreachable!("BSON arguments are not passed individually"),
+            Self::Void => unreachable!("Arguments always have a value"),
+            Self::Primitive(primitive) => format!("{} arg_{}", primitive.java, idx),
+            Self::OptionalPrimitive(primitive) => {
+                format!("boolean arg_{0}_some, {1} arg_{0}", idx, primitive.java)
+            }
+        }
+    }
+
+    /// Arguments passed to the native method on the target side for the argument at `idx`.
+    ///
+    /// BSON arguments are marshaled together and thus not supported by this method.
+    fn target_args(&self, idx: usize) -> String {
+        match self {
+            Self::Bson => unreachable!("BSON arguments are not passed individually"),
+            Self::Void => unreachable!("Arguments always have a value"),
+            Self::Primitive(_) => format!("arg_{}", idx),
+            Self::OptionalPrimitive(primitive) => format!(
+                "arg_{0} != null, arg_{0} == null ? {1} : arg_{0}",
+                idx, primitive.zero
+            ),
+        }
+    }
+}
+
+/// A [MarshalingRule] that maps to a JNI primitive.
+#[derive(Clone, Copy, PartialEq, Debug)]
+struct Primitive {
+    /// Java primitive type.
+    java: &'static str,
+
+    /// Wrapper class of [java](Primitive::java) in `java.lang`.
+    boxed: &'static str,
+
+    /// Type in `jni::sys`.
+    jni: &'static str,
+
+    /// Java literal of the default value.
+    zero: &'static str,
+
+    /// Java expression extracting the value from a `long returned` packed by the Rust side.
+    ///
+    /// None if the type does not fit in 32 bits.
+    unpack: Option<&'static str>,
+}
+
+impl Primitive {
+    fn of(rule: MarshalingRule) -> Option<Self> {
+        let (java, boxed, jni, zero, unpack) = match rule {
+            MarshalingRule::Bool => (
+                "boolean",
+                "Boolean",
+                "jboolean",
+                "false",
+                Some("((int) returned) != 0"),
+            ),
+            MarshalingRule::I8 => ("byte", "Byte", "jbyte", "(byte) 0", Some("(byte) returned")),
+            MarshalingRule::I32 => ("int", "Integer", "jint", "0", Some("(int) returned")),
+            MarshalingRule::I64 => ("long", "Long", "jlong", "0L", None),
+            MarshalingRule::F32 => (
+                "float",
+                "Float",
+                "jfloat",
+                "0f",
+                Some("Float.intBitsToFloat((int) returned)"),
+            ),
+            MarshalingRule::F64 => ("double", "Double", "jdouble", "0d", None),
+            _ => return None,
+        };
+        Some(Self {
+            java,
+            boxed,
+            jni,
+            zero,
+            unpack,
+        })
+    }
+
+    fn target_type_boxed(&self) -> String {
+        format!("java.lang. @ {} {}", NULLABLE_ATTRIBUTE, self.boxed)
+    }
+
+    /// Kotlin type, which is the name of the wrapper class except for `int`.
+    fn kotlin(&self) -> &'static str {
+        if self.boxed == "Integer" {
+            "Int"
+        } else {
+            self.boxed
+        }
+    }
+
+    fn bridge_type(&self) -> TokenStream {
+        let ident = quote::format_ident!("{}", self.jni);
+        quote! { ::jni::sys::#ident }
+    }
+}
+
+fn target_type_public(rule: MarshalingRule, nullable: bool, future: bool) -> String {
+    let nullability = if nullable {
+        NULLABLE_ATTRIBUTE
+    } else {
+        NONNULL_ATTRIBUTE
+    };
+    if future {
+        format!("riko. @ {} Future", NONNULL_ATTRIBUTE)
+    } else {
+        match rule {
+            MarshalingRule::Unit => "void".into(),
+            MarshalingRule::Object => format!("riko. @ {} Object", nullability),
+
+            _ => format!("org.bson. @ {} BsonValue", nullability),
+        }
+    }
+}
+
+fn mangle_function_name(name: &str, module: &[String], crate_: &str) -> Ident {
+    let prefix = std::iter::once(crate_)
+        .chain(module.iter().map(String::as_str))
+        .map(|ident| ident.replace("_", "_1"))
+        .join("_");
+    quote::format_ident!(
+        "Java_{}_Module_{}{}",
+        &prefix,
+        &PREFIX_FOR_NATIVE.replace("_", "_1"),
+        &name.replace("_", "_1")
+    )
+}
+
+fn full_function_name(name: &str, module: &[String]) -> syn::Path {
+    let ident = quote::format_ident!("{}", name);
+    let prefix = module
+        .iter()
+        .map(|x| quote::format_ident!("{}", x))
+        .chain(std::iter::once(ident))
+        .collect::<Vec<_>>();
+    syn::parse_quote! {
+        crate :: #(#prefix)::*
+    }
+}
+
+#[cfg(test)]
+mod test {
+    use super::*;
+    use quote::ToTokens;
+
+    #[test]
+    fn full_function_name() {
+        let none = super::full_function_name("function", &[])
+            .into_token_stream()
+            .to_string();
+        assert_eq!("crate :: function", none);
+        let some_1 = super::full_function_name("function", &["util".into()])
+            .into_token_stream()
+            .to_string();
+        assert_eq!("crate :: util :: function", some_1);
+        let some_2 = super::full_function_name("function", &["util".into(), "unix".into()])
+            .into_token_stream()
+            .to_string();
+        assert_eq!("crate :: util :: unix :: function", some_2)
+    }
+
+    #[test]
+    fn mangle_function_name() {
+        let none = super::mangle_function_name("function", &[], "riko_sample").to_string();
+        assert_eq!("Java_riko_1sample_Module__1_1riko_1function", none);
+        let some_1 =
+            super::mangle_function_name("function", &["util".into()], "riko_sample").to_string();
+        assert_eq!("Java_riko_1sample_util_Module__1_1riko_1function", some_1);
+        let some_2 =
+            super::mangle_function_name("function", &["util".into(), "unix".into()], "riko_sample")
+                .to_string();
+        assert_eq!(
+            "Java_riko_1sample_util_unix_Module__1_1riko_1function",
+            some_2
+        )
+    }
+
+    #[test]
+    fn module() {
+        let ir = &crate::ir::sample::empty_module();
+        let expected = r#"
+            package riko_sample.example;
+
+            public final class Module {
+                private Module() {}
+            }
+        "#;
+        let actual = JniWriter::default().write_target_module(&ir.modules[0], &ir);
+        assert_eq!(
+            crate::normalize_source_code(expected),
+            crate::normalize_source_code(&actual),
+        );
+    }
+
+    #[test]
+    fn simple_function() {
+        let ir = crate::ir::sample::simple_function();
+
+        let expected = r#"
+            private static native byte[] __riko_function(
+                byte[] args
+            );
+            public static org.bson. @ org.checkerframework.checker.nullness.qual.NonNull BsonValue function(
+                final org.bson. @ org.checkerframework.checker.nullness.qual.Nullable BsonValue arg_0,
+                final org.bson. @ org.checkerframework.checker.nullness.qual.Nullable BsonValue arg_1
+            ) {
+                final byte[] returned = __riko_function(
+                    riko.Marshaler.encodeAll(arg_0, arg_1)
+                );
+                final org.bson.BsonValue result = riko
+                  .Marshaler
+                  .decode(returned)
+                  .unwrap();
+                return result;
+            }
+        "#;
+        let actual = JniWriter::default().write_target_function(
+            &ir.modules[0].functions[0],
+            &ir.modules[0],
+            &ir,
+        );
+        assert_eq!(
+            crate::normalize_source_code(expected),
+            crate::normalize_source_code(&actual),
+        );
+
+        let expected = quote! {
+            #[no_mangle]
+            #[allow(clippy::useless_conversion)]
+            #[allow(clippy::let_unit_value)]
+            #[allow(clippy::unit_arg)]
+            pub extern "C" fn Java_riko_1sample_example_Module__1_1riko_1function(
+                _env: ::jni::JNIEnv,
+                _class: ::jni::objects::JClass,
+                args_jni: ::jni::sys::jbyteArray
+            ) -> ::jni::sys::jbyteArray {
+                let mut args = match ::riko_runtime_jni::Arguments::new(&_env, args_jni) {
+                    Some(args) => args,
+                    None => return ::riko_runtime_jni::discarded(),
+                };
+                let result = crate::example::function(
+                    &(args.unmarshal()),
+                    args.unmarshal()
+                );
+                let result: ::riko_runtime::returned::Returned<::std::string::String> = result.into();
+                ::riko_runtime_jni::marshal(&result, &_env)
+            }
+        }
+        .to_string();
+        let actual = JniWriter::default()
+            .write_bridge_function(&ir.modules[0].functions[0], &ir.modules[0], &ir)
+            .into_token_stream()
+            .to_string();
+        assert_eq!(expected, actual);
+    }
+
+    #[test]
+    fn returning_object() {
+        let ir = crate::ir::sample::returning_object();
+
+        let expected = r#"
+            private static native byte[] __riko_function(
+            );
+            public static riko. @ org.checkerframework.checker.nullness.qual.NonNull Object function(
+            ) {
+                final byte[] returned = __riko_function(
+                );
+                final org.bson.BsonValue result = riko
+                  .Marshaler
+                  .decode(returned)
+                  .unwrap();
+                return new riko.Object(result.asInt64().longValue());
+            }
+        "#;
+        let actual = JniWriter::default().write_target_function(
+            &ir.modules[0].functions[0],
+            &ir.modules[0],
+            &ir,
+        );
+        assert_eq!(
+            crate::normalize_source_code(expected),
+            crate::normalize_source_code(&actual),
+        );
+
+        let expected = quote! {
+            #[no_mangle]
+            #[allow(clippy::useless_conversion)]
+            #[allow(clippy::let_unit_value)]
+            #[allow(clippy::unit_arg)]
+            pub extern "C" fn Java_riko_1sample_example_Module__1_1riko_1function(
+                _env: ::jni::JNIEnv,
+                _class: ::jni::objects::JClass
+            ) -> ::jni::sys::jbyteArray {
+                let result = crate::example::function();
+                let result = ::riko_runtime::object::Shelve::shelve(result);
+                let result: ::riko_runtime::returned::Returned<::riko_runtime::ObjectHandle> = result.into();
+                ::riko_runtime_jni::marshal(&result, &_env)
+            }
+        }
+            .to_string();
+        let actual = JniWriter::default()
+            .write_bridge_function(&ir.modules[0].functions[0], &ir.modules[0], &ir)
+            .into_token_stream()
+            .to_string();
+        assert_eq!(expected, actual);
+    }
+
+    #[test]
+    fn function_async() {
+        let ir = crate::ir::sample::function_async();
+
+        let expected = r#"
+            private static native byte[] __riko_function( );
+            public static riko. @ org.checkerframework.checker.nullness.qual.NonNull Future function( ) {
+                final byte[] returned = __riko_function( );
+                final org.bson.BsonValue result = riko
+                    .Marshaler
+                    .decode(returned)
+                    .unwrap();
+                return new riko.Future(result.asInt64().longValue());
+            }
+        "#;
+        let actual = JniWriter::default().write_target_function(
+            &ir.modules[0].functions[0],
+            &ir.modules[0],
+            &ir,
+        );
+        assert_eq!(
+            crate::normalize_source_code(expected),
+            crate::normalize_source_code(&actual),
+        );
+
+        let expected = quote! {
+            #[no_mangle]
+            #[allow(clippy::useless_conversion)]
+            #[allow(clippy::let_unit_value)]
+            #[allow(clippy::unit_arg)]
+            pub extern "C" fn Java_riko_1sample_example_Module__1_1riko_1function(
+                _env: ::jni::JNIEnv,
+                _class: ::jni::objects::JClass
+            ) -> ::jni::sys::jbyteArray {
+                let result = crate::example::function();
+                let result = ::riko_runtime_jni::future::spawn::<_, _, ::std::string::String>(result);
+                let result: ::riko_runtime::returned::Returned<::riko_runtime::FutureHandle> = result.into();
+                ::riko_runtime_jni::marshal(&result, &_env)
+            }
+        }
+            .to_string();
+        let actual = JniWriter::default()
+            .write_bridge_function(&ir.modules[0].functions[0], &ir.modules[0], &ir)
+            .into_token_stream()
+            .to_string();
+        assert_eq!(expected, actual);
+    }
+
+    #[test]
+    fn executor() {
+        let ir = crate::ir::sample::function_async();
+        let writer = JniWriter::new(JniOptions {
+            executor: Some(ExecutorOptions {
+                backend: ExecutorBackend::Tokio,
+                workers: 4,
+                cores: 2,
+                pollers: 1,
+                blocking_threads: 8,
+                ..Default::default()
+            }),
+            ..Default::default()
+        });
+
+        let expected = r#"
+            package riko_sample.example;
+
+            public final class Module {
+
+                static {
+                    riko.Initializer.initialize(new riko.ExecutorConfig(riko.ExecutorBackend.TOKIO, 4, 2, "riko", 0L, 1, null, null, 8));
+                }
+
+                private Module() {}
+        "#;
+        let actual = writer.write_target_module(&ir.modules[0], &ir);
+        assert!(crate::normalize_source_code(&actual)
+            .starts_with(&crate::normalize_source_code(expected)));
+
+        // Not initialized by each call
+        let actual =
+            writer.write_target_function(&ir.modules[0].functions[0], &ir.modules[0], &ir);
+        assert!(!actual.contains("riko.Initializer"));
+
+        // Nor by modules without async functions
+        let ir = crate::ir::sample::simple_function();
+        let actual = writer.write_target_module(&ir.modules[0], &ir);
+        assert!(!actual.contains("riko.Initializer"));
+    }
+
+    #[test]
+    fn blocking() {
+        let ir = crate::ir::sample::blocking_function();
+
+        let expected = quote! {
+            #[no_mangle]
+            #[allow(clippy::useless_conversion)]
+            #[allow(clippy::let_unit_value)]
+            #[allow(clippy::unit_arg)]
+            pub extern "C" fn Java_riko_1sample_example_Module__1_1riko_1function(
+                _env: ::jni::JNIEnv,
+                _class: ::jni::objects::JClass,
+                args_jni: ::jni::sys::jbyteArray
+            ) -> ::jni::sys::jbyteArray {
+                let mut args = match ::riko_runtime_jni::Arguments::new(&_env, args_jni) {
+                    Some(args) => args,
+                    None => return ::riko_runtime_jni::discarded(),
+                };
+                let arg_0 = args.unmarshal();
+                let arg_1 = args.unmarshal();
+                let result = ::riko_runtime_jni::future::spawn_blocking::<_, _, ::std::string::String>(
+                    move || crate::example::function(&(arg_0), arg_1)
+                );
+                let result: ::riko_runtime::returned::Returned<::riko_runtime::FutureHandle> = result.into();
+                ::riko_runtime_jni::marshal(&result, &_env)
+            }
+        }
+        .to_string();
+        let actual = JniWriter::default()
+            .write_bridge_function(&ir.modules[0].functions[0], &ir.modules[0], &ir)
+            .into_token_stream()
+            .to_string();
+        assert_eq!(expected, actual);
+    }
+
+    #[test]
+    fn stream() {
+        let ir = crate::ir::sample::stream_function();
+
+        let expected = quote! {
+            #[no_mangle]
+            #[allow(clippy::useless_conversion)]
+            #[allow(clippy::let_unit_value)]
+            #[allow(clippy::unit_arg)]
+            pub extern "C" fn Java_riko_1sample_example_Module__1_1riko_1function(
+                _env: ::jni::JNIEnv,
+                _class: ::jni::objects::JClass
+            ) -> ::jni::sys::jbyteArray {
+                let result = crate::example::function();
+                let result = ::riko_runtime_jni::stream::spawn::<_, _, ::std::string::String>(result);
+                let result: ::riko_runtime::returned::Returned<::riko_runtime::FutureHandle> = result.into();
+                ::riko_runtime_jni::marshal(&result, &_env)
+            }
+        }
+        .to_string();
+        let actual = JniWriter::default()
+            .write_bridge_function(&ir.modules[0].functions[0], &ir.modules[0], &ir)
+            .into_token_stream()
+            .to_string();
+        assert_eq!(expected, actual);
+
+        let expected = r#"
+            private static native byte[] __riko_function(
+            );
+            public static riko. @ org.checkerframework.checker.nullness.qual.NonNull Publisher function(
+            ) {
+                final byte[] returned = __riko_function(
+                );
+                final org.bson.BsonValue result = riko
+                  .Marshaler
+                  .decode(returned)
+                  .unwrap();
+                return new riko.Publisher(result.asInt64().longValue());
+            }
+        "#;
+        let actual = JniWriter::default().write_target_function(
+            &ir.modules[0].functions[0],
+            &ir.modules[0],
+            &ir,
+        );
+        assert_eq!(
+            crate::normalize_source_code(expected),
+            crate::normalize_source_code(&actual),
+        );
+    }
+
+    #[test]
+    fn kotlin_suspend() {
+        let ir = crate::ir::sample::blocking_function();
+        let writer = JniWriter::new(JniOptions {
+            kotlin_suspend: true,
+            ..Default::default()
+        });
+
+        let expected = r#"
+            public static long __riko_spawn_function(
+                final org.bson. @ org.checkerframework.checker.nullness.qual.Nullable BsonValue arg_0,
+                final org.bson. @ org.checkerframework.checker.nullness.qual.Nullable BsonValue arg_1
+            ) {
+                final byte[] returned = __riko_function( riko.Marshaler.encodeAll(arg_0, arg_1) );
+                return riko
+                    .Marshaler
+                    .decode(returned).unwrap().asInt64().longValue();
+            }
+        "#;
+        let actual = writer
+            .write_spawn_target_function(&ir.modules[0].functions[0])
+            .unwrap();
+        assert_eq!(
+            crate::normalize_source_code(expected),
+            crate::normalize_source_code(&actual),
+        );
+
+        let expected = r#"
+            @file:JvmName("ModuleSuspend")
+
+            package riko_sample.example
+
+            suspend fun `function`( arg_0: org.bson.BsonValue?, arg_1: org.bson.BsonValue? ): org.bson.BsonValue =
+                riko.awaitFuture(Module.__riko_spawn_function( arg_0, arg_1 ))
+        "#;
+        let actual = writer
+            .write_suspend_target_module(&ir.modules[0], &ir)
+            .unwrap();
+        assert_eq!(
+            crate::normalize_source_code(expected),
+            crate::normalize_source_code(&actual),
+        );
+
+        let mut ir = crate::ir::sample::blocking_function();
+        ir.modules[0].functions[0].output.rule = MarshalingRule::Unit;
+        let expected = r#"
+            suspend fun `function`( arg_0: org.bson.BsonValue?, arg_1: org.bson.BsonValue? ) {
+                riko.awaitFuture(Module.__riko_spawn_function( arg_0, arg_1 ))
+            }
+        "#;
+        let actual = writer
+            .write_suspend_target_module(&ir.modules[0], &ir)
+            .unwrap();
+        assert!(crate::normalize_source_code(&actual)
+            .ends_with(&crate::normalize_source_code(expected)));
+
+        let ir = crate::ir::sample::simple_function();
+        assert_eq!(
+            None,
+            writer.write_suspend_target_module(&ir.modules[0], &ir)
+        );
+        assert_eq!(
+            None,
+            writer.write_spawn_target_function(&ir.modules[0].functions[0])
+        );
+    }
+
+    #[test]
+    fn function_with_nothing() {
+        let ir = crate::ir::sample::function_with_nothing();
+
+        let expected = r#"
+            private static native byte[] __riko_function(
+            );
+            public static void function(
+            ) {
+                final byte[] returned = __riko_function(
+                );
+                final org.bson.BsonValue result = riko
+                  .Marshaler
+                  .decode(returned)
+                  .unwrap();
+            }
+        "#;
+        let actual = JniWriter::default().write_target_function(
+            &ir.modules[0].functions[0],
+            &ir.modules[0],
+            &ir,
+        );
+        assert_eq!(
+            crate::normalize_source_code(expected),
+            crate::normalize_source_code(&actual),
+        );
+
+        let expected = quote! {
+            #[no_mangle]
+            #[allow(clippy::useless_conversion)]
+            #[allow(clippy::let_unit_value)]
+            #[allow(clippy::unit_arg)]
+            pub extern "C" fn Java_riko_1sample_example_Module__1_1riko_1function(
+                _env: ::jni::JNIEnv,
+                _class: ::jni::objects::JClass
+            ) -> ::jni::sys::jbyteArray {
+                let result = crate::example::function();
+                let result: ::riko_runtime::returned::Returned<()> = result.into();
+                ::riko_runtime_jni::marshal(&result, &_env)
+            }
+        }
+        .to_string();
+        let actual = JniWriter::default()
+            .write_bridge_function(&ir.modules[0].functions[0], &ir.modules[0], &ir)
+            .into_token_stream()
+            .to_string();
+        assert_eq!(expected, actual);
+    }
+
+    #[test]
+    fn primitives() {
+        let ir = crate::ir::sample::primitive_function();
+        let writer = JniWriter::new(JniOptions {
+            primitives: true,
+            ..Default::default()
+        });
+
+        let expected = r#"
+            private static native long __riko_function(
+                int arg_0,
+                boolean arg_1_some,
+                boolean arg_1
+            );
+            public static java.lang. @ org.checkerframework.checker.nullness.qual.Nullable Integer function(
+                final int arg_0,
+                final java.lang. @ org.checkerframework.checker.nullness.qual.Nullable Boolean arg_1
+            ) {
+                final long returned = __riko_function(
+                    arg_0,
+                    arg_1 != null,
+                    arg_1 == null ? false : arg_1
+                );
+                return (returned >>> 32) == 0 ? null : Integer.valueOf((int) returned);
+            }
+        "#;
+        let actual =
+            writer.write_target_function(&ir.modules[0].functions[0], &ir.modules[0], &ir);
+        assert_eq!(
+            crate::normalize_source_code(expected),
+            crate::normalize_source_code(&actual),
+        );
+
+        let expected = quote! {
             #[no_mangle]
             #[allow(clippy::useless_conversion)]
             #[allow(clippy::let_unit_value)]
             #[allow(clippy::unit_arg)]
-            pub extern "C" fn #mangled_name(#(#result_params),*) -> ::jni::sys::jbyteArray {
-                let result = #full_public_name(
-                    #(#result_args),*
+            pub extern "C" fn Java_riko_1sample_example_Module__1_1riko_1function(
+                _env: ::jni::JNIEnv,
+                _class: ::jni::objects::JClass,
+                arg_0_jni: ::jni::sys::jint,
+                arg_1_some_jni: ::jni::sys::jboolean,
+                arg_1_jni: ::jni::sys::jboolean
+            ) -> ::jni::sys::jlong {
+                let result = crate::example::function(
+                    ::riko_runtime_jni::primitive::from_jni(arg_0_jni),
+                    ::riko_runtime_jni::primitive::optional(arg_1_some_jni, arg_1_jni)
                 );
-                #shelve
-                let result: ::riko_runtime::returned::Returned<#output_type> = result.into();
-                ::riko_runtime_jni::marshal(&result, &_env)
+                ::riko_runtime_jni::primitive::pack(result)
             }
-        };
-        result
-    }
-
-    fn write_target_module(&self, module: &Module, root: &Crate) -> String {
-        let body = module
-            .functions
-            .iter()
-            .map(|function| self.write_target_function(function, module, root))
-            .join("\n");
-        let result_package = std::iter::once(&root.name)
-            .chain(module.path.iter())
-            .join(".");
-
-        format!(
-            r#"
-                package {package};
-
-                public final class {class} {{
-
-                    private {class}() {{}}
-
-                    {body}
-                }}
-            "#,
-            body = body,
-            class = CLASS_FOR_MODULE,
-            package = &result_package,
-        )
-    }
-}
-
-fn target_type_public(rule: MarshalingRule, nullable: bool, future: bool) -> String {
-    let nullability = if nullable {
-        NULLABLE_ATTRIBUTE
-    } else {
-        NONNULL_ATTRIBUTE
-    };
-    if future {
-        format!("riko. @ {} Future", NONNULL_ATTRIBUTE)
-    } else {
-        match rule {
-            MarshalingRule::Unit => "void".into(),
-            MarshalingRule::Object => format!("riko. @ {} Object", nullability),
-
-            _ => format!("org.bson. @ {} BsonValue", nullability),
         }
+        .to_string();
+        let actual = writer
+            .write_bridge_function(&ir.modules[0].functions[0], &ir.modules[0], &ir)
+            .into_token_stream()
+            .to_string();
+        assert_eq!(expected, actual);
     }
-}
-
-fn mangle_function_name(name: &str, module: &[String], crate_: &str) -> Ident {
-    let prefix = std::iter::once(crate_)
-        .chain(module.iter().map(String::as_str))
-        .map(|ident| ident.replace("_", "_1"))
-        .join("_");
-    quote::format_ident!(
-        "Java_{}_Module_{}{}",
-        &prefix,
-        &PREFIX_FOR_NATIVE.replace("_", "_1"),
-        &name.replace("_", "_1")
-    )
-}
 
-fn full_function_name(name: &str, module: &[String]) -> syn::Path {
-    let ident = quote::format_ident!("{}", name);
-    let prefix = module
-        .iter()
-        .map(|x| quote::format_ident!("{}", x))
-        .chain(std::iter::once(ident))
-        .collect::<Vec<_>>();
-    syn::parse_quote! {
-        crate :: #(#prefix)::*
-    }
-}
+    #[test]
+    fn direct_buffer() {
+        let ir = crate::ir::sample::simple_function();
+        let writer = JniWriter::new(JniOptions {
+            direct_buffer: true,
+            ..Default::default()
+        });
 
-#[cfg(test)]
-mod test {
-    use super::*;
-    use quote::ToTokens;
+        let expected = r#"
+            private static native int __riko_function(
+                java.nio.ByteBuffer buffer,
+                int length
+            );
+            public static org.bson. @ org.checkerframework.checker.nullness.qual.NonNull BsonValue function(
+                final org.bson. @ org.checkerframework.checker.nullness.qual.Nullable BsonValue arg_0,
+                final org.bson. @ org.checkerframework.checker.nullness.qual.Nullable BsonValue arg_1
+            ) {
+                final riko.DirectBuffer buffer = riko.DirectBuffer.acquire();
+                buffer.write(arg_0);
+                buffer.write(arg_1);
+                final int returned = __riko_function(
+                    buffer.buffer(),
+                    buffer.length()
+                );
+                final org.bson.BsonValue result = buffer.read(returned)
+                  .unwrap();
+                return result;
+            }
+        "#;
+        let actual =
+            writer.write_target_function(&ir.modules[0].functions[0], &ir.modules[0], &ir);
+        assert_eq!(
+            crate::normalize_source_code(expected),
+            crate::normalize_source_code(&actual),
+        );
 
-    #[test]
-    fn full_function_name() {
-        let none = super::full_function_name("function", &[])
-            .into_token_stream()
-            .to_string();
-        assert_eq!("crate :: function", none);
-        let some_1 = super::full_function_name("function", &["util".into()])
-            .into_token_stream()
-            .to_string();
-        assert_eq!("crate :: util :: function", some_1);
-        let some_2 = super::full_function_name("function", &["util".into(), "unix".into()])
+        let expected = quote! {
+            #[no_mangle]
+            #[allow(clippy::useless_conversion)]
+            #[allow(clippy::let_unit_value)]
+            #[allow(clippy::unit_arg)]
+            pub extern "C" fn Java_riko_1sample_example_Module__1_1riko_1function(
+                _env: ::jni::JNIEnv,
+                _class: ::jni::objects::JClass,
+                buffer_jni: ::jni::objects::JByteBuffer,
+                length_jni: ::jni::sys::jint
+            ) -> ::jni::sys::jint {
+                let mut buffer = match ::riko_runtime_jni::buffer::DirectBuffer::new(
+                    &_env,
+                    buffer_jni,
+                    length_jni
+                ) {
+                    Some(buffer) => buffer,
+                    None => return ::riko_runtime_jni::discarded(),
+                };
+                let result = crate::example::function(
+                    &(buffer.unmarshal()),
+                    buffer.unmarshal()
+                );
+                let result: ::riko_runtime::returned::Returned<::std::string::String> = result.into();
+                buffer.marshal(&result)
+            }
+        }
+        .to_string();
+        let actual = writer
+            .write_bridge_function(&ir.modules[0].functions[0], &ir.modules[0], &ir)
             .into_token_stream()
             .to_string();
-        assert_eq!("crate :: util :: unix :: function", some_2)
+        assert_eq!(expected, actual);
     }
 
     #[test]
-    fn mangle_function_name() {
-        let none = super::mangle_function_name("function", &[], "riko_sample").to_string();
-        assert_eq!("Java_riko_1sample_Module__1_1riko_1function", none);
-        let some_1 =
-            super::mangle_function_name("function", &["util".into()], "riko_sample").to_string();
-        assert_eq!("Java_riko_1sample_util_Module__1_1riko_1function", some_1);
-        let some_2 =
-            super::mangle_function_name("function", &["util".into(), "unix".into()], "riko_sample")
-                .to_string();
-        assert_eq!(
-            "Java_riko_1sample_util_unix_Module__1_1riko_1function",
-            some_2
-        )
-    }
+    fn lazy_structs() {
+        let ir = crate::ir::sample::returning_struct();
+        let writer = JniWriter::new(JniOptions {
+            lazy_structs: true,
+            ..Default::default()
+        });
 
-    #[test]
-    fn module() {
-        let ir = &crate::ir::sample::empty_module();
         let expected = r#"
-            package riko_sample.example;
-
-            public final class Module {
-                private Module() {}
+            private static native byte[] __riko_function(
+            );
+            public static org.bson. @ org.checkerframework.checker.nullness.qual.NonNull BsonValue function(
+            ) {
+                final byte[] returned = __riko_function(
+                );
+                final org.bson.BsonValue result = riko
+                  .Marshaler
+                  .decodeLazy(returned)
+                  .unwrap();
+                return result;
             }
         "#;
-        let actual = JniWriter.write_target_module(&ir.modules[0], &ir);
+        let actual =
+            writer.write_target_function(&ir.modules[0].functions[0], &ir.modules[0], &ir);
         assert_eq!(
             crate::normalize_source_code(expected),
             crate::normalize_source_code(&actual),
         );
+
+        let ir = crate::ir::sample::simple_function();
+        let actual =
+            writer.write_target_function(&ir.modules[0].functions[0], &ir.modules[0], &ir);
+        assert!(!actual.contains("decodeLazy"));
     }
 
     #[test]
-    fn simple_function() {
+    fn native_exceptions() {
         let ir = crate::ir::sample::simple_function();
+        let writer = JniWriter::new(JniOptions {
+            native_exceptions: true,
+            ..Default::default()
+        });
 
         let expected = r#"
             private static native byte[] __riko_function(
-                byte[] arg_0,
-                byte[] arg_1
+                byte[] args
             );
             public static org.bson. @ org.checkerframework.checker.nullness.qual.NonNull BsonValue function(
                 final org.bson. @ org.checkerframework.checker.nullness.qual.Nullable BsonValue arg_0,
                 final org.bson. @ org.checkerframework.checker.nullness.qual.Nullable BsonValue arg_1
             ) {
                 final byte[] returned = __riko_function(
-                    riko.Marshaler.encode(arg_0),
-                    riko.Marshaler.encode(arg_1)
+                    riko.Marshaler.encodeAll(arg_0, arg_1)
                 );
                 final org.bson.BsonValue result = riko
                   .Marshaler
-                  .decode(returned)
-                  .unwrap();
+                  .decodeValue(returned);
                 return result;
             }
         "#;
         let actual =
-            JniWriter.write_target_function(&ir.modules[0].functions[0], &ir.modules[0], &ir);
+            writer.write_target_function(&ir.modules[0].functions[0], &ir.modules[0], &ir);
         assert_eq!(
             crate::normalize_source_code(expected),
             crate::normalize_source_code(&actual),
@@ -348,45 +2113,39 @@ mod test {
             pub extern "C" fn Java_riko_1sample_example_Module__1_1riko_1function(
                 _env: ::jni::JNIEnv,
                 _class: ::jni::objects::JClass,
-                arg_0_jni: ::jni::sys::jbyteArray,
-                arg_1_jni: ::jni::sys::jbyteArray
+                args_jni: ::jni::sys::jbyteArray
             ) -> ::jni::sys::jbyteArray {
+                let mut args = match ::riko_runtime_jni::Arguments::new(&_env, args_jni) {
+                    Some(args) => args,
+                    None => return ::riko_runtime_jni::discarded(),
+                };
                 let result = crate::example::function(
-                    &(::riko_runtime_jni::unmarshal(&_env, arg_0_jni)),
-                    ::riko_runtime_jni::unmarshal(&_env, arg_1_jni)
+                    &(args.unmarshal()),
+                    args.unmarshal()
                 );
                 let result: ::riko_runtime::returned::Returned<::std::string::String> = result.into();
-                ::riko_runtime_jni::marshal(&result, &_env)
+                ::riko_runtime_jni::exception::marshal(&_env, result)
             }
         }
         .to_string();
-        let actual = JniWriter
+        let actual = writer
             .write_bridge_function(&ir.modules[0].functions[0], &ir.modules[0], &ir)
             .into_token_stream()
             .to_string();
         assert_eq!(expected, actual);
-    }
-
-    #[test]
-    fn returning_object() {
-        let ir = crate::ir::sample::returning_object();
 
+        let ir = crate::ir::sample::function_with_nothing();
         let expected = r#"
-            private static native byte[] __riko_function(
+            private static native void __riko_function(
             );
-            public static riko. @ org.checkerframework.checker.nullness.qual.NonNull Object function(
+            public static void function(
             ) {
-                final byte[] returned = __riko_function(
+                __riko_function(
                 );
-                final org.bson.BsonValue result = riko
-                  .Marshaler
-                  .decode(returned)
-                  .unwrap();
-                return new riko.Object(result.asInt32().intValue());
             }
         "#;
         let actual =
-            JniWriter.write_target_function(&ir.modules[0].functions[0], &ir.modules[0], &ir);
+            writer.write_target_function(&ir.modules[0].functions[0], &ir.modules[0], &ir);
         assert_eq!(
             crate::normalize_source_code(expected),
             crate::normalize_source_code(&actual),
@@ -400,15 +2159,14 @@ mod test {
             pub extern "C" fn Java_riko_1sample_example_Module__1_1riko_1function(
                 _env: ::jni::JNIEnv,
                 _class: ::jni::objects::JClass
-            ) -> ::jni::sys::jbyteArray {
+            ) {
                 let result = crate::example::function();
-                let result = ::riko_runtime::object::Shelve::shelve(result);
-                let result: ::riko_runtime::returned::Returned<::riko_runtime::Handle> = result.into();
-                ::riko_runtime_jni::marshal(&result, &_env)
+                let result: ::riko_runtime::returned::Returned<()> = result.into();
+                ::riko_runtime_jni::exception::unwrap(&_env, result);
             }
         }
-            .to_string();
-        let actual = JniWriter
+        .to_string();
+        let actual = writer
             .write_bridge_function(&ir.modules[0].functions[0], &ir.modules[0], &ir)
             .into_token_stream()
             .to_string();
@@ -416,23 +2174,38 @@ mod test {
     }
 
     #[test]
-    fn function_async() {
-        let ir = crate::ir::sample::function_async();
+    fn error_codes() {
+        let ir = crate::ir::sample::fallible_function();
+        let writer = JniWriter::new(JniOptions {
+            primitives: true,
+            error_codes: true,
+            ..Default::default()
+        });
 
         let expected = r#"
-            private static native byte[] __riko_function( );
-            public static riko. @ org.checkerframework.checker.nullness.qual.NonNull Future function( ) {
-                riko.Initializer.initialize();
-                final byte[] returned = __riko_function( );
-                final org.bson.BsonValue result = riko
-                    .Marshaler
-                    .decode(returned)
-                    .unwrap();
-                return new riko.Future(result.asInt32().intValue());
+            package riko_sample.example;
+
+            public final class Module {
+                private Module() {}
+
+                private static native int __riko_function(
+                );
+                public static int function(
+                ) {
+                    return __riko_function(
+                    );
+                }
+
+                /** Thrown when the Rust side returns a {@code std::io::Error}. */
+                public static final class IoErrorException extends riko.ReturnedException {
+                    public static final int CODE = 1942742412;
+                    private IoErrorException(final int handle) {
+                        super(CODE, handle);
+                    }
+                }
             }
         "#;
-        let actual =
-            JniWriter.write_target_function(&ir.modules[0].functions[0], &ir.modules[0], &ir);
+        let actual = writer.write_target_module(&ir.modules[0], &ir);
         assert_eq!(
             crate::normalize_source_code(expected),
             crate::normalize_source_code(&actual),
@@ -446,15 +2219,20 @@ mod test {
             pub extern "C" fn Java_riko_1sample_example_Module__1_1riko_1function(
                 _env: ::jni::JNIEnv,
                 _class: ::jni::objects::JClass
-            ) -> ::jni::sys::jbyteArray {
+            ) -> ::jni::sys::jint {
                 let result = crate::example::function();
-                let result = ::riko_runtime_jni::future::spawn::<_, _, ::std::string::String>(result);
-                let result: ::riko_runtime::returned::Returned<::riko_runtime::Handle> = result.into();
-                ::riko_runtime_jni::marshal(&result, &_env)
+                let result = ::riko_runtime_jni::exception::unwrap_coded::<_, i32, _>(
+                    &_env,
+                    result,
+                    "riko_sample/example/Module$IoErrorException"
+                );
+                let result: ::riko_runtime::returned::Returned<i32> = result.into();
+                let result = ::riko_runtime_jni::exception::unwrap(&_env, result);
+                ::riko_runtime_jni::primitive::into_jni(result.unwrap_or_default())
             }
         }
-            .to_string();
-        let actual = JniWriter
+        .to_string();
+        let actual = writer
             .write_bridge_function(&ir.modules[0].functions[0], &ir.modules[0], &ir)
             .into_token_stream()
             .to_string();
@@ -462,24 +2240,47 @@ mod test {
     }
 
     #[test]
-    fn function_with_nothing() {
-        let ir = crate::ir::sample::function_with_nothing();
+    fn error_class_name() {
+        let names = [
+            (quote! { std::io::Error }, "IoErrorException"),
+            (quote! { crate::Error }, "ErrorException"),
+            (quote! { serde_json::Error }, "SerdeJsonErrorException"),
+            (quote! { crate::LoveError }, "LoveErrorException"),
+        ];
+        for (error_type, expected) in names.iter() {
+            let error_type: syn::Path = syn::parse2(error_type.clone()).unwrap();
+            assert_eq!(*expected, ErrorClass::name_of(&error_type));
+        }
+    }
+
+    #[test]
+    fn try_variants() {
+        let ir = crate::ir::sample::fallible_function();
+        let writer = JniWriter::new(JniOptions {
+            primitives: true,
+            try_variants: true,
+            ..Default::default()
+        });
 
         let expected = r#"
-            private static native byte[] __riko_function(
+            private static native int __riko_try_function(
+                riko.Attempt attempt
             );
-            public static void function(
+            public static riko. @ org.checkerframework.checker.nullness.qual.NonNull Attempt tryFunction(
             ) {
-                final byte[] returned = __riko_function(
+                final riko.Attempt attempt = riko.Attempt.acquire();
+                final int returned = __riko_try_function(
+                    attempt
                 );
-                final org.bson.BsonValue result = riko
-                  .Marshaler
-                  .decode(returned)
-                  .unwrap();
+                if (attempt.isOk()) {
+                    attempt.succeed(returned);
+                }
+                return attempt;
             }
         "#;
-        let actual =
-            JniWriter.write_target_function(&ir.modules[0].functions[0], &ir.modules[0], &ir);
+        let actual = writer
+            .write_try_target_function(&ir.modules[0].functions[0])
+            .unwrap();
         assert_eq!(
             crate::normalize_source_code(expected),
             crate::normalize_source_code(&actual),
@@ -490,20 +2291,53 @@ mod test {
             #[allow(clippy::useless_conversion)]
             #[allow(clippy::let_unit_value)]
             #[allow(clippy::unit_arg)]
-            pub extern "C" fn Java_riko_1sample_example_Module__1_1riko_1function(
+            pub extern "C" fn Java_riko_1sample_example_Module__1_1riko_1try_1function(
                 _env: ::jni::JNIEnv,
-                _class: ::jni::objects::JClass
-            ) -> ::jni::sys::jbyteArray {
+                _class: ::jni::objects::JClass,
+                attempt_jni: ::jni::objects::JObject
+            ) -> ::jni::sys::jint {
                 let result = crate::example::function();
-                let result: ::riko_runtime::returned::Returned<()> = result.into();
-                ::riko_runtime_jni::marshal(&result, &_env)
+                let result = ::riko_runtime_jni::exception::attempt::<_, i32, _>(
+                    &_env,
+                    result,
+                    attempt_jni,
+                    1942742412,
+                    None
+                );
+                ::riko_runtime_jni::primitive::into_jni(result.flatten().unwrap_or_default())
             }
         }
         .to_string();
-        let actual = JniWriter
-            .write_bridge_function(&ir.modules[0].functions[0], &ir.modules[0], &ir)
+        let actual = writer
+            .write_try_bridge_function(&ir.modules[0].functions[0], &ir.modules[0], &ir)
+            .unwrap()
             .into_token_stream()
             .to_string();
         assert_eq!(expected, actual);
+
+        // Same exception class as the throwing variant
+        let writer = JniWriter::new(JniOptions {
+            primitives: true,
+            try_variants: true,
+            error_codes: true,
+            ..Default::default()
+        });
+        let expected = quote! {
+            1942742412,
+            Some("riko_sample/example/Module$IoErrorException")
+        }
+        .to_string();
+        let actual = writer
+            .write_try_bridge_function(&ir.modules[0].functions[0], &ir.modules[0], &ir)
+            .unwrap()
+            .into_token_stream()
+            .to_string();
+        assert!(actual.contains(&expected));
+
+        // Not fallible
+        let ir = crate::ir::sample::simple_function();
+        assert!(writer
+            .write_try_target_function(&ir.modules[0].functions[0])
+            .is_none());
     }
 }
@@ -15,6 +15,7 @@ use ir::Function;
 use ir::Module;
 use proc_macro2::TokenStream;
 use quote::ToTokens;
+use serde::Deserialize;
 use std::collections::BTreeMap;
 use std::collections::HashMap;
 use std::error::Error as StdError;
@@ -27,6 +28,20 @@ use thiserror::Error;
 use tokio::fs::File;
 use tokio::io::AsyncWriteExt;
 
+pub use jni::ExecutorBackend;
+pub use jni::ExecutorOptions;
+pub use jni::JniOptions;
+
+/// Options of code generation.
+///
+/// Read from `[package.metadata.riko]` of a crate, each target has its own table.
+#[derive(Deserialize, Default, Debug, Clone)]
+#[serde(default)]
+pub struct Options {
+    /// Options for target `jni`.
+    pub jni: JniOptions,
+}
+
 /// Target code generation.
 trait TargetCodeWriter {
     /// Generates target code for the entire crate and writes to a tree of files.
@@ -83,6 +98,7 @@ pub async fn bindgen<'a>(
     crate_entry: &Path,
     output_directory: &Path,
     targets: impl Iterator<Item = &'a String>,
+    options: &Options,
 ) -> Result<(), Error> {
     let mut bridge_path = output_directory.to_owned();
     bridge_path.push(format!("{}.rs", crate_name));
@@ -93,7 +109,7 @@ pub async fn bindgen<'a>(
     let ir = Crate::parse(crate_entry, crate_name.into()).await?;
     let mut bridge = TokenStream::default();
 
-    for (target, writer) in create_target_code_writers(targets).into_iter() {
+    for (target, writer) in create_target_code_writers(targets, options).into_iter() {
         bridge.extend(writer.write_bridge_all(&ir)?);
 
         let mut target_output_directory = output_directory.to_owned();
@@ -139,12 +155,16 @@ pub async fn bindgen<'a>(
 /// This is where [TargetCodeWriter] implementations are registered.
 fn create_target_code_writers<'a>(
     targets: impl Iterator<Item = &'a String>,
+    options: &Options,
 ) -> BTreeMap<String, Box<dyn TargetCodeWriter>> {
     let mut map = BTreeMap::<String, Box<dyn TargetCodeWriter>>::new();
     for target in targets {
         match target.as_str() {
             "jni" => {
-                map.insert(target.into(), Box::new(jni::JniWriter));
+                map.insert(
+                    target.into(),
+                    Box::new(jni::JniWriter::new(options.jni.clone())),
+                );
             }
             _ => log::warn!("Unsupported target `{}`", target),
         }
@@ -87,6 +87,12 @@ pub struct Fun {
     ///
     /// To specify the rule for a parameter, use `#[riko::marshal]` on the parameter.
     pub marshal: Option<MarshalingRule>,
+
+    /// Runs a synchronous function on a dedicated thread pool and returns a `Future` of its result
+    /// to the target side, so that a long call does not block the caller.
+    ///
+    /// Written as a bare `blocking`. Does not apply to async functions.
+    pub blocking: bool,
 }
 
 impl Args for Fun {
@@ -120,6 +126,9 @@ impl TryFrom<AttributeArgs> for Fun {
                     }
                     _ => return Err(syn::Error::new_spanned(pair.path, "Unrecognized argument")),
                 },
+                NestedMeta::Meta(Meta::Path(path)) if path.is_ident("blocking") => {
+                    result.blocking = true;
+                }
                 _ => return Err(syn::Error::new_spanned(arg, "Not a key-value")),
             }
         }
@@ -146,10 +155,12 @@ mod tests {
         let expected = Fun {
             name: "function2".to_owned(),
             marshal: Some(MarshalingRule::String),
+            blocking: true,
         };
         let actual: Fun = syn::parse_quote! {
             name = "function2",
             marshal = "String",
+            blocking,
         };
         assert_eq!(expected, actual);
     }
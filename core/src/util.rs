@@ -88,6 +88,36 @@ pub fn unwrap_type(ty: syn::Path) -> Path {
     default
 }
 
+/// Names of the layers of nested wrapper types enclosing the actual type, outermost first.
+///
+/// For example, for `Arc<Result<Option<String>>>`, they are `Arc`, `Result` and `Option`.
+pub fn wrapper_names(ty: syn::Path) -> Vec<String> {
+    TypeLayerIter::new(ty)
+        .filter_map(|layer| layer.segments.last().map(|t| t.ident.to_string()))
+        .take_while(|name| WRAPPERS.contains(&name.as_str()))
+        .collect()
+}
+
+/// The error type of the outermost [Result] layer, if it is spelled out.
+///
+/// For example, for `Option<Result<String, std::io::Error>>`, it is `std::io::Error`. It is [None]
+/// for an alias like `anyhow::Result<String>`.
+pub fn error_type(ty: syn::Path) -> Option<Path> {
+    let layer = TypeLayerIter::new(ty).find(|layer| {
+        layer
+            .segments
+            .last()
+            .map_or(false, |segment| segment.ident == "Result")
+    })?;
+    match &layer.segments.last()?.arguments {
+        PathArguments::AngleBracketed(arg) => match arg.args.iter().nth(1)? {
+            GenericArgument::Type(ty) => assert_type_is_path(ty).ok(),
+            _ => None,
+        },
+        _ => None,
+    }
+}
+
 pub fn assert_type_is_path(src: &Type) -> syn::Result<Path> {
     let msg = "Expect a type path or a unit";
     match src {
@@ -159,6 +189,41 @@ mod test {
             .collect::<Vec<_>>()
     }
 
+    #[test]
+    fn error_type() {
+        let expected: Path = syn::parse_quote! { std::io::Error };
+        let actual = super::error_type(syn::parse_quote! { Result<Option<Love>, std::io::Error> });
+        assert_eq!(Some(expected), actual);
+
+        let expected: Path = syn::parse_quote! { Error };
+        let actual = super::error_type(syn::parse_quote! { Arc<Result<(), Error>> });
+        assert_eq!(Some(expected), actual);
+
+        assert_eq!(None, super::error_type(syn::parse_quote! { anyhow::Result<()> }));
+        assert_eq!(None, super::error_type(syn::parse_quote! { Option<bool> }));
+    }
+
+    #[test]
+    fn wrapper_names() {
+        let expected = vec!["Option"];
+        let actual = super::wrapper_names(syn::parse_quote! { Option<bool> });
+        assert_eq!(expected, actual);
+
+        let expected = vec!["Arc", "Result", "Option"];
+        let actual = super::wrapper_names(
+            syn::parse_quote! { std::sync::Arc<Result<Option<Love>>, anyhow::Error> },
+        );
+        assert_eq!(expected, actual);
+
+        let expected = vec!["Result"];
+        let actual = super::wrapper_names(syn::parse_quote! { Result<(), Error> });
+        assert_eq!(expected, actual);
+
+        let expected = Vec::<String>::new();
+        let actual = super::wrapper_names(syn::parse_quote! { Vec<u8> });
+        assert_eq!(expected, actual);
+    }
+
     #[test]
     fn unwrap_type() {
         fn run(path: Path) -> String {
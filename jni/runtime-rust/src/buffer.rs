@@ -0,0 +1,124 @@
+//! Exchanging marshaled data through a direct `ByteBuffer`.
+
+use jni::objects::JByteBuffer;
+use jni::objects::JClass;
+use jni::sys::jint;
+use jni::JNIEnv;
+use riko_runtime::Marshal;
+use std::cell::Cell;
+use std::cell::RefCell;
+
+thread_local! {
+    /// Marshaled result that did not fit in the buffer, waiting to be fetched.
+    static OVERFLOW: RefCell<Vec<u8>> = Default::default();
+
+    /// Number of [DirectBuffer]s created on the current thread so far.
+    static CALLS: Cell<u64> = Cell::new(0);
+}
+
+/// Memory of a `riko.DirectBuffer` of the current thread.
+///
+/// The target side writes the arguments as consecutive BSON documents at the start of the buffer.
+/// After all arguments are read, the result overwrites them.
+///
+/// If the function calls back into the target side, which calls another function, the nested call
+/// reuses the buffer and may replace it with a bigger one. The result is then handed over like one
+/// not fitting in the buffer.
+pub struct DirectBuffer<'a> {
+    memory: &'a mut [u8],
+
+    /// Where the next argument starts.
+    cursor: usize,
+
+    /// Length of all arguments.
+    length: usize,
+
+    /// Value of [CALLS] when this call started.
+    call: u64,
+}
+
+impl<'a> DirectBuffer<'a> {
+    /// Wraps a buffer containing arguments of `length` bytes.
+    ///
+    /// # Returns
+    ///
+    /// [None] after throwing a `riko.MarshalException` if the arguments exceed the buffer or are
+    /// not made of whole BSON documents.
+    pub fn new(env: &'a JNIEnv, buffer: JByteBuffer, length: jint) -> Option<Self> {
+        let memory = env
+            .get_direct_buffer_address(buffer)
+            .expect("Failed to access the direct buffer");
+        let checked = match memory.get(..length.max(0) as usize) {
+            Some(arguments) if length >= 0 => crate::check_documents(arguments),
+            _ => Err(format!("Arguments of {} bytes exceed the buffer", length)),
+        };
+        if let Err(message) = checked {
+            crate::throw_marshal_exception(env, &message);
+            return None;
+        }
+        let length = length as usize;
+        let call = CALLS.with(|calls| {
+            let call = calls.get() + 1;
+            calls.set(call);
+            call
+        });
+        Some(Self {
+            memory,
+            cursor: 0,
+            length,
+            call,
+        })
+    }
+
+    /// Unmarshals the next argument.
+    pub fn unmarshal<T: Marshal>(&mut self) -> T {
+        let mut src = &self.memory[self.cursor..self.length];
+        let result = crate::decode(&mut src);
+        self.cursor = self.length - src.len();
+        result
+    }
+
+    /// Marshals the result into the buffer.
+    ///
+    /// # Returns
+    ///
+    /// The length of the result. If the buffer is too small or a nested call has happened, the
+    /// negated length, in which case the target side must grow the buffer and fetch the result.
+    pub fn marshal<T: Marshal>(&mut self, data: &T) -> jint {
+        self.write(crate::encode(data))
+    }
+
+    /// Marshals a returned value without an error into the buffer.
+    ///
+    /// The value is marshaled as a document like a function argument.
+    ///
+    /// # Returns
+    ///
+    /// Same as [marshal](DirectBuffer::marshal).
+    pub fn marshal_value<T: Marshal>(&mut self, value: Option<T>) -> jint {
+        self.write(crate::encode_value(value))
+    }
+
+    fn write(&mut self, encoded: Vec<u8>) -> jint {
+        let length = encoded.len();
+        let nested = CALLS.with(Cell::get) != self.call;
+        if !nested && length <= self.memory.len() {
+            self.memory[..length].copy_from_slice(&encoded);
+            length as jint
+        } else {
+            OVERFLOW.with(|overflow| *overflow.borrow_mut() = encoded);
+            -(length as jint)
+        }
+    }
+}
+
+#[no_mangle]
+pub extern "C" fn Java_riko_DirectBuffer_fetch(env: JNIEnv, _: JClass, dst: JByteBuffer) {
+    let memory = env
+        .get_direct_buffer_address(dst)
+        .expect("Failed to access the direct buffer");
+    OVERFLOW.with(|overflow| {
+        let src = std::mem::take(&mut *overflow.borrow_mut());
+        memory[..src.len()].copy_from_slice(&src);
+    })
+}
@@ -0,0 +1,162 @@
+//! Classes and members of the runtime, resolved once and reused by every call into the JVM.
+//!
+//! The cache is filled by the first bridge function that needs it, or by the initialization of
+//! the runtime, on a thread called from Java so that the classes are found by the class loader of
+//! the runtime. Holding a [GlobalRef] to each class keeps the IDs of its members valid.
+
+use jni::objects::GlobalRef;
+use jni::objects::JClass;
+use jni::objects::JMethodID;
+use jni::objects::JStaticMethodID;
+use jni::sys::jmethodID;
+use jni::JNIEnv;
+use std::collections::HashMap;
+use std::lazy::SyncOnceCell;
+use std::sync::RwLock;
+
+static CACHE: SyncOnceCell<Cache> = SyncOnceCell::new();
+
+/// Gets the cache, filling it using `env` if this is the first time.
+pub(crate) fn get(env: &JNIEnv) -> &'static Cache {
+    CACHE.get_or_init(|| Cache::new(env))
+}
+
+pub(crate) struct Cache {
+    /// `riko.Future`.
+    pub future: GlobalRef,
+
+    /// `riko.Future.completeAll(long[], byte[])`.
+    pub future_complete_all: MemberId<jmethodID>,
+
+    /// `riko.Publisher`.
+    pub publisher: GlobalRef,
+
+    /// `riko.Publisher.deliver(long, byte[], boolean)`.
+    pub publisher_deliver: MemberId<jmethodID>,
+
+    /// `riko.Task`.
+    pub task: GlobalRef,
+
+    /// `riko.Task.schedule(Executor, long)`.
+    pub task_schedule: MemberId<jmethodID>,
+
+    /// `riko.ReturnedException`.
+    pub returned_exception: GlobalRef,
+
+    /// `riko.ReturnedException(String, String)`.
+    pub returned_exception_new: MemberId<jmethodID>,
+
+    /// `riko.ReturnedException(int, int)`.
+    pub returned_exception_coded: MemberId<jmethodID>,
+
+    /// `riko.Attempt`.
+    pub attempt: GlobalRef,
+
+    /// `riko.Attempt.fail(ReturnedException)`.
+    pub attempt_fail: MemberId<jmethodID>,
+
+    /// Generated subclasses of `riko.ReturnedException` by their JNI names, and their constructors.
+    error_classes: RwLock<HashMap<&'static str, (GlobalRef, MemberId<jmethodID>)>>,
+}
+
+impl Cache {
+    fn new(env: &JNIEnv) -> Self {
+        let future = class(env, "riko/Future");
+        let future_complete_all = env
+            .get_static_method_id(JClass::from(future.as_obj()), "completeAll", "([J[B)V")
+            .expect("Method `riko.Future.completeAll` not found");
+        let publisher = class(env, "riko/Publisher");
+        let publisher_deliver = env
+            .get_static_method_id(JClass::from(publisher.as_obj()), "deliver", "(J[BZ)V")
+            .expect("Method `riko.Publisher.deliver` not found");
+        let task = class(env, "riko/Task");
+        let task_schedule = env
+            .get_static_method_id(
+                JClass::from(task.as_obj()),
+                "schedule",
+                "(Ljava/util/concurrent/Executor;J)V",
+            )
+            .expect("Method `riko.Task.schedule` not found");
+        let returned_exception = class(env, "riko/ReturnedException");
+        let returned_exception_new = env
+            .get_method_id(
+                JClass::from(returned_exception.as_obj()),
+                "<init>",
+                "(Ljava/lang/String;Ljava/lang/String;)V",
+            )
+            .expect("Constructor of `riko.ReturnedException` not found");
+        let returned_exception_coded = env
+            .get_method_id(JClass::from(returned_exception.as_obj()), "<init>", "(II)V")
+            .expect("Constructor of `riko.ReturnedException` not found");
+        let attempt = class(env, "riko/Attempt");
+        let attempt_fail = env
+            .get_method_id(
+                JClass::from(attempt.as_obj()),
+                "fail",
+                "(Lriko/ReturnedException;)V",
+            )
+            .expect("Method `riko.Attempt.fail` not found");
+        Self {
+            future,
+            future_complete_all: MemberId(future_complete_all.into_inner()),
+            publisher,
+            publisher_deliver: MemberId(publisher_deliver.into_inner()),
+            task,
+            task_schedule: MemberId(task_schedule.into_inner()),
+            returned_exception,
+            returned_exception_new: MemberId(returned_exception_new.into_inner()),
+            returned_exception_coded: MemberId(returned_exception_coded.into_inner()),
+            attempt,
+            attempt_fail: MemberId(attempt_fail.into_inner()),
+            error_classes: Default::default(),
+        }
+    }
+
+    /// Gets a generated subclass of `riko.ReturnedException` and its constructor accepting an
+    /// `int` handle, resolving them if this is the first time.
+    pub fn error_class(
+        &self,
+        env: &JNIEnv,
+        name: &'static str,
+    ) -> (GlobalRef, MemberId<jmethodID>) {
+        if let Some(found) = self.error_classes.read().unwrap().get(name) {
+            return found.clone();
+        }
+        self.error_classes
+            .write()
+            .unwrap()
+            .entry(name)
+            .or_insert_with(|| {
+                let class = class(env, name);
+                let constructor = env
+                    .get_method_id(JClass::from(class.as_obj()), "<init>", "(I)V")
+                    .expect("Constructor of an exception not found");
+                (class, MemberId(constructor.into_inner()))
+            })
+            .clone()
+    }
+}
+
+/// ID of a method, valid as long as its class is referenced by the [Cache].
+#[derive(Clone, Copy)]
+pub(crate) struct MemberId<T>(T);
+
+// SAFETY: IDs are not bound to any thread.
+unsafe impl<T> Send for MemberId<T> {}
+unsafe impl<T> Sync for MemberId<T> {}
+
+impl MemberId<jmethodID> {
+    pub fn method<'a>(self) -> JMethodID<'a> {
+        self.0.into()
+    }
+
+    pub fn static_method<'a>(self) -> JStaticMethodID<'a> {
+        self.0.into()
+    }
+}
+
+fn class(env: &JNIEnv, name: &str) -> GlobalRef {
+    env.find_class(name)
+        .and_then(|class| env.new_global_ref(class))
+        .unwrap_or_else(|_| panic!("Class `{}` not found", name))
+}
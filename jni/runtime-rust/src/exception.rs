@@ -0,0 +1,295 @@
+//! Throwing errors as Java exceptions instead of marshaling them.
+
+use jni::objects::JClass;
+use jni::objects::JObject;
+use jni::objects::JThrowable;
+use jni::objects::JValue;
+use jni::signature::JavaType;
+use jni::signature::Primitive;
+use jni::sys::jboolean;
+use jni::sys::jbyteArray;
+use jni::sys::jint;
+use jni::sys::jintArray;
+use jni::sys::jstring;
+use jni::sys::JNI_FALSE;
+use jni::JNIEnv;
+use riko_runtime::returned::Error;
+use riko_runtime::returned::Outcome;
+use riko_runtime::returned::Returned;
+use riko_runtime::Handle;
+use riko_runtime::Marshal;
+use std::convert::TryInto;
+use std::fmt::Debug;
+use std::fmt::Display;
+use std::lazy::SyncLazy;
+use std::sync::atomic::AtomicUsize;
+use std::sync::atomic::Ordering;
+use std::sync::Mutex;
+
+/// Number of shards of [ERRORS], each thread storing its errors in one of them.
+const SHARDS: usize = 16;
+
+/// Errors thrown with [unwrap_coded] or recorded with [attempt], each owned by its exception.
+static ERRORS: SyncLazy<Errors> = SyncLazy::new(Default::default);
+
+static NEXT_SHARD: AtomicUsize = AtomicUsize::new(0);
+
+thread_local! {
+    /// Shard of [ERRORS] storing the errors of the current thread.
+    static SHARD: usize = NEXT_SHARD.fetch_add(1, Ordering::Relaxed) % SHARDS;
+}
+
+trait Describe: Display + Debug + Send {}
+
+impl<T: Display + Debug + Send> Describe for T {}
+
+/// Errors kept until their exceptions are described or garbage collected.
+///
+/// A handle is never `0`, and tells both the shard and the slot of the error.
+#[derive(Default)]
+struct Errors {
+    shards: [Mutex<Shard>; SHARDS],
+}
+
+#[derive(Default)]
+struct Shard {
+    slots: Vec<Option<Box<dyn Describe>>>,
+    vacant: Vec<usize>,
+}
+
+impl Errors {
+    fn store(&self, error: Box<dyn Describe>) -> Handle {
+        let shard = SHARD.with(|shard| *shard);
+        let mut errors = self.shards[shard].lock().unwrap();
+        let index = match errors.vacant.pop() {
+            Some(index) => {
+                errors.slots[index] = Some(error);
+                index
+            }
+            None => {
+                errors.slots.push(Some(error));
+                errors.slots.len() - 1
+            }
+        };
+        ((index + 1) * SHARDS + shard)
+            .try_into()
+            .expect("Too many errors kept")
+    }
+
+    fn describe(&self, handle: Handle, debug: bool) -> Option<String> {
+        let (shard, index) = Self::locate(handle)?;
+        let errors = self.shards[shard].lock().unwrap();
+        let error = errors.slots.get(index)?.as_ref()?;
+        Some(if debug {
+            format!("{:?}", error)
+        } else {
+            error.to_string()
+        })
+    }
+
+    fn release(&self, handle: Handle) {
+        let (shard, index) = match Self::locate(handle) {
+            Some(location) => location,
+            None => return,
+        };
+        let mut errors = self.shards[shard].lock().unwrap();
+        if let Some(slot) = errors.slots.get_mut(index) {
+            if slot.take().is_some() {
+                errors.vacant.push(index);
+            }
+        }
+    }
+
+    fn locate(handle: Handle) -> Option<(usize, usize)> {
+        let handle: usize = handle.try_into().ok()?;
+        let index = (handle / SHARDS).checked_sub(1)?;
+        Some((handle % SHARDS, index))
+    }
+}
+
+/// Throws the error of a result as a `riko.ReturnedException` if any, otherwise returns the value.
+///
+/// After an exception is thrown, the returned value is discarded by the JVM.
+pub fn unwrap<T>(env: &JNIEnv, result: Returned<T>) -> Option<T> {
+    match result.error {
+        Some(error) => {
+            throw(env, error);
+            None
+        }
+        None => result.value,
+    }
+}
+
+/// Throws the error of a result as a `riko.ReturnedException` if any, otherwise marshals the value
+/// to JNI.
+///
+/// The value is marshaled as a document like a function argument.
+pub fn marshal<T: Marshal>(env: &JNIEnv, result: Returned<T>) -> jbyteArray {
+    if let Some(error) = result.error {
+        // No more JNI calls allowed while an exception is pending
+        throw(env, error);
+        return std::ptr::null_mut();
+    }
+    crate::marshal_value(result.value, env)
+}
+
+/// Throws the error of a result as an exception of `class` if any, otherwise returns the value.
+///
+/// `class` is a subclass of `riko.ReturnedException` in its JNI form, whose constructor accepts
+/// an `int` handle to the error. The error is kept for formatting it lazily instead of converting
+/// it to an [Error].
+pub fn unwrap_coded<R, T, E>(env: &JNIEnv, result: R, class: &'static str) -> Option<T>
+where
+    R: Outcome<T, E>,
+    E: Display + Debug + Send + 'static,
+{
+    match result.into_outcome() {
+        Ok(value) => value,
+        Err(error) => {
+            let exception = coded_exception(env, Box::new(error), 0, Some(class));
+            env.throw(exception).expect("Failed to throw an exception");
+            None
+        }
+    }
+}
+
+/// Records the error of a result into a `riko.Attempt` if any, otherwise returns the value.
+///
+/// The error is kept like with [unwrap_coded], and its exception is created but not thrown. It is
+/// of `class` if the error type has one, otherwise a `riko.ReturnedException` with `code`.
+///
+/// # Returns
+///
+/// [None] if there is an error.
+pub fn attempt<R, T, E>(
+    env: &JNIEnv,
+    result: R,
+    attempt: JObject,
+    code: jint,
+    class: Option<&'static str>,
+) -> Option<Option<T>>
+where
+    R: Outcome<T, E>,
+    E: Display + Debug + Send + 'static,
+{
+    match result.into_outcome() {
+        Ok(value) => Some(value),
+        Err(error) => {
+            let exception = coded_exception(env, Box::new(error), code, class);
+            env.call_method_unchecked(
+                attempt,
+                crate::cache::get(env).attempt_fail.method(),
+                JavaType::Primitive(Primitive::Void),
+                &[JValue::Object(exception.into())],
+            )
+            .expect("Failed to record an error");
+            None
+        }
+    }
+}
+
+/// Keeps an error and creates an exception for it, of `class` if any.
+fn coded_exception<'a>(
+    env: &JNIEnv<'a>,
+    error: Box<dyn Describe>,
+    code: jint,
+    class: Option<&'static str>,
+) -> JThrowable<'a> {
+    let handle = ERRORS.store(error);
+    let cache = crate::cache::get(env);
+    let exception = match class {
+        Some(class) => {
+            let (class, constructor) = cache.error_class(env, class);
+            env.new_object_unchecked(
+                JClass::from(class.as_obj()),
+                constructor.method(),
+                &[JValue::Int(handle)],
+            )
+        }
+        None => env.new_object_unchecked(
+            JClass::from(cache.returned_exception.as_obj()),
+            cache.returned_exception_coded.method(),
+            &[JValue::Int(code), JValue::Int(handle)],
+        ),
+    };
+    JThrowable::from(exception.expect("Failed to create an exception"))
+}
+
+fn throw(env: &JNIEnv, error: Error) {
+    let message = env
+        .new_string(&error.message)
+        .expect("Failed to create a Java string");
+    let debug = env
+        .new_string(&error.debug)
+        .expect("Failed to create a Java string");
+    let cache = crate::cache::get(env);
+    let exception = env
+        .new_object_unchecked(
+            JClass::from(cache.returned_exception.as_obj()),
+            cache.returned_exception_new.method(),
+            &[JValue::Object(message.into()), JValue::Object(debug.into())],
+        )
+        .expect("Failed to create a `riko.ReturnedException`");
+    env.throw(JThrowable::from(exception))
+        .expect("Failed to throw an exception");
+}
+
+#[no_mangle]
+pub extern "C" fn Java_riko_ReturnedException_describe(
+    env: JNIEnv,
+    _: JClass,
+    handle: Handle,
+    debug: jboolean,
+) -> jstring {
+    match ERRORS.describe(handle, debug != JNI_FALSE) {
+        Some(description) => env
+            .new_string(description)
+            .expect("Failed to create a Java string")
+            .into_inner(),
+        None => std::ptr::null_mut(),
+    }
+}
+
+/// Releases errors whose exceptions no longer need them.
+#[no_mangle]
+pub extern "C" fn Java_riko_ReturnedException_releaseAll(
+    env: JNIEnv,
+    _: JClass,
+    handles: jintArray,
+) {
+    let length = env
+        .get_array_length(handles)
+        .expect("Failed to read the handles");
+    let mut buffer = vec![0; length as usize];
+    env.get_int_array_region(handles, 0, &mut buffer)
+        .expect("Failed to read the handles");
+    for handle in buffer {
+        ERRORS.release(handle);
+    }
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+
+    #[test]
+    fn errors() {
+        let errors = Errors::default();
+        let first = errors.store(Box::new(std::fmt::Error));
+        let others = (0..4096)
+            .map(|_| errors.store(Box::new(std::fmt::Error)))
+            .collect::<Vec<_>>();
+        assert_ne!(0, first);
+        assert_eq!(Some("Error".into()), errors.describe(first, true));
+
+        errors.release(first);
+        assert_eq!(None, errors.describe(first, true));
+        assert_eq!(first, errors.store(Box::new(std::fmt::Error)));
+
+        for handle in others {
+            assert_eq!(Some("Error".into()), errors.describe(handle, true));
+        }
+        assert_eq!(None, errors.describe(0, true));
+        assert_eq!(None, errors.describe(-1, true));
+    }
+}
@@ -1,46 +1,310 @@
 //! Bridge functions for handling async functions.
+//!
+//! Results of completed futures are delivered to `riko.Future` by a dedicated dispatcher thread,
+//! so that the executor threads never call into the JVM. The dispatcher takes whatever has
+//! completed so far and delivers it in one upcall.
+//!
+//! With pollers reaping a [completion queue](crate::ring) in shared memory, the results are
+//! written there instead and the dispatcher only takes what does not fit.
+//!
+//! When the executor is a Java `Executor` instead, each future is polled on a Java thread, and its
+//! result is delivered right away on that thread.
 
+use jni::objects::GlobalRef;
+use jni::objects::JClass;
+use jni::objects::JObject;
+use jni::objects::JValue;
+use jni::signature::JavaType;
+use jni::signature::Primitive;
+use jni::sys::jlong;
+use jni::sys::jlongArray;
+use jni::JNIEnv;
+use jni::JavaVM;
+use riko_runtime::executor::ForeignTask;
 use riko_runtime::future::POOL;
 use riko_runtime::returned::Returned;
-use riko_runtime::Handle;
+use riko_runtime::FutureHandle;
 use riko_runtime::Marshal;
+use std::cell::Cell;
+use std::convert::TryInto;
 use std::future::Future;
+use std::lazy::SyncLazy;
+use std::lazy::SyncOnceCell;
+use std::panic::AssertUnwindSafe;
+use std::sync::Condvar;
+use std::sync::Mutex;
 
-fn notify_completed<T: Marshal>(handle: Handle, result: Returned<T>) {
-    let jvm_nullable = crate::java_vm();
-    let jvm = jvm_nullable
-        .as_ref()
-        .expect("Riko runtime is not initialized");
+/// Maximum number of results delivered in one upcall.
+const MAX_BATCH: usize = 1024;
+
+/// What `riko.Future` overwrites each handle with once its result is delivered.
+const DELIVERED: FutureHandle = -1;
+
+/// Marshaled results of completed futures waiting to be delivered.
+static COMPLETIONS: SyncLazy<Completions> = SyncLazy::new(Default::default);
+
+/// Starts the dispatcher when first forced.
+static DISPATCHER: SyncLazy<()> = SyncLazy::new(|| {
+    std::thread::Builder::new()
+        .name("riko-dispatcher".into())
+        .spawn(dispatch)
+        .expect("Failed to start the dispatcher of completed futures");
+});
+
+/// The Java `Executor` polling the futures, if chosen.
+static JAVA_EXECUTOR: SyncOnceCell<GlobalRef> = SyncOnceCell::new();
+
+thread_local! {
+    /// JNI environment of the current thread while it is polling a [ForeignTask] for Java.
+    static POLLING: Cell<*mut jni::sys::JNIEnv> = Cell::new(std::ptr::null_mut());
+}
+
+#[derive(Default)]
+struct Completions {
+    queue: Mutex<Vec<(FutureHandle, Vec<u8>)>>,
+    available: Condvar,
+}
+
+impl Completions {
+    fn push(&self, handle: FutureHandle, data: Vec<u8>) {
+        self.queue.lock().unwrap().push((handle, data));
+        self.available.notify_one();
+    }
+
+    /// Waits until something has completed and takes at most [MAX_BATCH] of them.
+    fn take(&self) -> Vec<(FutureHandle, Vec<u8>)> {
+        let mut queue = self.queue.lock().unwrap();
+        while queue.is_empty() {
+            queue = self.available.wait(queue).unwrap();
+        }
+        let count = queue.len().min(MAX_BATCH);
+        queue.drain(..count).collect()
+    }
+}
+
+/// Delivers completed results to `riko.Future` forever.
+fn dispatch() {
+    // Not holding the lock on the JVM forever
+    let jvm = {
+        let jvm_nullable = crate::java_vm();
+        let jvm = jvm_nullable
+            .as_ref()
+            .expect("Riko runtime is not initialized");
+        unsafe { JavaVM::from_raw(jvm.get_java_vm_pointer()) }.expect("Invalid JVM")
+    };
+    // Attached once for the rest of its life
     let env = jvm
-        .attach_current_thread()
-        .expect("Failed to attach current thread to JVM");
-    let data = crate::marshal(&result, &env);
-
-    env.call_static_method(
-        env.find_class("riko/Future")
-            .expect("Class `riko.Future` not found"),
-        "complete",
-        "(I[B)V",
-        &[handle.into(), data.into()],
-    )
-    .expect("Failed to notify the completion of a future");
-}
-
-/// Spawns a [Future] and returns a [Handle] to it.
-pub fn spawn<F, R, T>(task: F) -> Handle
+        .attach_current_thread_as_daemon()
+        .expect("Failed to attach the dispatcher to JVM");
+
+    loop {
+        let batch = COMPLETIONS.take();
+        let handles = batch.iter().map(|(handle, _)| *handle).collect::<Vec<_>>();
+        let data = batch
+            .into_iter()
+            .flat_map(|(_, data)| data)
+            .collect::<Vec<_>>();
+        deliver(&env, &handles, &data);
+    }
+}
+
+/// Delivers results to `riko.Future` in one upcall.
+///
+/// If the upcall throws, the exception is reported and the results not yet delivered are then
+/// delivered one at a time, so that no `riko.Future` waits forever.
+///
+/// The local references are deleted right away because the dispatcher never returns to the JVM.
+fn deliver(env: &JNIEnv, handles: &[FutureHandle], data: &[u8]) {
+    let handles_jni = env
+        .new_long_array(handles.len() as _)
+        .expect("Failed to create an array");
+    env.set_long_array_region(handles_jni, 0, handles)
+        .expect("Failed to fill an array");
+
+    if !complete_all(env, handles_jni, data) {
+        report_exception(env);
+        if handles.len() > 1 {
+            let mut progress = vec![0; handles.len()];
+            env.get_long_array_region(handles_jni, 0, &mut progress)
+                .expect("Failed to read an array");
+            let mut rest = data;
+            for (handle, progress) in handles.iter().zip(progress) {
+                let length = rest
+                    .get(..4)
+                    .map_or(rest.len(), |prefix| {
+                        i32::from_le_bytes(prefix.try_into().unwrap()) as usize
+                    })
+                    .min(rest.len());
+                let (item, remaining) = rest.split_at(length);
+                rest = remaining;
+                if progress != DELIVERED {
+                    deliver(env, &[*handle], item);
+                }
+            }
+        }
+    }
+
+    let _ = env.delete_local_ref(JObject::from(handles_jni));
+}
+
+/// Calls `riko.Future.completeAll`, returning `false` if it has thrown.
+fn complete_all(env: &JNIEnv, handles_jni: jlongArray, data: &[u8]) -> bool {
+    let cache = crate::cache::get(env);
+    let data_jni = env
+        .byte_array_from_slice(data)
+        .expect("Failed to send the marshaled data to JNI");
+    let delivered = env.call_static_method_unchecked(
+        JClass::from(cache.future.as_obj()),
+        cache.future_complete_all.static_method(),
+        JavaType::Primitive(Primitive::Void),
+        &[
+            JValue::Object(handles_jni.into()),
+            JValue::Object(data_jni.into()),
+        ],
+    );
+    let _ = env.delete_local_ref(JObject::from(data_jni));
+    delivered.is_ok()
+}
+
+/// Reports the pending exception, if any, to the uncaught-exception handler of the current thread
+/// without stopping it, like `riko.CompletionQueue` does.
+pub(crate) fn report_exception(env: &JNIEnv) {
+    let exception = match env.exception_occurred() {
+        Ok(exception) if !exception.is_null() => exception,
+        _ => return,
+    };
+    let _ = env.exception_clear();
+    let reported = env
+        .call_static_method("java/lang/Thread", "currentThread", "()Ljava/lang/Thread;", &[])
+        .and_then(JValue::l)
+        .and_then(|thread| {
+            let handler = env
+                .call_method(
+                    thread,
+                    "getUncaughtExceptionHandler",
+                    "()Ljava/lang/Thread$UncaughtExceptionHandler;",
+                    &[],
+                )
+                .and_then(JValue::l)?;
+            let result = env.call_method(
+                handler,
+                "uncaughtException",
+                "(Ljava/lang/Thread;Ljava/lang/Throwable;)V",
+                &[JValue::Object(thread), JValue::Object(exception.into())],
+            );
+            let _ = env.delete_local_ref(handler);
+            let _ = env.delete_local_ref(thread);
+            result
+        });
+    if reported.is_err() && env.exception_check().unwrap_or_default() {
+        // The handler itself has thrown
+        let _ = env.exception_describe();
+        let _ = env.exception_clear();
+    }
+    let _ = env.delete_local_ref(exception.into());
+}
+
+fn notify_completed<T: Marshal>(handle: FutureHandle, result: Returned<T>) {
+    let data = crate::encode(&result);
+    let polling = POLLING.with(Cell::get);
+    if !polling.is_null() {
+        let env = unsafe { JNIEnv::from_raw(polling) }.expect("Invalid JNI environment");
+        deliver(&env, &[handle], &data);
+    } else if !crate::ring::push(handle, &data) {
+        SyncLazy::force(&DISPATCHER);
+        COMPLETIONS.push(handle, data);
+    }
+}
+
+/// Chooses the Java `Executor` polling the futures.
+pub(crate) fn use_executor(env: &JNIEnv, executor: JObject) {
+    let executor = env
+        .new_global_ref(executor)
+        .expect("Failed to keep the Java executor");
+    let _ = JAVA_EXECUTOR.set(executor);
+}
+
+/// Hands a [ForeignTask] to the Java `Executor` through `riko.Task`.
+///
+/// The waking thread is attached to the JVM if it is not yet, and stays attached. A task that
+/// cannot be handed over is aborted, which fails its `riko.Future`.
+pub(crate) fn schedule(task: ForeignTask) {
+    let jvm_nullable = crate::java_vm();
+    let (executor, jvm) = match (JAVA_EXECUTOR.get(), jvm_nullable.as_ref()) {
+        (Some(executor), Some(jvm)) => (executor, jvm),
+        _ => return task.abort(),
+    };
+    let env = match jvm.attach_current_thread_as_daemon() {
+        Ok(env) => env,
+        Err(_) => return task.abort(),
+    };
+    let cache = crate::cache::get(&env);
+
+    let pointer = task.into_raw();
+    let scheduled = env.call_static_method_unchecked(
+        JClass::from(cache.task.as_obj()),
+        cache.task_schedule.static_method(),
+        JavaType::Primitive(Primitive::Void),
+        &[
+            JValue::Object(executor.as_obj()),
+            JValue::Long(pointer as usize as jlong),
+        ],
+    );
+    if scheduled.is_err() {
+        report_exception(&env);
+        // Rejected by the executor
+        unsafe { ForeignTask::from_raw(pointer) }.abort();
+    }
+}
+
+/// Spawns a [Future] and returns a [FutureHandle] to it.
+pub fn spawn<F, R, T>(task: F) -> FutureHandle
 where
     F: Future<Output = R> + Send + 'static,
     R: Into<Returned<T>>,
     T: Marshal + 'static,
 {
-    POOL.lock().unwrap().spawn(task, notify_completed)
+    POOL.spawn(task, notify_completed)
+}
+
+/// Runs a blocking function on a dedicated thread pool and returns a [FutureHandle] to its result.
+pub fn spawn_blocking<F, R, T>(task: F) -> FutureHandle
+where
+    F: FnOnce() -> R + Send + 'static,
+    R: Into<Returned<T>>,
+    T: Marshal + 'static,
+{
+    POOL.spawn_blocking(task, notify_completed)
 }
 
 #[no_mangle]
 pub extern "C" fn Java_riko_Future_cancel(
     _: ::jni::JNIEnv,
     _: ::jni::objects::JClass,
-    handle: Handle,
+    handle: FutureHandle,
 ) {
-    POOL.lock().unwrap().cancel(handle)
+    POOL.cancel(handle)
+}
+
+/// Polls a [ForeignTask], throwing an `IllegalStateException` if it panics.
+///
+/// The `riko.Future` of a panicking task is failed as it is dropped.
+#[no_mangle]
+pub extern "C" fn Java_riko_Task_poll(env: JNIEnv, _: JClass, pointer: jlong) {
+    let task = unsafe { ForeignTask::from_raw(pointer as usize as *const ()) };
+    POLLING.with(|polling| polling.set(env.get_native_interface()));
+    let polled = std::panic::catch_unwind(AssertUnwindSafe(|| task.run()));
+    POLLING.with(|polling| polling.set(std::ptr::null_mut()));
+    if let Err(panic) = polled {
+        let message = panic
+            .downcast_ref::<&str>()
+            .copied()
+            .or_else(|| panic.downcast_ref::<String>().map(String::as_str))
+            .unwrap_or_default();
+        crate::throw(
+            &env,
+            "java/lang/IllegalStateException",
+            &format!("Rust future panicked: {}", message),
+        )
+    }
 }
@@ -2,35 +2,62 @@
 
 #![feature(once_cell)]
 
+pub mod buffer;
+mod cache;
+pub mod exception;
 pub mod future;
 pub mod object;
+pub mod primitive;
+mod ring;
+pub mod stream;
 
-use bson::Bson;
-use bson::Document;
 use jni::objects::JClass;
+use jni::objects::JObject;
+use jni::objects::JString;
+use jni::sys::jboolean;
+use jni::sys::jbyte;
 use jni::sys::jbyteArray;
+use jni::sys::jdouble;
+use jni::sys::jfloat;
+use jni::sys::jint;
+use jni::sys::jlong;
 use jni::JNIEnv;
 use jni::JavaVM;
+use riko_runtime::executor::Backend;
+use riko_runtime::executor::ExecutorConfig;
 use riko_runtime::Marshal;
+use serde::de::value::UnitDeserializer;
+use serde::de::DeserializeOwned;
+use serde::Deserialize;
+use serde::Serialize;
+use std::cell::RefCell;
+use std::convert::TryInto;
 use std::lazy::SyncLazy;
 use std::sync::RwLock;
 use std::sync::RwLockReadGuard;
 
-const ROOT_KEY_OF_ARGUMENT_DOCUMENT: &str = "value";
+thread_local! {
+    /// Memory for receiving [Arguments], reused by each call on the same thread.
+    static ARGUMENTS: RefCell<Vec<u8>> = Default::default();
+}
 
 /// Marshals to JNI.
 pub fn marshal<T>(data: &T, env: &JNIEnv) -> jbyteArray
 where
     T: Marshal,
 {
-    let mut buffer = Vec::<u8>::new();
-    bson::to_bson(data)
-        .expect("Failed to encode the object as BSON")
-        .as_document()
-        .expect("The BSON is supposed to be a document")
-        .to_writer(&mut buffer)
-        .expect("Failed to write to the buffer");
-    env.byte_array_from_slice(&buffer)
+    env.byte_array_from_slice(&encode(data))
+        .expect("Failed to send the marshaled data to JNI")
+}
+
+/// Marshals a returned value without an error to JNI.
+///
+/// The value is marshaled as a document like a function argument.
+pub fn marshal_value<T>(value: Option<T>, env: &JNIEnv) -> jbyteArray
+where
+    T: Marshal,
+{
+    env.byte_array_from_slice(&encode_value(value))
         .expect("Failed to send the marshaled data to JNI")
 }
 
@@ -42,20 +69,167 @@ where
     let input = env
         .convert_byte_array(src)
         .expect("Failed to receive a byte array from JNI");
-    let document = if input.is_empty() {
-        Default::default()
-    } else {
-        Document::from_reader(&mut input.as_slice()).expect("Failed to parse the data as BSON")
+    decode(&mut input.as_slice())
+}
+
+/// Function arguments marshaled as consecutive BSON documents in a `byte[]`.
+pub struct Arguments {
+    data: Vec<u8>,
+
+    /// Where the next argument starts.
+    cursor: usize,
+}
+
+impl Arguments {
+    /// Receives the arguments from JNI.
+    ///
+    /// The array is copied into memory reused by the current thread instead of a new allocation.
+    ///
+    /// # Returns
+    ///
+    /// [None] after throwing a `riko.MarshalException` if the array is not made of whole BSON
+    /// documents.
+    pub fn new(env: &JNIEnv, src: jbyteArray) -> Option<Self> {
+        let length = env
+            .get_array_length(src)
+            .expect("Failed to receive a byte array from JNI") as usize;
+        let mut data = ARGUMENTS.with(|arguments| std::mem::take(&mut *arguments.borrow_mut()));
+        data.resize(length, 0);
+
+        // SAFETY: `i8` and `u8` have the same layout.
+        let dst = unsafe { std::slice::from_raw_parts_mut(data.as_mut_ptr() as *mut i8, length) };
+        env.get_byte_array_region(src, 0, dst)
+            .expect("Failed to receive a byte array from JNI");
+        let arguments = Self { data, cursor: 0 };
+        match check_documents(&arguments.data) {
+            Ok(()) => Some(arguments),
+            Err(message) => {
+                throw_marshal_exception(env, &message);
+                None
+            }
+        }
+    }
+
+    /// Unmarshals the next argument.
+    pub fn unmarshal<T: Marshal>(&mut self) -> T {
+        let mut src = &self.data[self.cursor..];
+        let result = decode(&mut src);
+        self.cursor = self.data.len() - src.len();
+        result
+    }
+}
+
+impl Drop for Arguments {
+    fn drop(&mut self) {
+        let data = std::mem::take(&mut self.data);
+        ARGUMENTS.with(|arguments| *arguments.borrow_mut() = data);
+    }
+}
+
+/// Encodes data as a BSON document.
+fn encode<T: Serialize>(data: &T) -> Vec<u8> {
+    bson::to_vec(data).expect("Failed to encode the object as BSON")
+}
+
+/// Encodes a returned value as a document like a function argument.
+fn encode_value<T: Serialize>(value: Option<T>) -> Vec<u8> {
+    encode(&Argument { value })
+}
+
+/// Document wrapping a function argument, or a returned value without an error.
+#[derive(Serialize, Deserialize)]
+#[serde(bound(deserialize = "T: DeserializeOwned"))]
+struct Argument<T> {
+    #[serde(default = "missing_argument")]
+    value: T,
+}
+
+/// Deserializes an argument absent from its document as if it were null.
+fn missing_argument<T: DeserializeOwned>() -> T {
+    T::deserialize(UnitDeserializer::<serde::de::value::Error>::new()).expect("Type mismatch")
+}
+
+/// Checks that `src` consists of whole BSON documents, so that [decode] never reads past its end.
+fn check_documents(mut src: &[u8]) -> Result<(), String> {
+    while !src.is_empty() {
+        let length = match src.get(..4) {
+            Some(prefix) => i32::from_le_bytes(prefix.try_into().unwrap()),
+            None => return Err(format!("Truncated length prefix of {} bytes", src.len())),
+        };
+        if length < 5 || length as usize > src.len() {
+            return Err(format!(
+                "Invalid document length {} with {} bytes left",
+                length,
+                src.len()
+            ));
+        }
+        src = &src[length as usize..];
+    }
+    Ok(())
+}
+
+/// Throws a `riko.MarshalException` for data received from JNI that cannot be decoded.
+fn throw_marshal_exception(env: &JNIEnv, message: &str) {
+    throw(env, "riko/MarshalException", message)
+}
+
+/// Throws a new exception of `class` in its JNI form.
+fn throw(env: &JNIEnv, class: &str, message: &str) {
+    env.throw_new(class, message)
+        .expect("Failed to throw an exception");
+}
+
+/// Value returned to JNI once an exception is thrown, which the JVM discards.
+pub trait Discarded {
+    fn discarded() -> Self;
+}
+
+macro_rules! impl_discarded {
+    ($($jni:ty),*) => {
+        $(
+            impl Discarded for $jni {
+                fn discarded() -> Self {
+                    Default::default()
+                }
+            }
+        )*
     };
-    let entry = document
-        .into_iter()
-        .find(|(key, _)| key == ROOT_KEY_OF_ARGUMENT_DOCUMENT);
-    if let Some((_, value)) = entry {
-        bson::from_bson(value)
-    } else {
-        bson::from_bson(Bson::Null)
+}
+
+impl_discarded!((), jboolean, jbyte, jint, jlong, jfloat, jdouble);
+
+impl Discarded for jbyteArray {
+    fn discarded() -> Self {
+        std::ptr::null_mut()
     }
-    .expect("Type mismatch")
+}
+
+/// Returns from a bridge function once an exception is thrown, see [Discarded].
+pub fn discarded<T: Discarded>() -> T {
+    T::discarded()
+}
+
+/// Decodes a function argument from the BSON document at the start of `src`.
+///
+/// The value is deserialized straight from the bytes without building a [bson::Document].
+///
+/// `src` is advanced to the end of the document. An empty `src` is treated as an empty document.
+/// Its length prefix must have been checked by [check_documents].
+fn decode<T: Marshal>(src: &mut &[u8]) -> T {
+    if src.is_empty() {
+        return missing_argument();
+    }
+    let length = src
+        .get(..4)
+        .and_then(|prefix| prefix.try_into().ok())
+        .map(i32::from_le_bytes)
+        .expect("Failed to parse the data as BSON") as usize;
+    let whole: &[u8] = *src;
+    let (document, rest) = whole.split_at(length);
+    *src = rest;
+    bson::from_slice::<Argument<T>>(document)
+        .expect("Type mismatch")
+        .value
 }
 
 fn java_vm() -> RwLockReadGuard<'static, Option<JavaVM>> {
@@ -65,7 +239,124 @@ fn java_vm() -> RwLockReadGuard<'static, Option<JavaVM>> {
 static JVM: SyncLazy<RwLock<Option<JavaVM>>> = SyncLazy::new(Default::default);
 
 #[no_mangle]
-pub extern "C" fn Java_riko_Initializer__1_1riko_1initialize(env: ::jni::JNIEnv, _: JClass) {
+#[allow(clippy::too_many_arguments)]
+pub extern "C" fn Java_riko_Initializer__1_1riko_1initialize(
+    env: ::jni::JNIEnv,
+    _: JClass,
+    backend: JString,
+    workers: jint,
+    cores: jint,
+    thread_name: JString,
+    stack_size: jlong,
+    pollers: jint,
+    executor: JObject,
+    blocking_threads: jint,
+) {
+    crate::cache::get(&env);
+
+    let name: String = env
+        .get_string(backend)
+        .expect("Failed to receive a string from JNI")
+        .into();
+    let backend = match name.as_str() {
+        "FUTURES" => Backend::Futures,
+        "TOKIO" => Backend::Tokio,
+        "TOKIO_CURRENT_THREAD" => Backend::TokioCurrentThread,
+        "JAVA" => Backend::Foreign,
+        _ => {
+            let message = format!("Unknown executor backend `{}`", name);
+            return throw(&env, "java/lang/IllegalArgumentException", &message);
+        }
+    };
+    if !backend.is_available() {
+        let message = format!("Riko runtime is built without feature `tokio` for `{}`", name);
+        return throw(&env, "java/lang/IllegalArgumentException", &message);
+    }
+    if backend == Backend::Foreign {
+        crate::future::use_executor(&env, executor);
+    }
+    let config = ExecutorConfig {
+        backend,
+        workers: workers.max(0) as usize,
+        cores: cores.max(0) as usize,
+        thread_name: env
+            .get_string(thread_name)
+            .expect("Failed to receive a string from JNI")
+            .into(),
+        stack_size: stack_size.max(0) as usize,
+        blocking_threads: blocking_threads.max(0) as usize,
+        scheduler: Some(crate::future::schedule),
+    };
+    // Already chosen if some async function has run without Java initializing the runtime
+    if let Err(config) = riko_runtime::executor::configure(config) {
+        let current = riko_runtime::executor::config();
+        let config = ExecutorConfig {
+            scheduler: current.scheduler,
+            ..config
+        };
+        if config != *current {
+            let message = format!("Riko runtime is already running with {:?}", current);
+            return throw(&env, "java/lang/IllegalStateException", &message);
+        }
+    }
+    if pollers > 0 {
+        crate::ring::open();
+    }
+
     let mut guard = JVM.write().unwrap();
     *guard = env.get_java_vm().unwrap().into();
 }
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+    use riko_runtime::returned::Returned;
+
+    #[test]
+    fn decode() {
+        let mut src = Vec::new();
+        src.extend(bson::to_vec(&bson::doc! { "value": "Riko" }).unwrap());
+        src.extend(bson::to_vec(&bson::doc! {}).unwrap());
+        src.extend(bson::to_vec(&bson::doc! { "value": 1 }).unwrap());
+        let mut src = src.as_slice();
+
+        assert_eq!("Riko", super::decode::<String>(&mut src));
+        assert_eq!(None, super::decode::<Option<i32>>(&mut src));
+        assert_eq!(1, super::decode::<i32>(&mut src));
+        assert!(src.is_empty());
+        assert_eq!(None, super::decode::<Option<i32>>(&mut src));
+    }
+
+    #[test]
+    fn check_documents() {
+        let mut src = bson::to_vec(&bson::doc! { "value": 1 }).unwrap();
+        src.extend(bson::to_vec(&bson::doc! {}).unwrap());
+        assert_eq!(Ok(()), super::check_documents(&src));
+        assert_eq!(Ok(()), super::check_documents(&[]));
+        assert!(super::check_documents(&src[..src.len() - 1]).is_err());
+        assert!(super::check_documents(&src[..2]).is_err());
+        assert!(super::check_documents(&[4, 0, 0, 0]).is_err());
+        assert!(super::check_documents(&[0xff, 0xff, 0xff, 0xff, 0]).is_err());
+    }
+
+    #[test]
+    fn encode_value() {
+        assert_eq!(
+            bson::to_vec(&bson::doc! { "value": 1 }).unwrap(),
+            super::encode_value(Some(1))
+        );
+        assert_eq!(
+            bson::to_vec(&bson::doc! { "value": null }).unwrap(),
+            super::encode_value::<i32>(None)
+        );
+    }
+
+    #[test]
+    fn encode() {
+        let returned: Returned<i32> = 1i32.into();
+        assert_eq!(
+            bson::to_vec(&bson::doc! { "error": null, "value": 1 }).unwrap(),
+            super::encode(&returned)
+        );
+    }
+}
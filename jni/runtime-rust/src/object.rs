@@ -1,23 +1,43 @@
 //! JNI bridge functions for heap-allocated objects.
+//!
+//! `riko.Object` passes its handle as an argument, so that nothing is read from the Java object.
+//! Closing one object is an instance method, so that the object stays reachable during the call.
 
+use jni::objects::JClass;
 use jni::objects::JObject;
+use jni::sys::jlong;
+use jni::sys::jlongArray;
 use jni::JNIEnv;
 use riko_runtime::object::POOL;
-use riko_runtime::Handle;
+use riko_runtime::ObjectHandle;
 
 #[no_mangle]
-pub extern "C" fn Java_riko_Object_close(env: JNIEnv, this: JObject) {
-    POOL.drop(get_handle(env, this));
+pub extern "C" fn Java_riko_Object_close(_: JNIEnv, _: JObject, handle: ObjectHandle) {
+    POOL.drop(handle);
 }
 
 #[no_mangle]
-pub extern "C" fn Java_riko_Object_alive(env: JNIEnv, this: JObject) -> bool {
-    POOL.alive(get_handle(env, this))
+pub extern "C" fn Java_riko_Object_alive(_: JNIEnv, _: JClass, handle: ObjectHandle) -> bool {
+    POOL.alive(handle)
 }
 
-fn get_handle(env: JNIEnv, this: JObject) -> Handle {
-    env.get_field(this, "handle", "I")
-        .expect("Failed to get field `handle`")
-        .i()
-        .expect("`handle` is not an int")
+#[no_mangle]
+pub extern "C" fn Java_riko_Object_closeAll(env: JNIEnv, _: JClass, handles: jlongArray) {
+    let length = env
+        .get_array_length(handles)
+        .expect("Failed to read the handles");
+    let mut buffer = vec![0; length as usize];
+    env.get_long_array_region(handles, 0, &mut buffer)
+        .expect("Failed to read the handles");
+    POOL.drop_all(&buffer);
+}
+
+#[no_mangle]
+pub extern "C" fn Java_riko_Object_pendingReclamations(_: JNIEnv, _: JClass) -> jlong {
+    riko_runtime::object::reclamation().pending as jlong
+}
+
+#[no_mangle]
+pub extern "C" fn Java_riko_Object_pendingReclamationBytes(_: JNIEnv, _: JClass) -> jlong {
+    riko_runtime::object::reclamation().pending_bytes as jlong
 }
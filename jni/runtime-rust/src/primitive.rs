@@ -0,0 +1,141 @@
+//! Passing primitives as they are without marshaling.
+
+use jni::sys::jboolean;
+use jni::sys::jbyte;
+use jni::sys::jdouble;
+use jni::sys::jfloat;
+use jni::sys::jint;
+use jni::sys::jlong;
+use jni::sys::JNI_FALSE;
+use jni::sys::JNI_TRUE;
+
+/// Bit indicating the presence of a value packed by [pack].
+const PRESENT: jlong = 1 << 32;
+
+/// Rust types having an equivalent JNI primitive.
+pub trait Primitive: Sized {
+    /// The JNI primitive.
+    type Jni;
+
+    fn from_jni(src: Self::Jni) -> Self;
+
+    fn into_jni(self) -> Self::Jni;
+}
+
+macro_rules! impl_primitive {
+    ($rust:ty, $jni:ty) => {
+        impl Primitive for $rust {
+            type Jni = $jni;
+
+            fn from_jni(src: Self::Jni) -> Self {
+                src
+            }
+
+            fn into_jni(self) -> Self::Jni {
+                self
+            }
+        }
+    };
+}
+
+impl_primitive!(i8, jbyte);
+impl_primitive!(i32, jint);
+impl_primitive!(i64, jlong);
+impl_primitive!(f32, jfloat);
+impl_primitive!(f64, jdouble);
+
+impl Primitive for bool {
+    type Jni = jboolean;
+
+    fn from_jni(src: Self::Jni) -> Self {
+        src != JNI_FALSE
+    }
+
+    fn into_jni(self) -> Self::Jni {
+        if self {
+            JNI_TRUE
+        } else {
+            JNI_FALSE
+        }
+    }
+}
+
+/// [Primitive]s fitting in 32 bits.
+pub trait Packable: Primitive {
+    fn into_bits(self) -> u32;
+}
+
+impl Packable for bool {
+    fn into_bits(self) -> u32 {
+        self.into()
+    }
+}
+
+impl Packable for i8 {
+    fn into_bits(self) -> u32 {
+        self as u8 as u32
+    }
+}
+
+impl Packable for i32 {
+    fn into_bits(self) -> u32 {
+        self as u32
+    }
+}
+
+impl Packable for f32 {
+    fn into_bits(self) -> u32 {
+        self.to_bits()
+    }
+}
+
+/// Receives a primitive from JNI.
+pub fn from_jni<T: Primitive>(src: T::Jni) -> T {
+    T::from_jni(src)
+}
+
+/// Sends a primitive to JNI.
+pub fn into_jni<T: Primitive>(src: T) -> T::Jni {
+    src.into_jni()
+}
+
+/// Receives an [Option] of a primitive from JNI, passed as its presence and its value.
+pub fn optional<T: Primitive>(present: jboolean, src: T::Jni) -> Option<T> {
+    if present == JNI_FALSE {
+        None
+    } else {
+        Some(T::from_jni(src))
+    }
+}
+
+/// Packs an [Option] of a primitive inside a `long` to be sent to JNI.
+///
+/// The value occupies the lower half, and the presence occupies the lowest bit of the upper half.
+pub fn pack<T: Packable>(src: Option<T>) -> jlong {
+    src.map_or(0, |value| PRESENT | value.into_bits() as jlong)
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+
+    #[test]
+    fn pack() {
+        assert_eq!(0, super::pack::<i32>(None));
+        assert_eq!(PRESENT, super::pack(Some(0)));
+        assert_eq!(PRESENT | 0xFFFF_FFFF, super::pack(Some(-1)));
+        assert_eq!(PRESENT | 0xFF, super::pack(Some(-1i8)));
+        assert_eq!(PRESENT | 1, super::pack(Some(true)));
+        assert_eq!(
+            PRESENT | 1.5f32.to_bits() as jlong,
+            super::pack(Some(1.5f32))
+        );
+    }
+
+    #[test]
+    fn optional() {
+        assert_eq!(None, super::optional::<i64>(JNI_FALSE, 1));
+        assert_eq!(Some(1), super::optional::<i64>(JNI_TRUE, 1));
+        assert_eq!(Some(false), super::optional::<bool>(JNI_TRUE, JNI_FALSE));
+    }
+}
@@ -0,0 +1,368 @@
+//! Completion queue in memory shared with Java, reaped by Java pollers instead of upcalls.
+//!
+//! Results of completed futures are written into an arena, and a record pointing to each of them
+//! is written into a ring. Both are exposed to `riko.CompletionQueue` as direct `ByteBuffer`s.
+//! Java reaps the records in order and then releases them, so completing a future never calls
+//! into the JVM. A result not fitting in the queue is left to the dispatcher thread.
+//!
+//! Pushing is lock-free. A producer reserves a record and the room for its result with one CAS on
+//! a cursor packing both, writes them, and then publishes the record by setting its status. As
+//! producers finish out of order, Java only reaps up to the first record not yet published. A
+//! counter of published records is shared as well, so that Java can find out if there is anything
+//! to reap without calling into Rust.
+//!
+//! # Layout of a record
+//!
+//! All in the native byte order:
+//!
+//! * `long`: Status, the sequence number of the record plus one once it is published, so that it
+//!   tells a published record from one being written or one of the previous lap
+//! * `long`: [FutureHandle]
+//! * `int`: The end of the result in the arena, counted since the arena was created and wrapping
+//!   around at 2<sup>32</sup>
+//! * `int`: Offset of the result in the arena
+//! * `int`: Length of the result
+//! * `int`: Unused
+
+use jni::objects::JClass;
+use jni::sys::jlong;
+use jni::sys::jobject;
+use jni::JNIEnv;
+use riko_runtime::FutureHandle;
+use std::convert::TryInto;
+use std::lazy::SyncOnceCell;
+use std::sync::atomic::AtomicU64;
+use std::sync::atomic::AtomicUsize;
+use std::sync::atomic::Ordering;
+use std::sync::Condvar;
+use std::sync::Mutex;
+use std::time::Duration;
+
+/// Number of records in the ring, must be a power of 2.
+const RECORDS: usize = 4096;
+
+const RECORD_SIZE: usize = 32;
+
+/// Size of the arena in bytes.
+const ARENA: usize = 4 << 20;
+
+static RING: SyncOnceCell<Ring> = SyncOnceCell::new();
+
+/// Creates the queue so that completions go through it from now on.
+pub(crate) fn open() {
+    RING.get_or_init(Default::default);
+}
+
+/// Queues the result of a completed future.
+///
+/// # Returns
+///
+/// `false` if the queue is not open or is full.
+pub(crate) fn push(handle: FutureHandle, data: &[u8]) -> bool {
+    RING.get().map_or(false, |ring| ring.push(handle, data))
+}
+
+struct Ring {
+    records: *mut u8,
+    arena: *mut u8,
+
+    /// Number of records reserved so far in the high half, and the end of the last result reserved
+    /// in the low half, both wrapping around.
+    cursor: AtomicU64,
+
+    /// Number of records published so far.
+    published: AtomicU64,
+
+    /// Number of records released by Java so far.
+    released: AtomicU64,
+
+    /// End of the last result released by Java.
+    arena_released: AtomicU64,
+
+    /// Number of Java pollers waiting in [wait](Ring::wait).
+    sleepers: AtomicUsize,
+    signal: Mutex<()>,
+    available: Condvar,
+}
+
+// SAFETY: Each producer only writes the parts of the memory it has reserved through `cursor`,
+// which Java does not read until they are published and no other producer reserves until Java
+// releases them.
+unsafe impl Send for Ring {}
+unsafe impl Sync for Ring {}
+
+impl Default for Ring {
+    fn default() -> Self {
+        Self {
+            records: allocate(RECORDS * RECORD_SIZE),
+            arena: allocate(ARENA),
+            cursor: Default::default(),
+            published: Default::default(),
+            released: Default::default(),
+            arena_released: Default::default(),
+            sleepers: Default::default(),
+            signal: Default::default(),
+            available: Default::default(),
+        }
+    }
+}
+
+impl Ring {
+    fn push(&self, handle: FutureHandle, data: &[u8]) -> bool {
+        if data.len() > ARENA {
+            return false;
+        }
+        let mut cursor = self.cursor.load(Ordering::Acquire);
+        let (index, end, offset) = loop {
+            let index = (cursor >> 32) as u32;
+            if index.wrapping_sub(self.released.load(Ordering::Acquire) as u32) >= RECORDS as u32 {
+                return false;
+            }
+
+            // A result never wraps around the end of the arena
+            let mut start = cursor as u32;
+            let mut offset = start as usize % ARENA;
+            if offset + data.len() > ARENA {
+                start = start.wrapping_add((ARENA - offset) as u32);
+                offset = 0;
+            }
+            let end = start.wrapping_add(data.len() as u32);
+            let arena_released = self.arena_released.load(Ordering::Acquire) as u32;
+            if end.wrapping_sub(arena_released) > ARENA as u32 {
+                return false;
+            }
+
+            let next = (u64::from(index.wrapping_add(1)) << 32) | u64::from(end);
+            match self.cursor.compare_exchange_weak(
+                cursor,
+                next,
+                Ordering::AcqRel,
+                Ordering::Acquire,
+            ) {
+                Ok(_) => break (index, end, offset),
+                Err(current) => cursor = current,
+            }
+        };
+
+        let slot = (index as usize & (RECORDS - 1)) * RECORD_SIZE;
+        let mut record = [0u8; RECORD_SIZE - 8];
+        record[0..8].copy_from_slice(&handle.to_ne_bytes());
+        record[8..12].copy_from_slice(&(end as i32).to_ne_bytes());
+        record[12..16].copy_from_slice(&(offset as i32).to_ne_bytes());
+        record[16..20].copy_from_slice(&(data.len() as i32).to_ne_bytes());
+        unsafe {
+            std::ptr::copy_nonoverlapping(data.as_ptr(), self.arena.add(offset), data.len());
+            let fields = self.records.add(slot + 8);
+            std::ptr::copy_nonoverlapping(record.as_ptr(), fields, record.len());
+        }
+        self.status(index).store(status_of(index), Ordering::Release);
+        self.published.fetch_add(1, Ordering::SeqCst);
+
+        if self.sleepers.load(Ordering::SeqCst) > 0 {
+            let _guard = self.signal.lock().unwrap();
+            self.available.notify_all();
+        }
+        true
+    }
+
+    /// Status of the record numbered `index`, see the [layout](self#layout-of-a-record).
+    fn status(&self, index: u32) -> &AtomicU64 {
+        let slot = (index as usize & (RECORDS - 1)) * RECORD_SIZE;
+        unsafe { &*(self.records.add(slot) as *const AtomicU64) }
+    }
+
+    /// Counts the records published one after another since `from`, and makes them visible to
+    /// the calling thread.
+    fn ready(&self, from: u64) -> u64 {
+        let mut index = from;
+        while index - from < RECORDS as u64
+            && self.status(index as u32).load(Ordering::Acquire) == status_of(index as u32)
+        {
+            index += 1;
+        }
+        index
+    }
+
+    /// Makes room for `records` and the results they point to, ending at `arena`.
+    fn release(&self, records: u64, arena: u64) {
+        self.arena_released.store(arena, Ordering::Release);
+        self.released.store(records, Ordering::Release);
+    }
+
+    /// Waits until more than `seen` records are published, or until `timeout`.
+    fn wait(&self, seen: u64, timeout: Duration) {
+        self.sleepers.fetch_add(1, Ordering::SeqCst);
+        let guard = self.signal.lock().unwrap();
+        if self.published.load(Ordering::SeqCst) == seen {
+            let _ = self.available.wait_timeout(guard, timeout).unwrap();
+        }
+        self.sleepers.fetch_sub(1, Ordering::SeqCst);
+    }
+}
+
+/// Status of a published record numbered `index`, never `0` which an unwritten record has.
+fn status_of(index: u32) -> u64 {
+    u64::from(index) + 1
+}
+
+/// Allocates zeroed memory living as long as the process, aligned for the status of a record.
+fn allocate(size: usize) -> *mut u8 {
+    let words = (size + 7) / 8;
+    Box::leak(vec![0u64; words].into_boxed_slice()).as_mut_ptr() as *mut u8
+}
+
+fn ring() -> &'static Ring {
+    RING.get().expect("Completion queue is not open")
+}
+
+#[no_mangle]
+pub extern "C" fn Java_riko_CompletionQueue_recordsBuffer(env: JNIEnv, _: JClass) -> jobject {
+    let size = RECORDS * RECORD_SIZE;
+    let records = unsafe { std::slice::from_raw_parts_mut(ring().records, size) };
+    env.new_direct_byte_buffer(records)
+        .expect("Failed to share the completion queue")
+        .into_inner()
+}
+
+#[no_mangle]
+pub extern "C" fn Java_riko_CompletionQueue_arenaBuffer(env: JNIEnv, _: JClass) -> jobject {
+    let arena = unsafe { std::slice::from_raw_parts_mut(ring().arena, ARENA) };
+    env.new_direct_byte_buffer(arena)
+        .expect("Failed to share the completion queue")
+        .into_inner()
+}
+
+/// Shares the number of records published so far.
+///
+/// Reading it from Java does not make the records visible, which is what
+/// [published](Java_riko_CompletionQueue_published) does. Neither does it mean that all of them
+/// can be reaped, as an earlier record may still be being written.
+#[no_mangle]
+pub extern "C" fn Java_riko_CompletionQueue_counterBuffer(env: JNIEnv, _: JClass) -> jobject {
+    let counter = &ring().published as *const AtomicU64 as *mut u8;
+    let counter = unsafe { std::slice::from_raw_parts_mut(counter, std::mem::size_of::<u64>()) };
+    env.new_direct_byte_buffer(counter)
+        .expect("Failed to share the completion queue")
+        .into_inner()
+}
+
+/// Gets the number of records that can be reaped, i.e. those published one after another since
+/// the `reaped` ones, and makes them visible to the calling thread.
+#[no_mangle]
+pub extern "C" fn Java_riko_CompletionQueue_published(
+    _: JNIEnv,
+    _: JClass,
+    reaped: jlong,
+) -> jlong {
+    ring().ready(reaped as u64) as jlong
+}
+
+/// Releases the records reaped by Java and the results they point to.
+#[no_mangle]
+pub extern "C" fn Java_riko_CompletionQueue_release(
+    _: JNIEnv,
+    _: JClass,
+    records: jlong,
+    arena: jlong,
+) {
+    ring().release(records as u64, arena as u64)
+}
+
+/// Parks a Java poller until more than `seen` records are published, or until `timeout` in
+/// nanoseconds.
+#[no_mangle]
+pub extern "C" fn Java_riko_CompletionQueue_await(
+    _: JNIEnv,
+    _: JClass,
+    seen: jlong,
+    timeout: jlong,
+) {
+    let timeout = Duration::from_nanos(timeout.try_into().unwrap_or_default());
+    ring().wait(seen as u64, timeout)
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+
+    fn read_record(ring: &Ring, index: usize) -> (FutureHandle, u32, usize, usize) {
+        let start = unsafe { ring.records.add(index * RECORD_SIZE) };
+        let record = unsafe { std::slice::from_raw_parts(start, RECORD_SIZE) };
+        (
+            i64::from_ne_bytes(record[8..16].try_into().unwrap()),
+            u32::from_ne_bytes(record[16..20].try_into().unwrap()),
+            i32::from_ne_bytes(record[20..24].try_into().unwrap()) as usize,
+            i32::from_ne_bytes(record[24..28].try_into().unwrap()) as usize,
+        )
+    }
+
+    #[test]
+    fn push() {
+        let ring = Ring::default();
+        let big = vec![1u8; ARENA - 10];
+        assert!(ring.push(1, &big));
+        assert!(!ring.push(2, &[2u8; 20]));
+
+        ring.release(1, ARENA as u64 - 10);
+        assert!(ring.push(2, &[2u8; 20]));
+        assert_eq!(2, ring.published.load(Ordering::SeqCst));
+        assert_eq!(2, ring.ready(0));
+        assert_eq!((1, ARENA as u32 - 10, 0, ARENA - 10), read_record(&ring, 0));
+        assert_eq!((2, ARENA as u32 + 20, 0, 20), read_record(&ring, 1));
+    }
+
+    #[test]
+    fn ready() {
+        let ring = Ring::default();
+        for handle in 0..3 {
+            assert!(ring.push(handle, &[]));
+        }
+
+        // As if the second one were still being written
+        ring.status(1).store(0, Ordering::SeqCst);
+        assert_eq!(1, ring.ready(0));
+        ring.status(1).store(status_of(1), Ordering::SeqCst);
+        assert_eq!(3, ring.ready(0));
+        assert_eq!(3, ring.ready(3));
+    }
+
+    #[test]
+    fn concurrent() {
+        let ring = std::sync::Arc::new(Ring::default());
+        let producers = (0..4)
+            .map(|producer| {
+                let ring = ring.clone();
+                std::thread::spawn(move || {
+                    for i in 0..1000 {
+                        let handle = producer * 1000 + i;
+                        assert!(ring.push(handle, &handle.to_le_bytes()));
+                    }
+                })
+            })
+            .collect::<Vec<_>>();
+        for producer in producers {
+            producer.join().unwrap();
+        }
+
+        assert_eq!(4000, ring.ready(0));
+        let mut handles = (0..4000)
+            .map(|index| {
+                let (handle, _, offset, length) = read_record(&ring, index);
+                let data = unsafe { std::slice::from_raw_parts(ring.arena.add(offset), length) };
+                assert_eq!(&handle.to_le_bytes(), data);
+                handle
+            })
+            .collect::<Vec<_>>();
+        handles.sort_unstable();
+        assert_eq!((0..4000).collect::<Vec<_>>(), handles);
+    }
+
+    #[test]
+    fn full() {
+        let ring = Ring::default();
+        for handle in 0..RECORDS {
+            assert!(ring.push(handle as _, &[]));
+        }
+        assert!(!ring.push(0, &[]));
+    }
+}
@@ -0,0 +1,82 @@
+//! Bridge functions for handling functions returning a [Stream].
+//!
+//! Each batch of items is delivered to `riko.Publisher` in one upcall from the thread driving the
+//! stream, which is attached to the JVM if it is not yet and stays attached. Batches of the same
+//! stream are never delivered concurrently, so the items arrive in order.
+
+use futures_util::Stream;
+use jni::objects::JClass;
+use jni::objects::JObject;
+use jni::objects::JValue;
+use jni::signature::JavaType;
+use jni::signature::Primitive;
+use jni::sys::jlong;
+use jni::JNIEnv;
+use riko_runtime::future::POOL;
+use riko_runtime::returned::Returned;
+use riko_runtime::FutureHandle;
+use riko_runtime::Marshal;
+use std::convert::TryInto;
+
+/// Runs a [Stream] and returns a [FutureHandle] to it.
+///
+/// Nothing is polled until `riko.Publisher` demands some items.
+pub fn spawn<S, R, T>(stream: S) -> FutureHandle
+where
+    S: Stream<Item = R> + Send + 'static,
+    R: Into<Returned<T>>,
+    T: Marshal + 'static,
+{
+    POOL.spawn_stream(stream, deliver)
+}
+
+/// Delivers a batch of items as consecutive BSON documents.
+fn deliver<T: Marshal>(handle: FutureHandle, batch: Vec<Returned<T>>, ended: bool) {
+    let data = batch
+        .iter()
+        .flat_map(crate::encode)
+        .collect::<Vec<_>>();
+    let jvm_nullable = crate::java_vm();
+    let jvm = jvm_nullable
+        .as_ref()
+        .expect("Riko runtime is not initialized");
+    let env = jvm
+        .attach_current_thread_as_daemon()
+        .expect("Failed to attach the current thread to JVM");
+    let cache = crate::cache::get(&env);
+
+    let data_jni = env
+        .byte_array_from_slice(&data)
+        .expect("Failed to send the marshaled data to JNI");
+    let delivered = env.call_static_method_unchecked(
+        JClass::from(cache.publisher.as_obj()),
+        cache.publisher_deliver.static_method(),
+        JavaType::Primitive(Primitive::Void),
+        &[
+            JValue::Long(handle),
+            JValue::Object(data_jni.into()),
+            JValue::Bool(ended.into()),
+        ],
+    );
+    if delivered.is_err() {
+        crate::future::report_exception(&env);
+    }
+
+    // The thread may never return to the JVM
+    let _ = env.delete_local_ref(JObject::from(data_jni));
+}
+
+#[no_mangle]
+pub extern "C" fn Java_riko_Publisher_demand(
+    _: JNIEnv,
+    _: JClass,
+    handle: FutureHandle,
+    count: jlong,
+) {
+    POOL.request(handle, count.try_into().unwrap_or_default())
+}
+
+#[no_mangle]
+pub extern "C" fn Java_riko_Publisher_drop(_: JNIEnv, _: JClass, handle: FutureHandle) {
+    POOL.cancel(handle)
+}
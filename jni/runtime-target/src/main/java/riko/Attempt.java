@@ -0,0 +1,124 @@
+package riko;
+
+import org.bson.BsonNull;
+import org.bson.BsonValue;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Outcome of a function that may fail, returned by the {@code try} variants of generated methods
+ * instead of throwing.
+ *
+ * <p>Each thread reuses one instance, which is only valid until the next {@code try} call on the
+ * same thread.
+ */
+public final class Attempt {
+
+  private static final ThreadLocal<Attempt> current = ThreadLocal.withInitial(Attempt::new);
+
+  private @Nullable ReturnedException error;
+  private @Nullable BsonValue value;
+  private long integral;
+  private double real;
+
+  private Attempt() {}
+
+  /** Gets the instance of the current thread, cleared for a new call. */
+  public static Attempt acquire() {
+    final Attempt attempt = current.get();
+    attempt.error = null;
+    attempt.value = null;
+    attempt.integral = 0;
+    attempt.real = 0;
+    return attempt;
+  }
+
+  /**
+   * Called by the Rust side when the function fails.
+   *
+   * @param error Exception of the class thrown by the variant that throws, not thrown here.
+   */
+  private void fail(final ReturnedException error) {
+    this.error = error;
+  }
+
+  /** Sets the returned value, called by generated code. */
+  public void succeed(final @Nullable BsonValue value) {
+    this.value = value;
+  }
+
+  /** Sets the returned value, called by generated code. */
+  public void succeed(final boolean value) {
+    this.integral = value ? 1 : 0;
+  }
+
+  /** Sets the returned value, called by generated code. */
+  public void succeed(final long value) {
+    this.integral = value;
+  }
+
+  /** Sets the returned value, called by generated code. */
+  public void succeed(final double value) {
+    this.real = value;
+  }
+
+  /** Checks if the function succeeded. */
+  public boolean isOk() {
+    return error == null;
+  }
+
+  /**
+   * Gets the code of the error type.
+   *
+   * <p>It is {@code 0} if the function succeeded or if the error type is unknown.
+   */
+  public int getCode() {
+    final @Nullable ReturnedException current = error;
+    return current == null ? 0 : current.getCode();
+  }
+
+  /**
+   * Gets the error as an exception without throwing it.
+   *
+   * <p>It is of the same class as what the throwing variant of the function throws, so it can be
+   * told apart with {@code instanceof} or thrown to be caught as such.
+   *
+   * @throws IllegalStateException If the function succeeded.
+   */
+  public ReturnedException getError() {
+    final @Nullable ReturnedException current = error;
+    if (current == null) {
+      throw new IllegalStateException("The function succeeded");
+    }
+    return current;
+  }
+
+  /** Gets the returned value marshaled as BSON. */
+  public BsonValue getValue() {
+    final @Nullable BsonValue result = value;
+    return result == null ? BsonNull.VALUE : result;
+  }
+
+  public boolean getBoolean() {
+    return integral != 0;
+  }
+
+  public byte getByte() {
+    return (byte) integral;
+  }
+
+  public int getInt() {
+    return (int) integral;
+  }
+
+  public long getLong() {
+    return integral;
+  }
+
+  public float getFloat() {
+    return (float) real;
+  }
+
+  public double getDouble() {
+    return real;
+  }
+}
@@ -0,0 +1,104 @@
+package riko;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import org.bson.BsonValue;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Thread-local direct {@link ByteBuffer} exchanging marshaled data with the Rust side.
+ *
+ * <p>Function arguments are written as consecutive BSON documents at the start of the buffer, and
+ * the Rust side reads them directly from its memory. The result is then written back into the same
+ * buffer. This avoids copying {@code byte[]}s across JNI.
+ */
+public final class DirectBuffer {
+
+  private static final int INITIAL_CAPACITY = 4096;
+  private static final ThreadLocal<DirectBuffer> current =
+      ThreadLocal.withInitial(DirectBuffer::new);
+
+  private final DirectOutputBuffer output = new DirectOutputBuffer(INITIAL_CAPACITY);
+
+  private DirectBuffer() {}
+
+  /** Gets the buffer of the current thread with all its content discarded. */
+  public static DirectBuffer acquire() {
+    final DirectBuffer result = current.get();
+    result.output.truncateToPosition(0);
+    return result;
+  }
+
+  /** Appends a function argument. */
+  public void write(final @Nullable BsonValue src) {
+    Marshaler.encode(src, output);
+  }
+
+  /** Gets the buffer to be passed to the Rust side. */
+  public ByteBuffer buffer() {
+    return output.buffer();
+  }
+
+  /** Length of all arguments written so far. */
+  public int length() {
+    return output.getSize();
+  }
+
+  /**
+   * Reads the result written by the Rust side.
+   *
+   * @param returned What the native method returned, which is the length of the result. A negative
+   *     value means the buffer was too small, or was possibly replaced by a nested call, and the
+   *     result must be fetched into the current buffer.
+   */
+  public Returned read(final int returned) {
+    return Marshaler.decode(result(returned));
+  }
+
+  /**
+   * Reads the result written by the Rust side without parsing a returned document.
+   *
+   * @see #read(int)
+   * @see Marshaler#decodeLazy(ByteBuffer)
+   */
+  public Returned readLazy(final int returned) {
+    return Marshaler.decodeLazy(result(returned));
+  }
+
+  /**
+   * Reads the returned value written by the Rust side when it throws errors natively.
+   *
+   * @see #read(int)
+   * @see Marshaler#decodeValue(ByteBuffer)
+   */
+  public BsonValue readValue(final int returned) {
+    return Marshaler.decodeValue(result(returned));
+  }
+
+  /**
+   * Same as {@link #readValue(int)} but without parsing a returned document.
+   *
+   * @see Marshaler#decodeValueLazy(ByteBuffer)
+   */
+  public BsonValue readValueLazy(final int returned) {
+    return Marshaler.decodeValueLazy(result(returned));
+  }
+
+  private ByteBuffer result(final int returned) {
+    final int length;
+    if (returned < 0) {
+      length = -returned;
+      output.reserve(length);
+      fetch(output.buffer());
+    } else {
+      length = returned;
+    }
+
+    final ByteBuffer result = output.buffer();
+    ((Buffer) result).clear();
+    ((Buffer) result).limit(length);
+    return result;
+  }
+
+  private static native void fetch(ByteBuffer dst);
+}
@@ -0,0 +1,118 @@
+package riko;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Collections;
+import java.util.List;
+import org.bson.ByteBuf;
+import org.bson.ByteBufNIO;
+import org.bson.io.OutputBuffer;
+
+/**
+ * {@link OutputBuffer} backed by a direct {@link ByteBuffer} that grows on demand.
+ *
+ * <p>Methods of {@link ByteBuffer} overridden since Java 9 are called through {@link Buffer} so
+ * that the bytecode still runs on Java 8.
+ */
+class DirectOutputBuffer extends OutputBuffer {
+
+  private ByteBuffer buffer;
+  private int size = 0;
+
+  DirectOutputBuffer(final int capacity) {
+    buffer = ByteBuffer.allocateDirect(capacity).order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  /**
+   * Gets the underlying buffer.
+   *
+   * <p>The buffer is replaced when it grows.
+   */
+  ByteBuffer buffer() {
+    return buffer;
+  }
+
+  /** Discards the content and makes sure the capacity is at least {@code capacity}. */
+  void reserve(final int capacity) {
+    size = 0;
+    if (capacity > buffer.capacity()) {
+      buffer = ByteBuffer.allocateDirect(capacity).order(ByteOrder.LITTLE_ENDIAN);
+    }
+  }
+
+  private void ensureRemaining(final int remaining) {
+    final int required = size + remaining;
+    if (required <= buffer.capacity()) {
+      return;
+    }
+
+    final ByteBuffer grown =
+        ByteBuffer.allocateDirect(Math.max(required, buffer.capacity() * 2))
+            .order(ByteOrder.LITTLE_ENDIAN);
+    ((Buffer) buffer).clear();
+    ((Buffer) buffer).limit(size);
+    grown.put(buffer);
+    buffer = grown;
+  }
+
+  @Override
+  public void writeBytes(final byte[] bytes, final int offset, final int length) {
+    ensureRemaining(length);
+    ((Buffer) buffer).position(size);
+    buffer.put(bytes, offset, length);
+    size += length;
+  }
+
+  @Override
+  public void writeByte(final int value) {
+    ensureRemaining(1);
+    buffer.put(size++, (byte) value);
+  }
+
+  @Override
+  protected void write(final int position, final int value) {
+    if (position < 0 || position >= size) {
+      throw new IllegalArgumentException("Position out of bounds");
+    }
+    buffer.put(position, (byte) value);
+  }
+
+  @Override
+  public int getPosition() {
+    return size;
+  }
+
+  @Override
+  public int getSize() {
+    return size;
+  }
+
+  @Override
+  public void truncateToPosition(final int newPosition) {
+    if (newPosition < 0 || newPosition > size) {
+      throw new IllegalArgumentException("Position out of bounds");
+    }
+    size = newPosition;
+  }
+
+  @Override
+  public List<ByteBuf> getByteBuffers() {
+    final ByteBuffer view = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    ((Buffer) view).clear();
+    ((Buffer) view).limit(size);
+    return Collections.singletonList(new ByteBufNIO(view));
+  }
+
+  @Override
+  public int pipe(final OutputStream out) throws IOException {
+    final ByteBuffer view = buffer.duplicate();
+    ((Buffer) view).clear();
+    final byte[] bytes = new byte[size];
+    view.get(bytes);
+    out.write(bytes);
+    return size;
+  }
+}
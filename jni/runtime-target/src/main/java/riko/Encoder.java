@@ -0,0 +1,180 @@
+package riko;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import org.bson.BsonBinary;
+import org.bson.BsonBinarySubType;
+import org.bson.BsonDbPointer;
+import org.bson.BsonDocument;
+import org.bson.BsonJavaScriptWithScope;
+import org.bson.BsonRegularExpression;
+import org.bson.BsonValue;
+import org.bson.RawBsonDocument;
+import org.bson.io.BsonOutput;
+import org.bson.types.Decimal128;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Writes {@link BsonValue}s directly as BSON bytes.
+ *
+ * <p>Unlike {@link org.bson.BsonBinaryWriter}, it keeps no state and allocates nothing other than
+ * the iterators over {@link BsonDocument}s.
+ */
+final class Encoder {
+
+  private static final String ROOT_KEY_OF_ARGUMENT_DOCUMENT = "value";
+
+  private Encoder() {}
+
+  /**
+   * Writes a function argument as a document, with the argument being its only element.
+   *
+   * <p>{@code null} is written as an empty document.
+   */
+  static void writeArgument(final BsonOutput dst, final @Nullable BsonValue src) {
+    final int start = dst.getPosition();
+    dst.writeInt32(0);
+    if (src != null) {
+      writeElement(dst, ROOT_KEY_OF_ARGUMENT_DOCUMENT, src);
+    }
+    endDocument(dst, start);
+  }
+
+  private static void endDocument(final BsonOutput dst, final int start) {
+    dst.writeByte(0);
+    dst.writeInt32(start, dst.getPosition() - start);
+  }
+
+  private static void writeElement(final BsonOutput dst, final String name, final BsonValue src) {
+    dst.writeByte(src.getBsonType().getValue());
+    dst.writeCString(name);
+    writeValue(dst, src);
+  }
+
+  private static void writeDocument(final BsonOutput dst, final BsonDocument src) {
+    if (src instanceof RawBsonDocument) {
+      final ByteBuffer raw = ((RawBsonDocument) src).getByteBuffer().asNIO();
+      dst.writeBytes(raw.array(), raw.arrayOffset() + raw.position(), raw.remaining());
+      return;
+    }
+
+    final int start = dst.getPosition();
+    dst.writeInt32(0);
+    for (final Map.Entry<String, BsonValue> entry : src.entrySet()) {
+      writeElement(dst, entry.getKey(), entry.getValue());
+    }
+    endDocument(dst, start);
+  }
+
+  private static void writeArray(final BsonOutput dst, final List<BsonValue> src) {
+    final int start = dst.getPosition();
+    dst.writeInt32(0);
+    for (int i = 0; i < src.size(); ++i) {
+      final BsonValue element = src.get(i);
+      dst.writeByte(element.getBsonType().getValue());
+      writeIndex(dst, i);
+      writeValue(dst, element);
+    }
+    endDocument(dst, start);
+  }
+
+  /** Writes an array index as a C string without formatting it as a {@link String} first. */
+  private static void writeIndex(final BsonOutput dst, final int index) {
+    int divisor = 1;
+    while (index / divisor >= 10) {
+      divisor *= 10;
+    }
+    for (; divisor > 0; divisor /= 10) {
+      dst.writeByte('0' + index / divisor % 10);
+    }
+    dst.writeByte(0);
+  }
+
+  private static void writeBinary(final BsonOutput dst, final BsonBinary src) {
+    final byte[] data = src.getData();
+    if (src.getType() == BsonBinarySubType.OLD_BINARY.getValue()) {
+      dst.writeInt32(data.length + 4);
+      dst.writeByte(src.getType());
+      dst.writeInt32(data.length);
+    } else {
+      dst.writeInt32(data.length);
+      dst.writeByte(src.getType());
+    }
+    dst.writeBytes(data);
+  }
+
+  private static void writeValue(final BsonOutput dst, final BsonValue src) {
+    switch (src.getBsonType()) {
+      case DOUBLE:
+        dst.writeDouble(src.asDouble().getValue());
+        break;
+      case STRING:
+        dst.writeString(src.asString().getValue());
+        break;
+      case DOCUMENT:
+        writeDocument(dst, src.asDocument());
+        break;
+      case ARRAY:
+        writeArray(dst, src.asArray());
+        break;
+      case BINARY:
+        writeBinary(dst, src.asBinary());
+        break;
+      case OBJECT_ID:
+        dst.writeObjectId(src.asObjectId().getValue());
+        break;
+      case BOOLEAN:
+        dst.writeByte(src.asBoolean().getValue() ? 1 : 0);
+        break;
+      case DATE_TIME:
+        dst.writeInt64(src.asDateTime().getValue());
+        break;
+      case REGULAR_EXPRESSION:
+        final BsonRegularExpression regex = src.asRegularExpression();
+        dst.writeCString(regex.getPattern());
+        dst.writeCString(regex.getOptions());
+        break;
+      case DB_POINTER:
+        final BsonDbPointer pointer = src.asDBPointer();
+        dst.writeString(pointer.getNamespace());
+        dst.writeObjectId(pointer.getId());
+        break;
+      case JAVASCRIPT:
+        dst.writeString(src.asJavaScript().getCode());
+        break;
+      case SYMBOL:
+        dst.writeString(src.asSymbol().getSymbol());
+        break;
+      case JAVASCRIPT_WITH_SCOPE:
+        final BsonJavaScriptWithScope script = src.asJavaScriptWithScope();
+        final int start = dst.getPosition();
+        dst.writeInt32(0);
+        dst.writeString(script.getCode());
+        writeDocument(dst, script.getScope());
+        dst.writeInt32(start, dst.getPosition() - start);
+        break;
+      case INT32:
+        dst.writeInt32(src.asInt32().getValue());
+        break;
+      case TIMESTAMP:
+        dst.writeInt64(src.asTimestamp().getValue());
+        break;
+      case INT64:
+        dst.writeInt64(src.asInt64().getValue());
+        break;
+      case DECIMAL128:
+        final Decimal128 decimal = src.asDecimal128().getValue();
+        dst.writeInt64(decimal.getLow());
+        dst.writeInt64(decimal.getHigh());
+        break;
+      case NULL:
+      case UNDEFINED:
+      case MIN_KEY:
+      case MAX_KEY:
+        break;
+      default:
+        throw new IllegalArgumentException("Unsupported BSON type: " + src.getBsonType());
+    }
+  }
+}
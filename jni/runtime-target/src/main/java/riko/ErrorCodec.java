@@ -0,0 +1,48 @@
+package riko;
+
+import org.bson.BsonReader;
+import org.bson.BsonType;
+import org.bson.BsonWriter;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+
+/** Codec for {@link Error}, written by hand to avoid reflection. */
+final class ErrorCodec implements Codec<Error> {
+  static final ErrorCodec INSTANCE = new ErrorCodec();
+
+  private ErrorCodec() {}
+
+  @Override
+  public Error decode(final BsonReader reader, final DecoderContext context) {
+    final Error error = new Error();
+    reader.readStartDocument();
+    while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+      final String name = reader.readName();
+      if (reader.getCurrentBsonType() != BsonType.STRING) {
+        reader.skipValue();
+      } else if ("debug".equals(name)) {
+        error.debug = reader.readString();
+      } else if ("message".equals(name)) {
+        error.message = reader.readString();
+      } else {
+        reader.skipValue();
+      }
+    }
+    reader.readEndDocument();
+    return error;
+  }
+
+  @Override
+  public void encode(final BsonWriter writer, final Error value, final EncoderContext context) {
+    writer.writeStartDocument();
+    writer.writeString("debug", value.debug);
+    writer.writeString("message", value.message);
+    writer.writeEndDocument();
+  }
+
+  @Override
+  public Class<Error> getEncoderClass() {
+    return Error.class;
+  }
+}
@@ -5,4 +5,8 @@ public class MarshalException extends RuntimeException {
   public MarshalException(final Exception cause) {
     super("Failed to marshal object", cause);
   }
+
+  public MarshalException(final String message) {
+    super(message);
+  }
 }
@@ -1,52 +1,193 @@
 package riko;
 
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import org.bson.BsonBinaryReader;
-import org.bson.BsonBinaryWriter;
-import org.bson.BsonDocument;
-import org.bson.BsonDocumentReader;
+import org.bson.BsonNull;
+import org.bson.BsonType;
 import org.bson.BsonValue;
-import org.bson.codecs.BsonValueCodec;
-import org.bson.codecs.DecoderContext;
-import org.bson.codecs.StringCodec;
-import org.bson.codecs.configuration.CodecRegistries;
-import org.bson.codecs.configuration.CodecRegistry;
-import org.bson.codecs.pojo.PojoCodecProvider;
+import org.bson.RawBsonDocument;
 import org.bson.io.BasicOutputBuffer;
+import org.bson.io.BsonOutput;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
 /** Marshals objects between the Rust side and the JNI side. */
 public class Marshaler {
   private Marshaler() {}
 
-  private static final String ROOT_KEY_OF_ARGUMENT_DOCUMENT = "value";
-  private static final CodecRegistry codecRegistry =
-      CodecRegistries.fromRegistries(
-          CodecRegistries.fromCodecs(new BsonValueCodec(), new StringCodec()),
-          CodecRegistries.fromProviders(
-              PojoCodecProvider.builder().register(Returned.class, Error.class).build()));
+  private static final byte[] EMPTY = new byte[0];
+  private static final byte[] KEY_ERROR = "error".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] KEY_VALUE = "value".getBytes(StandardCharsets.US_ASCII);
 
-  /** Serializes a function argument as BSON. */
+  /** Output buffers reused by each thread, never closed. */
+  private static final ThreadLocal<BasicOutputBuffer> outputs =
+      ThreadLocal.withInitial(BasicOutputBuffer::new);
+
+  private static BasicOutputBuffer acquireOutput() {
+    final BasicOutputBuffer output = outputs.get();
+    output.truncateToPosition(0);
+    return output;
+  }
+
+  /**
+   * Serializes a function argument as BSON.
+   *
+   * <p>The only allocation is the returned array.
+   */
   public static byte[] encode(final @Nullable BsonValue src) {
     if (src == null) {
-      return new byte[0];
+      return EMPTY;
     }
 
-    final BsonDocument document = new BsonDocument(ROOT_KEY_OF_ARGUMENT_DOCUMENT, src);
-    try (final BasicOutputBuffer buffer = new BasicOutputBuffer();
-        final BsonBinaryWriter writer = new BsonBinaryWriter(buffer);
-        final BsonDocumentReader reader = new BsonDocumentReader(document)) {
+    final BasicOutputBuffer output = acquireOutput();
+    Encoder.writeArgument(output, src);
+    return toByteArray(output);
+  }
 
-      writer.pipe(reader);
-      writer.flush();
-      return buffer.toByteArray();
+  /**
+   * Serializes all arguments of a function call as consecutive BSON documents in one pass.
+   *
+   * <p>{@code null} is written as an empty document. The only allocations are the returned array
+   * and the varargs array, the latter of which is usually eliminated by the JIT compiler.
+   */
+  public static byte[] encodeAll(final @Nullable BsonValue... src) {
+    final BasicOutputBuffer output = acquireOutput();
+    for (final @Nullable BsonValue arg : src) {
+      Encoder.writeArgument(output, arg);
     }
+    return toByteArray(output);
+  }
+
+  /** Unlike {@link BasicOutputBuffer#toByteArray()}, copies the content only once. */
+  private static byte[] toByteArray(final BasicOutputBuffer src) {
+    return Arrays.copyOf(src.getInternalBuffer(), src.getPosition());
+  }
+
+  /**
+   * Serializes a function argument as BSON and appends it to an output.
+   *
+   * <p>Unlike {@link #encode(BsonValue)}, {@code null} is written as an empty document.
+   */
+  static void encode(final @Nullable BsonValue src, final BsonOutput dst) {
+    Encoder.writeArgument(dst, src);
   }
 
   /** Deserializes a BSON as the result from Rust side. */
   public static Returned decode(final byte[] src) {
-    try (final BsonBinaryReader reader = new BsonBinaryReader(ByteBuffer.wrap(src))) {
-      return codecRegistry.get(Returned.class).decode(reader, DecoderContext.builder().build());
+    return decode(ByteBuffer.wrap(src));
+  }
+
+  /** Deserializes a BSON as the result from Rust side, reading from the position to the limit. */
+  public static Returned decode(final ByteBuffer src) {
+    try (final BsonBinaryReader reader = new BsonBinaryReader(src)) {
+      return ReturnedCodec.INSTANCE.decode(reader, ReturnedCodec.DECODER_CONTEXT);
+    }
+  }
+
+  /**
+   * Deserializes a BSON as the result from Rust side without parsing a returned document.
+   *
+   * <p>If the returned value is a document, it becomes a {@link RawBsonDocument} backed by {@code
+   * src}, whose fields are only parsed when accessed. Otherwise, or if there is an error, it is the
+   * same as {@link #decode(byte[])}.
+   */
+  public static Returned decodeLazy(final byte[] src) {
+    // The Rust side always writes `error` and then `value`
+    int position = 4;
+    if (!matchElement(src, position, BsonType.NULL, KEY_ERROR)) {
+      return decode(src);
+    }
+    position += KEY_ERROR.length + 2;
+    if (!matchElement(src, position, BsonType.DOCUMENT, KEY_VALUE)) {
+      return decode(src);
+    }
+    position += KEY_VALUE.length + 2;
+
+    final Returned result = new Returned();
+    final int length = ByteBuffer.wrap(src).order(ByteOrder.LITTLE_ENDIAN).getInt(position);
+    result.value = new RawBsonDocument(src, position, length);
+    return result;
+  }
+
+  /**
+   * Same as {@link #decodeLazy(byte[])} but reading from the position to the limit.
+   *
+   * <p>The content is copied because the buffer may be reused.
+   */
+  public static Returned decodeLazy(final ByteBuffer src) {
+    final byte[] copy = new byte[src.remaining()];
+    src.duplicate().get(copy);
+    return decodeLazy(copy);
+  }
+
+  /**
+   * Deserializes a BSON as a returned value without an error.
+   *
+   * <p>This is what the Rust side returns when it throws errors natively.
+   */
+  public static BsonValue decodeValue(final byte[] src) {
+    return decodeValue(ByteBuffer.wrap(src));
+  }
+
+  /** Same as {@link #decodeValue(byte[])} but reading from the position to the limit. */
+  public static BsonValue decodeValue(final ByteBuffer src) {
+    BsonValue value = BsonNull.VALUE;
+    try (final BsonBinaryReader reader = new BsonBinaryReader(src)) {
+      reader.readStartDocument();
+      while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+        if ("value".equals(reader.readName())) {
+          value = ReturnedCodec.VALUE_CODEC.decode(reader, ReturnedCodec.DECODER_CONTEXT);
+        } else {
+          reader.skipValue();
+        }
+      }
+      reader.readEndDocument();
+    }
+    return value;
+  }
+
+  /**
+   * Deserializes a BSON as a returned value without an error and without parsing a returned
+   * document.
+   *
+   * @see #decodeLazy(byte[])
+   * @see #decodeValue(byte[])
+   */
+  public static BsonValue decodeValueLazy(final byte[] src) {
+    final int position = 4;
+    if (!matchElement(src, position, BsonType.DOCUMENT, KEY_VALUE)) {
+      return decodeValue(src);
+    }
+    final int start = position + KEY_VALUE.length + 2;
+    final int length = ByteBuffer.wrap(src).order(ByteOrder.LITTLE_ENDIAN).getInt(start);
+    return new RawBsonDocument(src, start, length);
+  }
+
+  /**
+   * Same as {@link #decodeValueLazy(byte[])} but reading from the position to the limit.
+   *
+   * <p>The content is copied because the buffer may be reused.
+   */
+  public static BsonValue decodeValueLazy(final ByteBuffer src) {
+    final byte[] copy = new byte[src.remaining()];
+    src.duplicate().get(copy);
+    return decodeValueLazy(copy);
+  }
+
+  /** Checks the type and the name of the element starting at {@code position}. */
+  private static boolean matchElement(
+      final byte[] src, final int position, final BsonType type, final byte[] name) {
+    final int end = position + name.length + 1;
+    if (end >= src.length || src[position] != type.getValue() || src[end] != 0) {
+      return false;
+    }
+    for (int i = 0; i < name.length; ++i) {
+      if (src[position + 1 + i] != name[i]) {
+        return false;
+      }
     }
+    return true;
   }
 }
@@ -1,16 +1,156 @@
 package riko;
 
-/** Rust object allocated on the heap. */
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Rust object allocated on the heap.
+ *
+ * <p>The handle is forgotten once the object is closed, so that it never reaches the Rust side
+ * again. An object closed while another thread is still using it stays allocated until that use
+ * ends.
+ *
+ * <p>Closing an object only unlinks it on the Rust side, and its destructor runs later on a
+ * background thread.
+ *
+ * <p>An object becoming unreachable without being closed is closed by a background thread, which
+ * closes all such objects found at the same time in one native call.
+ */
 public class Object implements AutoCloseable {
 
-  protected final int handle;
+  private static final AtomicLongFieldUpdater<Object> HANDLE =
+      AtomicLongFieldUpdater.newUpdater(Object.class, "handle");
+
+  /** Handle to the object, or {@code 0} once closed. */
+  protected volatile long handle;
+
+  private final Reclaim reclaim;
 
-  public Object(final int handle) {
+  public Object(final long handle) {
     this.handle = handle;
+    this.reclaim = new Reclaim(this, handle);
   }
 
   @Override
-  public native void close();
+  public void close() {
+    final long closing = HANDLE.getAndSet(this, 0);
+    if (closing != 0) {
+      reclaim.forget();
+      close(closing);
+    }
+  }
+
+  public boolean alive() {
+    final long current = handle;
+    return current != 0 && alive(current);
+  }
+
+  /**
+   * Closes many objects in one native call.
+   *
+   * <p>Objects already closed are skipped.
+   */
+  public static void closeAll(final Collection<? extends Object> objects) {
+    final long[] handles = new long[objects.size()];
+    int count = 0;
+    for (final Object object : objects) {
+      final long closing = HANDLE.getAndSet(object, 0);
+      if (closing != 0 && count < handles.length) {
+        object.reclaim.forget();
+        handles[count++] = closing;
+      }
+    }
+    if (count > 0) {
+      closeAll(count == handles.length ? handles : Arrays.copyOf(handles, count));
+    }
+  }
+
+  /**
+   * Gets the number of closed objects whose destructors are waiting to run on a Rust background
+   * thread.
+   */
+  public static native long pendingReclamations();
+
+  /**
+   * Gets the total size in bytes of the objects counted by {@link #pendingReclamations()}, not
+   * counting what they own on the heap.
+   */
+  public static native long pendingReclamationBytes();
+
+  /**
+   * Closes the object on the Rust side.
+   *
+   * <p>Being an instance method keeps this object reachable during the call, so that the
+   * reclaimer does not close it at the same time.
+   */
+  private native void close(long handle);
 
-  public native boolean alive();
+  private static native void closeAll(long[] handles);
+
+  /** Checks on the Rust side if a handle, possibly captured before being closed, is alive. */
+  static native boolean alive(long handle);
+
+  /** Tracks an {@link Object} to close it after it becomes unreachable. */
+  private static final class Reclaim extends PhantomReference<Object> {
+
+    /** Maximum number of objects closed in one native call. */
+    private static final int MAX_BATCH = 1024;
+
+    private static final ReferenceQueue<Object> QUEUE = new ReferenceQueue<>();
+
+    /** Keeps every {@link Reclaim} reachable until its {@link Object} is closed. */
+    private static final Collection<Reclaim> PENDING =
+        Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+    static {
+      final Thread reclaimer = new Thread(Reclaim::run, "riko-reclaimer");
+      reclaimer.setDaemon(true);
+      reclaimer.start();
+    }
+
+    private final long handle;
+
+    Reclaim(final Object referent, final long handle) {
+      super(referent, QUEUE);
+      this.handle = handle;
+      PENDING.add(this);
+    }
+
+    /** Stops tracking as the object is closed explicitly. */
+    void forget() {
+      PENDING.remove(this);
+    }
+
+    private static void run() {
+      final long[] handles = new long[MAX_BATCH];
+      while (true) {
+        try {
+          int count = 0;
+          @Nullable Reference<? extends Object> next = QUEUE.remove();
+          while (next != null) {
+            final Reclaim reclaim = (Reclaim) next;
+            if (PENDING.remove(reclaim)) {
+              handles[count++] = reclaim.handle;
+            }
+            next = count < MAX_BATCH ? QUEUE.poll() : null;
+          }
+          if (count > 0) {
+            closeAll(Arrays.copyOf(handles, count));
+          }
+        } catch (final InterruptedException e) {
+          return;
+        } catch (final RuntimeException e) {
+          final Thread thread = Thread.currentThread();
+          thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+        }
+      }
+    }
+  }
 }
@@ -0,0 +1,67 @@
+package riko;
+
+import org.bson.BsonReader;
+import org.bson.BsonType;
+import org.bson.BsonValue;
+import org.bson.BsonWriter;
+import org.bson.codecs.BsonValueCodec;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/** Codec for {@link Returned}, written by hand to avoid reflection. */
+final class ReturnedCodec implements Codec<Returned> {
+  static final ReturnedCodec INSTANCE = new ReturnedCodec();
+
+  static final DecoderContext DECODER_CONTEXT = DecoderContext.builder().build();
+
+  static final BsonValueCodec VALUE_CODEC = new BsonValueCodec();
+
+  private ReturnedCodec() {}
+
+  @Override
+  public Returned decode(final BsonReader reader, final DecoderContext context) {
+    final Returned returned = new Returned();
+    reader.readStartDocument();
+    while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+      final String name = reader.readName();
+      if (reader.getCurrentBsonType() == BsonType.NULL) {
+        reader.readNull();
+      } else if ("value".equals(name)) {
+        returned.value = VALUE_CODEC.decode(reader, context);
+      } else if ("error".equals(name)) {
+        returned.error = ErrorCodec.INSTANCE.decode(reader, context);
+      } else {
+        reader.skipValue();
+      }
+    }
+    reader.readEndDocument();
+    return returned;
+  }
+
+  @Override
+  public void encode(final BsonWriter writer, final Returned value, final EncoderContext context) {
+    writer.writeStartDocument();
+    writer.writeName("error");
+    final @Nullable Error error = value.error;
+    if (error == null) {
+      writer.writeNull();
+    } else {
+      ErrorCodec.INSTANCE.encode(writer, error, context);
+    }
+    writer.writeName("value");
+    final @Nullable BsonValue data = value.value;
+    if (data == null) {
+      writer.writeNull();
+    } else {
+      VALUE_CODEC.encode(writer, data, context);
+    }
+    writer.writeEndDocument();
+  }
+
+  @Override
+  public Class<Returned> getEncoderClass() {
+    return Returned.class;
+  }
+}
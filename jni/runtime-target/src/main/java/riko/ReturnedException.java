@@ -1,13 +1,103 @@
 package riko;
 
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
 /** Represents a Rust error. */
 public class ReturnedException extends RuntimeException {
 
-  private final Error error;
+  private @Nullable Error error;
+
+  private final int code;
+
+  private final int handle;
+
+  /** Releases the error on the Rust side, {@code null} once it is described or if there is none. */
+  private transient @Nullable Release release;
 
   public ReturnedException(final Error src) {
     super(String.format("[Display] %1$s [Debug] %2$s", src.message, src.debug));
     this.error = src;
+    this.code = 0;
+    this.handle = 0;
+  }
+
+  /**
+   * Constructs an exception for an error kept on the Rust side.
+   *
+   * <p>No stack trace is captured, and the error is only formatted when its message or its debug
+   * info is asked for. The error is kept on the Rust side until then, or until this exception is
+   * garbage collected.
+   *
+   * @param code Code of the error type.
+   * @param handle Handle to the error on the Rust side.
+   */
+  protected ReturnedException(final int code, final int handle) {
+    super(null, null, false, false);
+    this.code = code;
+    this.handle = handle;
+    this.release = new Release(this, handle);
+  }
+
+  /** Called by the Rust side when throwing natively. */
+  private ReturnedException(final String message, final String debug) {
+    this(newError(message, debug));
+  }
+
+  private static Error newError(final String message, final String debug) {
+    final Error error = new Error();
+    error.message = message;
+    error.debug = debug;
+    return error;
+  }
+
+  /** Fetches the error from the Rust side if it is not here yet, and then releases it there. */
+  private synchronized Error error() {
+    Error result = error;
+    if (result == null) {
+      result = new Error();
+      final @Nullable String message = describe(handle, false);
+      final @Nullable String debug = describe(handle, true);
+      final @Nullable Release current = release;
+      if (current != null && current.forget()) {
+        releaseAll(new int[] {handle});
+      }
+      release = null;
+      if (message == null || debug == null) {
+        result.message = String.format("Error %1$d is no longer available", code);
+        result.debug = result.message;
+      } else {
+        result.message = message;
+        result.debug = debug;
+      }
+      error = result;
+    }
+    return result;
+  }
+
+  @Override
+  public String getMessage() {
+    final @Nullable String message = super.getMessage();
+    if (message != null) {
+      return message;
+    }
+    final Error src = error();
+    return String.format("[Display] %1$s [Debug] %2$s", src.message, src.debug);
+  }
+
+  /**
+   * Gets the code of the error type.
+   *
+   * <p>It is {@code 0} unless the error is thrown as a subclass dedicated to its type.
+   */
+  public int getCode() {
+    return code;
   }
 
   /**
@@ -16,6 +106,71 @@ public class ReturnedException extends RuntimeException {
    * <p>The {@code Debug} trait is used to generate this info.
    */
   public String getDebug() {
-    return error.debug;
+    return error().debug;
+  }
+
+  private static native @Nullable String describe(int handle, boolean debug);
+
+  private static native void releaseAll(int[] handles);
+
+  /** Tracks a {@link ReturnedException} to release its error after it becomes unreachable. */
+  private static final class Release extends PhantomReference<ReturnedException> {
+
+    /** Maximum number of errors released in one native call. */
+    private static final int MAX_BATCH = 1024;
+
+    private static final ReferenceQueue<ReturnedException> QUEUE = new ReferenceQueue<>();
+
+    /** Keeps every {@link Release} reachable until its error is released. */
+    private static final Collection<Release> PENDING =
+        Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+    static {
+      final Thread releaser = new Thread(Release::run, "riko-error-releaser");
+      releaser.setDaemon(true);
+      releaser.start();
+    }
+
+    private final int handle;
+
+    Release(final ReturnedException referent, final int handle) {
+      super(referent, QUEUE);
+      this.handle = handle;
+      PENDING.add(this);
+    }
+
+    /**
+     * Stops tracking as the error is released explicitly.
+     *
+     * @return {@code false} if it is already released.
+     */
+    boolean forget() {
+      return PENDING.remove(this);
+    }
+
+    private static void run() {
+      final int[] handles = new int[MAX_BATCH];
+      while (true) {
+        try {
+          int count = 0;
+          @Nullable Reference<? extends ReturnedException> next = QUEUE.remove();
+          while (next != null) {
+            final Release release = (Release) next;
+            if (release.forget()) {
+              handles[count++] = release.handle;
+            }
+            next = count < MAX_BATCH ? QUEUE.poll() : null;
+          }
+          if (count > 0) {
+            releaseAll(Arrays.copyOf(handles, count));
+          }
+        } catch (final InterruptedException e) {
+          return;
+        } catch (final RuntimeException e) {
+          final Thread thread = Thread.currentThread();
+          thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+        }
+      }
+    }
   }
 }
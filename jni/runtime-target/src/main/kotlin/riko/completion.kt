@@ -0,0 +1,133 @@
+package riko
+
+import java.nio.Buffer
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.util.concurrent.locks.ReentrantLock
+
+/**
+ * Results of async functions reaped from memory shared with Rust, analogous to
+ * `riko_runtime_jni::ring`.
+ *
+ * Each poller spins for a while when there is nothing to reap, and then parks until Rust publishes
+ * more. While spinning, it only peeks at the counter of published records in shared memory, and
+ * calls into Rust to make the records visible once the counter has moved.
+ *
+ * Only one poller reaps at a time, taking whatever is published in one go, and the others skip
+ * instead of waiting for it. The records have to be reaped and released in order because Rust
+ * reuses the arena up to the end of the last released result, so sharding the reaping would only
+ * add contention. Reaping only decodes the results, which are then delivered outside the lock,
+ * and that is where more pollers help.
+ */
+internal object CompletionQueue {
+
+  private const val RECORD_SIZE = 32
+  private const val SPINS = 1000
+  private const val PARK_NANOS = 10_000_000L
+
+  private val lock = ReentrantLock()
+  private lateinit var records: ByteBuffer
+  private lateinit var arena: ByteBuffer
+  private lateinit var counter: ByteBuffer
+
+  /** Number of records reaped so far, only written while holding [lock]. */
+  @Volatile private var reaped = 0L
+
+  /** Starts [pollers] daemon threads reaping the queue, does nothing if it is `0`. */
+  fun start(pollers: Int) {
+    if (pollers <= 0) {
+      return
+    }
+    records = recordsBuffer().order(ByteOrder.nativeOrder())
+    arena = arenaBuffer()
+    counter = counterBuffer().order(ByteOrder.nativeOrder())
+    for (i in 0 until pollers) {
+      val thread = Thread({ poll() }, "riko-poller-$i")
+      thread.isDaemon = true
+      thread.start()
+    }
+  }
+
+  private fun poll() {
+    var idle = 0
+    while (true) {
+      if (reap()) {
+        idle = 0
+      } else if (idle < SPINS) {
+        ++idle
+      } else {
+        await(reaped, PARK_NANOS)
+        idle = 0
+      }
+    }
+  }
+
+  /** Reaps all published records and delivers them, returns `false` if there was nothing. */
+  private fun reap(): Boolean {
+    if (counter.getLong(0) == reaped || !lock.tryLock()) {
+      return false
+    }
+    val handles = ArrayList<FutureHandle>()
+    val results = ArrayList<Returned>()
+    try {
+      val published = published(reaped)
+      if (published == reaped) {
+        return false
+      }
+      val capacity = records.capacity() / RECORD_SIZE
+      var arenaEnd = 0L
+      while (reaped < published) {
+        val position = (reaped % capacity).toInt() * RECORD_SIZE
+        val offset = records.getInt(position + 20)
+        val length = records.getInt(position + 24)
+        val payload: Buffer = arena.duplicate()
+        payload.limit(offset + length)
+        payload.position(offset)
+        handles.add(records.getLong(position + 8))
+        results.add(
+            try {
+              Marshaler.decode(payload as ByteBuffer)
+            } catch (e: Exception) {
+              Unmarshalable(e)
+            })
+        arenaEnd = records.getInt(position + 16).toLong()
+        ++reaped
+      }
+      release(reaped, arenaEnd)
+    } finally {
+      lock.unlock()
+    }
+
+    for (i in handles.indices) {
+      try {
+        Future.complete(handles[i], results[i])
+      } catch (e: Exception) {
+        report(e)
+      }
+    }
+    return true
+  }
+
+  /** Reports an exception without stopping the poller. */
+  private fun report(e: Exception) {
+    val thread = Thread.currentThread()
+    thread.uncaughtExceptionHandler.uncaughtException(thread, e)
+  }
+
+  @JvmStatic private external fun recordsBuffer(): ByteBuffer
+
+  @JvmStatic private external fun arenaBuffer(): ByteBuffer
+
+  /** Gets the counter of published records, which is only a hint without calling [published]. */
+  @JvmStatic private external fun counterBuffer(): ByteBuffer
+
+  /**
+   * Gets the number of records that can be reaped, i.e. those published one after another since
+   * the [reaped] ones, and makes them visible to this thread.
+   */
+  @JvmStatic private external fun published(reaped: Long): Long
+
+  @JvmStatic private external fun release(records: Long, arena: Long)
+
+  @JvmStatic private external fun await(seen: Long, timeout: Long)
+}
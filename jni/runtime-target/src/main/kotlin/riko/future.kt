@@ -1,68 +1,194 @@
 package riko
 
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
 import java.util.concurrent.CompletableFuture
 import java.util.concurrent.CompletionStage
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executor
+import java.util.concurrent.atomic.LongAdder
 import java.util.concurrent.Future as StdFuture
 import org.bson.BsonValue
 
-/** Analogous to a Rust `Future`. */
+/**
+ * Analogous to a Rust `Future`.
+ *
+ * Unless a completion executor is set, the dependent stages run on the Riko thread delivering the
+ * result, so a slow callback delays the results of other `Future`s.
+ */
 class Future
 private constructor(
     private val inner: CompletableFuture<BsonValue>,
-    private val handle: Handle,
+    private val handle: FutureHandle,
 ) : StdFuture<BsonValue> by inner, CompletionStage<BsonValue> by inner {
 
-  constructor(handle: Handle) : this(CompletableFuture(), handle)
+  constructor(handle: FutureHandle) : this(CompletableFuture(), handle)
+
+  @Volatile private var completionExecutor: Executor? = defaultCompletionExecutor
 
   init {
-    synchronized(pool) {
-      pool[handle] = this
-      notifyCompletion()
-    }
+    receive(handle, Waiter(::deliver))
   }
 
   override fun cancel(mayInterruptIfRunning: Boolean): Boolean {
-    Companion.cancel(handle)
-    synchronized(lock) {
-      pool.remove(handle)
-      completed.remove(handle)
-    }
+    abandon(handle)
     return inner.cancel(mayInterruptIfRunning)
   }
 
+  /**
+   * Completes this `Future` on [executor] instead of the Riko thread delivering the result, so that
+   * the dependent stages run there.
+   *
+   * Overrides [ExecutorConfig.completionExecutor]. Has no effect if the result is already
+   * delivered.
+   */
+  fun completeOn(executor: Executor): Future {
+    completionExecutor = executor
+    return this
+  }
+
+  private fun deliver(returned: Returned) {
+    val executor = completionExecutor
+    if (executor == null) {
+      settle(returned)
+    } else {
+      executor.execute { settle(returned) }
+    }
+  }
+
+  private fun settle(returned: Returned) {
+    val value: BsonValue
+    try {
+      value = returned.unwrap()
+    } catch (e: Exception) {
+      inner.completeExceptionally(e)
+      return
+    }
+    inner.complete(value)
+  }
+
   companion object {
 
-    private val lock = Any()
-    private val pool = mutableMapOf<Handle, Future>()
-    private val completed = mutableMapOf<Handle, Returned>()
+    /** See [ExecutorConfig.completionExecutor]. */
+    @Volatile internal var defaultCompletionExecutor: Executor? = null
+
+    private val callbackTime = LongAdder()
+    private val callbackCount = LongAdder()
 
-    private fun notifyCompletion() {
-      synchronized(lock) {
-        for (entry in completed.entries.filter { pool.containsKey(it.key) }) {
-          val future = pool[entry.key]!!
+    /**
+     * Total time in nanoseconds Riko threads have spent completing [Future]s.
+     *
+     * It includes the dependent stages run without a completion executor, and only submitting the
+     * completion with one.
+     */
+    @JvmStatic
+    val callbackNanos: Long
+      get() = callbackTime.sum()
+
+    /** Number of [Future]s completed by Riko threads, see [callbackNanos]. */
+    @JvmStatic
+    val callbacks: Long
+      get() = callbackCount.sum()
 
-          val value: BsonValue
-          try {
-            value = entry.value.unwrap()
-          } catch (e: Exception) {
-            future.inner.completeExceptionally(e)
-            return
-          }
+    /**
+     * Either a [Waiter] for a result, or a [Returned] that arrived before its [Waiter].
+     *
+     * Whichever comes second takes the slot away from the other one.
+     */
+    private val slots = ConcurrentHashMap<FutureHandle, Any>()
 
-          future.inner.complete(value)
+    /** What [completeAll] overwrites each handle with once its result is delivered. */
+    private const val DELIVERED: FutureHandle = -1
+
+    /**
+     * Notifies that some Rust `Future`s have completed.
+     *
+     * @param handles Overwritten with [DELIVERED] one by one, so that the Rust side delivers the
+     * rest again if this throws.
+     * @param data Results of the `Future`s in the same order as [handles] as consecutive BSON
+     * documents.
+     */
+    @JvmStatic
+    private fun completeAll(handles: LongArray, data: ByteArray) {
+      val lengths = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN)
+      var offset = 0
+      for (i in handles.indices) {
+        val handle = handles[i]
+        val length = lengths.getInt(offset)
+        val returned =
+            try {
+              Marshaler.decode(ByteBuffer.wrap(data, offset, length))
+            } catch (e: Exception) {
+              Unmarshalable(e)
+            }
+        try {
+          complete(handle, returned)
+        } catch (e: Exception) {
+          // Not failing the rest of the batch
+          val thread = Thread.currentThread()
+          thread.uncaughtExceptionHandler.uncaughtException(thread, e)
         }
+        handles[i] = DELIVERED
+        offset += length
       }
     }
 
-    /** Notifies that a Rust `Future` has completed. */
-    @JvmStatic
-    private fun complete(handle: Handle, raw: ByteArray) {
-      synchronized(lock) {
-        completed[handle] = Marshaler.decode(raw)
-        notifyCompletion()
+    /** Delivers the result of a Rust `Future`. */
+    internal fun complete(handle: FutureHandle, returned: Returned) {
+      val waiting = slots.putIfAbsent(handle, returned)
+      if (waiting != null) {
+        slots.remove(handle, waiting)
+        val start = System.nanoTime()
+        (waiting as Waiter).deliver(returned)
+        callbackTime.add(System.nanoTime() - start)
+        callbackCount.increment()
       }
     }
 
-    @JvmStatic private external fun cancel(handle: Handle)
+    /** Hands the result of a Rust `Future` to [waiter] when it arrives, or now if it has. */
+    internal fun receive(handle: FutureHandle, waiter: Waiter) {
+      val early = slots.putIfAbsent(handle, waiter)
+      if (early != null) {
+        slots.remove(handle, early)
+        waiter.deliver(early as Returned)
+      }
+    }
+
+    /** Stops waiting for the result of a Rust `Future` and cancels it. */
+    internal fun abandon(handle: FutureHandle) {
+      cancel(handle)
+      slots.remove(handle)
+    }
+
+    @JvmStatic private external fun cancel(handle: FutureHandle)
+  }
+}
+
+/** Receives the result of a Rust `Future`. */
+internal class Waiter(val deliver: (Returned) -> Unit)
+
+/** Result of a Rust `Future` that failed to be unmarshaled, failing whoever unwraps it. */
+internal class Unmarshalable(private val cause: Exception) : Returned() {
+  override fun unwrap(): BsonValue = throw MarshalException(cause)
+}
+
+/**
+ * A Rust `Future` polled on a Java [Executor], analogous to `riko_runtime::executor::ForeignTask`.
+ */
+internal class Task private constructor(private val pointer: Long) : Runnable {
+
+  override fun run() {
+    poll(pointer)
+  }
+
+  companion object {
+
+    /** Called by the Rust side whenever the task needs to be polled. */
+    @JvmStatic
+    private fun schedule(executor: Executor, pointer: Long) {
+      executor.execute(Task(pointer))
+    }
+
+    @JvmStatic private external fun poll(pointer: Long)
   }
 }
@@ -1,23 +1,130 @@
 package riko
 
-import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.Executor
+import java.util.concurrent.atomic.AtomicReference
 
 /** Analogous to `riko_runtime::Handle`. */
 typealias Handle = Int
 
+/** Analogous to `riko_runtime::FutureHandle`. */
+typealias FutureHandle = Long
+
+/** Implementations of the executor, analogous to `riko_runtime::executor::Backend`. */
+enum class ExecutorBackend {
+  FUTURES,
+  TOKIO,
+  TOKIO_CURRENT_THREAD,
+
+  /**
+   * No Rust threads, the Rust `Future`s are polled on [ExecutorConfig.executor] and their results
+   * are delivered on the same threads.
+   */
+  JAVA
+}
+
+/**
+ * Configuration of the executor running async functions, analogous to
+ * `riko_runtime::executor::ExecutorConfig`.
+ *
+ * @property workers Number of worker threads, `0` for as many as [cores].
+ * @property cores Maximum number of CPU cores to occupy, `0` for all available ones.
+ * @property stackSize Stack size of each thread in bytes, `0` for the default.
+ * @property pollers Number of threads reaping results of async functions from memory shared with
+ * Rust, `0` for receiving each result from a Rust thread instead.
+ * @property executor Where the Rust `Future`s are polled, required by [ExecutorBackend.JAVA]. It
+ * must not run a task in the thread submitting it.
+ * @property completionExecutor Where each [Future] is completed and its dependent stages run by
+ * default, `null` for the Riko thread delivering the result. See [Future.completeOn].
+ * @property blockingThreads Maximum number of threads running blocking functions, `0` for 512. They
+ * are separate from the [workers], spawned when needed and exit after idling for 10 seconds.
+ */
+data class ExecutorConfig
+@JvmOverloads
+constructor(
+    val backend: ExecutorBackend = ExecutorBackend.FUTURES,
+    val workers: Int = 0,
+    val cores: Int = 0,
+    val threadName: String = "riko",
+    val stackSize: Long = 0,
+    val pollers: Int = 0,
+    val executor: Executor? = null,
+    val completionExecutor: Executor? = null,
+    val blockingThreads: Int = 0
+) {
+  init {
+    require(backend != ExecutorBackend.JAVA || executor != null) {
+      "Backend `JAVA` requires an executor"
+    }
+  }
+}
+
 /** Initializes Riko runtime. */
 class Initializer {
   companion object {
-    private val done = AtomicBoolean(false)
+    /** [ExecutorConfig] the runtime is initialized with. */
+    private val applied = AtomicReference<ExecutorConfig>()
 
-    /** Initializes Riko runtime for JNI at most once. */
+    /**
+     * Initializes Riko runtime for JNI at most once, using the default [ExecutorConfig] unless it
+     * is already initialized with another one.
+     */
     @JvmStatic
     fun initialize() {
-      if (!done.getAndSet(true)) {
-        __riko_initialize()
+      initializeOnce(ExecutorConfig())
+    }
+
+    /**
+     * Initializes Riko runtime for JNI at most once.
+     *
+     * @param config Executor running async functions.
+     * @return `false` if the runtime is already initialized with an equal [config].
+     * @throws IllegalStateException If the runtime is already initialized with another config,
+     * which happens when this is called after a module whose executor is configured is used.
+     * @throws IllegalArgumentException If the runtime is built without what [config] requires.
+     */
+    @JvmStatic
+    fun initialize(config: ExecutorConfig): Boolean {
+      val current = initializeOnce(config) ?: return true
+      check(current == config) {
+        "Riko runtime is already initialized with $current, too late for $config"
+      }
+      return false
+    }
+
+    /** Initializes with [config] if not yet, returning the config already applied otherwise. */
+    private fun initializeOnce(config: ExecutorConfig): ExecutorConfig? {
+      if (!applied.compareAndSet(null, config)) {
+        return applied.get()
       }
+      Future.defaultCompletionExecutor = config.completionExecutor
+      try {
+        __riko_initialize(
+            config.backend.name,
+            config.workers,
+            config.cores,
+            config.threadName,
+            config.stackSize,
+            config.pollers,
+            config.executor,
+            config.blockingThreads)
+      } catch (e: RuntimeException) {
+        applied.set(null)
+        throw e
+      }
+      CompletionQueue.start(config.pollers)
+      return null
     }
 
-    @JvmStatic private external fun __riko_initialize()
+    @JvmStatic
+    private external fun __riko_initialize(
+        backend: String,
+        workers: Int,
+        cores: Int,
+        threadName: String,
+        stackSize: Long,
+        pollers: Int,
+        executor: Executor?,
+        blockingThreads: Int
+    )
   }
 }
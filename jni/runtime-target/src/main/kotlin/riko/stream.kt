@@ -0,0 +1,155 @@
+package riko
+
+import java.lang.ref.PhantomReference
+import java.lang.ref.ReferenceQueue
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicBoolean
+import org.bson.BsonValue
+import org.reactivestreams.Subscriber
+import org.reactivestreams.Subscription
+
+/**
+ * Analogous to a Rust `Stream`, publishing its items to a single [Subscriber].
+ *
+ * Items are only produced as they are requested, and those ready at the same time are delivered
+ * together. Signals are delivered on the Riko thread driving the `Stream`. Cancelling the
+ * subscription drops the Rust `Stream`, and so does the publisher becoming unreachable without
+ * being subscribed.
+ */
+class Publisher(private val handle: FutureHandle) : org.reactivestreams.Publisher<BsonValue> {
+
+  private val subscribed = AtomicBoolean()
+
+  @Volatile private var subscriber: Subscriber<in BsonValue>? = null
+
+  private val unsubscribed = Unsubscribed(this, handle)
+
+  override fun subscribe(subscriber: Subscriber<in BsonValue>) {
+    if (!subscribed.compareAndSet(false, true)) {
+      subscriber.onSubscribe(Closed)
+      subscriber.onError(IllegalStateException("A Rust `Stream` can only be subscribed once"))
+      return
+    }
+    this.subscriber = subscriber
+    unsubscribed.forget()
+    publishers[handle] = this
+    subscriber.onSubscribe(
+        object : Subscription {
+          override fun request(n: Long) {
+            if (n > 0) {
+              demand(handle, n)
+            } else {
+              close()?.onError(IllegalArgumentException("Requesting $n items"))
+            }
+          }
+
+          override fun cancel() {
+            close()
+          }
+        })
+  }
+
+  /** Stops publishing and drops the Rust `Stream`, returning the subscriber if not yet stopped. */
+  private fun close(): Subscriber<in BsonValue>? {
+    if (publishers.remove(handle, this)) {
+      drop(handle)
+    }
+    val current = subscriber
+    subscriber = null
+    return current
+  }
+
+  private fun deliver(data: ByteArray, ended: Boolean) {
+    val current = subscriber ?: return
+    val lengths = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN)
+    var offset = 0
+    while (offset < data.size) {
+      val length = lengths.getInt(offset)
+      val value: BsonValue
+      try {
+        value = Marshaler.decode(ByteBuffer.wrap(data, offset, length)).unwrap()
+      } catch (e: Exception) {
+        close()?.onError(e)
+        return
+      }
+      current.onNext(value)
+      offset += length
+    }
+    if (ended) {
+      close()?.onComplete()
+    }
+  }
+
+  private object Closed : Subscription {
+    override fun request(n: Long) {}
+
+    override fun cancel() {}
+  }
+
+  /** Tracks a [Publisher] not yet subscribed to drop its Rust `Stream` once it is unreachable. */
+  private class Unsubscribed(referent: Publisher, private val handle: FutureHandle) :
+      PhantomReference<Publisher>(referent, queue) {
+
+    init {
+      pending.add(this)
+    }
+
+    /** Stops tracking as the publisher is subscribed. */
+    fun forget() {
+      pending.remove(this)
+    }
+
+    companion object {
+
+      private val queue = ReferenceQueue<Publisher>()
+
+      /** Keeps every [Unsubscribed] reachable until its [Publisher] is subscribed. */
+      private val pending = ConcurrentHashMap.newKeySet<Unsubscribed>()
+
+      init {
+        val thread = Thread({ run() }, "riko-stream-dropper")
+        thread.isDaemon = true
+        thread.start()
+      }
+
+      private fun run() {
+        while (true) {
+          try {
+            val next = queue.remove() as Unsubscribed
+            if (pending.remove(next)) {
+              drop(next.handle)
+            }
+          } catch (e: InterruptedException) {
+            return
+          } catch (e: RuntimeException) {
+            val thread = Thread.currentThread()
+            thread.uncaughtExceptionHandler.uncaughtException(thread, e)
+          }
+        }
+      }
+    }
+  }
+
+  companion object {
+
+    /** Subscribed [Publisher]s whose Rust `Stream`s are still running. */
+    private val publishers = ConcurrentHashMap<FutureHandle, Publisher>()
+
+    /**
+     * Delivers a batch of items of a Rust `Stream`.
+     *
+     * @param data Items as consecutive BSON documents.
+     * @param ended If the `Stream` has ended or failed after this batch.
+     */
+    @JvmStatic
+    private fun deliver(handle: FutureHandle, data: ByteArray, ended: Boolean) {
+      publishers[handle]?.deliver(data, ended)
+    }
+
+    @JvmStatic private external fun demand(handle: FutureHandle, count: Long)
+
+    @JvmStatic private external fun drop(handle: FutureHandle)
+  }
+}
@@ -0,0 +1,20 @@
+package riko
+
+import kotlinx.coroutines.suspendCancellableCoroutine
+import org.bson.BsonValue
+
+/**
+ * Suspends until a Rust `Future` completes, analogous to `.await` in Rust.
+ *
+ * The result resumes the coroutine directly without going through a [Future]. Cancelling the
+ * coroutine cancels the Rust `Future`.
+ *
+ * Requires `kotlinx-coroutines-core`, which this library does not depend on.
+ *
+ * @param handle Handle returned by a `__riko_spawn_` method of a generated module.
+ */
+suspend fun awaitFuture(handle: FutureHandle): BsonValue = suspendCancellableCoroutine {
+  continuation ->
+  continuation.invokeOnCancellation { Future.abandon(handle) }
+  Future.receive(handle, Waiter { continuation.resumeWith(runCatching { it.unwrap() }) })
+}
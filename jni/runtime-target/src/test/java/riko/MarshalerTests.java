@@ -0,0 +1,240 @@
+package riko;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import org.bson.BsonArray;
+import org.bson.BsonBinary;
+import org.bson.BsonBinaryWriter;
+import org.bson.BsonBoolean;
+import org.bson.BsonDecimal128;
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentReader;
+import org.bson.BsonDouble;
+import org.bson.BsonInt32;
+import org.bson.BsonInt64;
+import org.bson.BsonNull;
+import org.bson.BsonString;
+import org.bson.BsonValue;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonDocumentCodec;
+import org.bson.codecs.EncoderContext;
+import org.bson.io.BasicOutputBuffer;
+import org.bson.types.Decimal128;
+import org.junit.jupiter.api.Test;
+
+class MarshalerTests {
+
+  private static final int WARMUP = 200_000;
+  private static final int ITERATIONS = 100_000;
+
+  /** Bytes tolerated per call on top of the returned array, e.g. for iterating documents. */
+  private static final long TOLERANCE = 64;
+
+  private static BsonDocument sample() {
+    final BsonArray array = new BsonArray();
+    for (int i = 0; i < 12; ++i) {
+      array.add(new BsonInt32(i));
+    }
+    return new BsonDocument()
+        .append("string", new BsonString("Riko \u2665"))
+        .append("int32", new BsonInt32(-1))
+        .append("int64", new BsonInt64(Long.MAX_VALUE))
+        .append("double", new BsonDouble(0.5))
+        .append("decimal128", new BsonDecimal128(Decimal128.parse("-1.25E+100")))
+        .append("bool", BsonBoolean.TRUE)
+        .append("null", BsonNull.VALUE)
+        .append("binary", new BsonBinary(new byte[] {1, 2, 3}))
+        .append("array", array)
+        .append("document", new BsonDocument("nested", new BsonString("")));
+  }
+
+  /** What {@link Marshaler#encode(BsonValue)} used to do. */
+  private static byte[] encodeWithWriter(final BsonValue src) {
+    try (final BasicOutputBuffer buffer = new BasicOutputBuffer();
+        final BsonBinaryWriter writer = new BsonBinaryWriter(buffer);
+        final BsonDocumentReader reader = new BsonDocumentReader(new BsonDocument("value", src))) {
+      writer.pipe(reader);
+      return buffer.toByteArray();
+    }
+  }
+
+  /** Encodes a document like what the Rust side returns. */
+  private static byte[] encodeReturned(final BsonDocument src) {
+    try (final BasicOutputBuffer buffer = new BasicOutputBuffer();
+        final BsonBinaryWriter writer = new BsonBinaryWriter(buffer)) {
+      new BsonDocumentCodec().encode(writer, src, EncoderContext.builder().build());
+      return buffer.toByteArray();
+    }
+  }
+
+  /** Skips the test if the JVM cannot count the bytes allocated by a thread. */
+  private static com.sun.management.ThreadMXBean allocationCounter() {
+    final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    assumeTrue(bean instanceof com.sun.management.ThreadMXBean, "No allocation counter");
+    final com.sun.management.ThreadMXBean counter = (com.sun.management.ThreadMXBean) bean;
+    assumeTrue(counter.isThreadAllocatedMemorySupported(), "Allocation counter not supported");
+    assumeTrue(counter.isThreadAllocatedMemoryEnabled(), "Allocation counter not enabled");
+    return counter;
+  }
+
+  /** Bytes taken by an array of {@code length} bytes, assuming compressed class pointers. */
+  private static long arraySize(final int length) {
+    return (16 + length + 7) & ~7;
+  }
+
+  /** Measures the bytes allocated per call after warming up. */
+  private static long allocationRate(final Runnable call) {
+    final com.sun.management.ThreadMXBean counter = allocationCounter();
+    final long thread = Thread.currentThread().getId();
+    for (int i = 0; i < WARMUP; ++i) {
+      call.run();
+    }
+
+    final long start = counter.getThreadAllocatedBytes(thread);
+    for (int i = 0; i < ITERATIONS; ++i) {
+      call.run();
+    }
+    return (counter.getThreadAllocatedBytes(thread) - start) / ITERATIONS;
+  }
+
+  @Test
+  void encode() {
+    final BsonDocument document = sample();
+    assertArrayEquals(encodeWithWriter(document), Marshaler.encode(document));
+    assertArrayEquals(new byte[0], Marshaler.encode(null));
+
+    // Copied as it is
+    final RawBsonDocument raw = new RawBsonDocument(encodeWithWriter(document));
+    assertArrayEquals(encodeWithWriter(document), Marshaler.encode(raw.getDocument("value")));
+  }
+
+  @Test
+  void encodeAll() {
+    final BsonDocument document = sample();
+    final byte[] first = encodeWithWriter(document);
+    final byte[] second = encodeWithWriter(new BsonInt32(1));
+    final byte[] empty = {5, 0, 0, 0, 0};
+
+    final byte[] expected = new byte[first.length + empty.length + second.length];
+    System.arraycopy(first, 0, expected, 0, first.length);
+    System.arraycopy(empty, 0, expected, first.length, empty.length);
+    System.arraycopy(second, 0, expected, first.length + empty.length, second.length);
+
+    assertArrayEquals(expected, Marshaler.encodeAll(document, null, new BsonInt32(1)));
+  }
+
+  @Test
+  void decode() {
+    final BsonDocument document = sample();
+    final Returned value =
+        Marshaler.decode(
+            encodeReturned(
+                new BsonDocument().append("error", BsonNull.VALUE).append("value", document)));
+    assertNull(value.error);
+    assertEquals(document, value.value);
+
+    final Returned error =
+        Marshaler.decode(
+            encodeReturned(
+                new BsonDocument()
+                    .append(
+                        "error",
+                        new BsonDocument()
+                            .append("debug", new BsonString("Debug"))
+                            .append("unknown", BsonBoolean.TRUE)
+                            .append("message", new BsonString("Message")))
+                    .append("value", BsonNull.VALUE)));
+    assertNull(error.value);
+    assertNotNull(error.error);
+    assertEquals("Debug", error.error.debug);
+    assertEquals("Message", error.error.message);
+  }
+
+  @Test
+  void decodeLazy() {
+    final BsonDocument document = sample();
+    final Returned value =
+        Marshaler.decodeLazy(
+            encodeReturned(
+                new BsonDocument().append("error", BsonNull.VALUE).append("value", document)));
+    assertNull(value.error);
+    assertTrue(value.value instanceof RawBsonDocument);
+    assertEquals(document, value.value);
+
+    // Not a document
+    final Returned scalar =
+        Marshaler.decodeLazy(
+            encodeReturned(
+                new BsonDocument()
+                    .append("error", BsonNull.VALUE)
+                    .append("value", new BsonInt32(1))));
+    assertEquals(new BsonInt32(1), scalar.value);
+
+    final Returned error =
+        Marshaler.decodeLazy(
+            encodeReturned(
+                new BsonDocument()
+                    .append(
+                        "error",
+                        new BsonDocument()
+                            .append("debug", new BsonString("Debug"))
+                            .append("message", new BsonString("Message")))
+                    .append("value", BsonNull.VALUE)));
+    assertNotNull(error.error);
+  }
+
+  @Test
+  void decodeValue() {
+    final BsonDocument document = sample();
+    final byte[] src = encodeReturned(new BsonDocument("value", document));
+    assertEquals(document, Marshaler.decodeValue(src));
+    assertTrue(Marshaler.decodeValueLazy(src) instanceof RawBsonDocument);
+    assertEquals(document, Marshaler.decodeValueLazy(src));
+
+    final byte[] empty = encodeReturned(new BsonDocument("value", BsonNull.VALUE));
+    assertEquals(BsonNull.VALUE, Marshaler.decodeValue(empty));
+    assertEquals(BsonNull.VALUE, Marshaler.decodeValueLazy(empty));
+  }
+
+  @Test
+  void directBuffer() {
+    final BsonDocument document = sample();
+    final DirectBuffer buffer = DirectBuffer.acquire();
+    buffer.write(new BsonInt32(1));
+    buffer.write(null);
+    buffer.write(document);
+
+    final byte[] expected = Marshaler.encodeAll(new BsonInt32(1), null, document);
+    final ByteBuffer view = buffer.buffer().duplicate();
+    ((Buffer) view).clear();
+    final byte[] actual = new byte[buffer.length()];
+    view.get(actual);
+    assertArrayEquals(expected, actual);
+  }
+
+  @Test
+  void allocationRateEncode() {
+    final BsonDocument document = sample();
+    final long expected = arraySize(Marshaler.encode(document).length);
+    final long perCall = allocationRate(() -> Marshaler.encode(document));
+    assertTrue(perCall <= expected + TOLERANCE, "Allocated " + perCall + " bytes per call");
+  }
+
+  @Test
+  void allocationRateEncodeAll() {
+    final BsonValue scalar = new BsonInt32(1);
+    final BsonDocument document = sample();
+    final long expected = arraySize(Marshaler.encodeAll(scalar, document).length);
+    final long perCall = allocationRate(() -> Marshaler.encodeAll(scalar, document));
+    assertTrue(perCall <= expected + TOLERANCE, "Allocated " + perCall + " bytes per call");
+  }
+}
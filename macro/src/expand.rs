@@ -1,7 +1,13 @@
 use quote::ToTokens;
 use syn::Attribute;
+use syn::AttributeArgs;
 use syn::FnArg;
 use syn::ItemFn;
+use syn::Lit;
+use syn::LitStr;
+use syn::Meta;
+use syn::NestedMeta;
+use syn::Type;
 
 pub fn remove_marshal_attrs(function: &mut ItemFn) {
     fn remove(attrs: &mut Vec<Attribute>) {
@@ -17,6 +23,32 @@ pub fn remove_marshal_attrs(function: &mut ItemFn) {
     }
 }
 
+/// Finds the [Lock](riko_runtime::object::Lock) chosen by the parameters of `#[riko::object]`.
+pub fn object_lock(args: &AttributeArgs) -> syn::Result<Type> {
+    let mut lock = None;
+    for arg in args {
+        match arg {
+            NestedMeta::Meta(Meta::NameValue(pair)) if pair.path.is_ident("lock") => {
+                match &pair.lit {
+                    Lit::Str(value) => lock = Some(value),
+                    _ => return Err(syn::Error::new_spanned(&pair.lit, "Expect a string")),
+                }
+            }
+            _ => return Err(syn::Error::new_spanned(arg, "Unrecognized parameter")),
+        }
+    }
+    match lock.map(LitStr::value).as_deref() {
+        None | Some("mutex") => Ok(syn::parse_quote! { ::std::sync::Mutex<Self> }),
+        Some("rw") => Ok(syn::parse_quote! { ::std::sync::RwLock<Self> }),
+        Some("none") => Ok(syn::parse_quote! { ::riko_runtime::object::Unlocked<Self> }),
+        Some("thread") => Ok(syn::parse_quote! { ::riko_runtime::object::Confined<Self> }),
+        Some(_) => Err(syn::Error::new_spanned(
+            lock,
+            "Expect one of `mutex`, `rw`, `none` or `thread`",
+        )),
+    }
+}
+
 #[cfg(test)]
 mod tests {
     use super::*;
@@ -42,4 +74,23 @@ mod tests {
             actual.into_token_stream().to_string()
         )
     }
+
+    #[test]
+    fn object_lock() {
+        let expected: Type = syn::parse_quote! { ::std::sync::RwLock<Self> };
+        let actual = super::object_lock(&vec![syn::parse_quote! { lock = "rw" }]).unwrap();
+        assert_eq!(
+            expected.into_token_stream().to_string(),
+            actual.into_token_stream().to_string()
+        );
+
+        let expected: Type = syn::parse_quote! { ::std::sync::Mutex<Self> };
+        let actual = super::object_lock(&vec![]).unwrap();
+        assert_eq!(
+            expected.into_token_stream().to_string(),
+            actual.into_token_stream().to_string()
+        );
+
+        assert!(super::object_lock(&vec![syn::parse_quote! { lock = "spin" }]).is_err());
+    }
 }
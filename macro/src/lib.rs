@@ -7,7 +7,10 @@
 mod expand;
 
 use proc_macro::TokenStream;
+use quote::quote;
 use quote::ToTokens;
+use syn::AttributeArgs;
+use syn::DeriveInput;
 use syn::ItemFn;
 
 /// Specifies marshaling rule for a function parameter.
@@ -40,6 +43,44 @@ pub fn fun(_: TokenStream, item: TokenStream) -> TokenStream {
     subject.into_token_stream().into()
 }
 
+/// Makes a type an [Object](riko_runtime::object::Object) and chooses how it is locked.
+///
+/// The `lock` parameter is one of:
+///
+/// * `mutex`: Every access is exclusive, the default.
+/// * `rw`: Shared accesses run concurrently under a read lock, the type must be `Sync`.
+/// * `none`: No lock at all, but only shared accesses, the type must be `Sync`.
+/// * `thread`: No synchronization at all, but only on the thread creating the object.
+///
+/// The type must be `Send` in any case.
+///
+/// # Example
+///
+/// ```ignore
+/// #[riko::object(lock = "rw")]
+/// pub struct RoutingTable {
+///     routes: HashMap<String, String>,
+/// }
+/// ```
+#[proc_macro_attribute]
+pub fn object(args: TokenStream, item: TokenStream) -> TokenStream {
+    let args = syn::parse_macro_input!(args as AttributeArgs);
+    let subject = syn::parse_macro_input!(item as DeriveInput);
+    let lock = match expand::object_lock(&args) {
+        Ok(lock) => lock,
+        Err(err) => return err.to_compile_error().into(),
+    };
+    let name = &subject.ident;
+    let (impl_generics, type_generics, where_clause) = subject.generics.split_for_impl();
+    let result = quote! {
+        #subject
+        impl #impl_generics ::riko_runtime::object::Object for #name #type_generics #where_clause {
+            type Lock = #lock;
+        }
+    };
+    result.into()
+}
+
 /// Ignores the marked item.
 ///
 /// Riko's source code parser will ignore any item marked by this attribute, as well as any child-items.
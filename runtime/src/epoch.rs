@@ -0,0 +1,163 @@
+//! Epoch-based reclamation, so that objects are read without locking them or counting references.
+//!
+//! A thread reading an object [pins](pin) itself to the current epoch during the read, which only
+//! writes a word of its own. An object unlinked by another thread is [retired](retire) at the
+//! current epoch, which starts a new one, and is only dropped after [synchronize] finds no thread
+//! still pinned to that epoch or an earlier one.
+//!
+//! A thread pinned for long, e.g. blocked inside an action on an object, therefore delays dropping
+//! every object retired meanwhile, but never the readers.
+
+use std::lazy::SyncLazy;
+use std::sync::atomic::fence;
+use std::sync::atomic::AtomicBool;
+use std::sync::atomic::AtomicU64;
+use std::sync::atomic::Ordering;
+use std::sync::Arc;
+use std::sync::Mutex;
+use std::time::Duration;
+
+/// Current epoch, starting at `1` as `0` means a thread is not pinned.
+static EPOCH: AtomicU64 = AtomicU64::new(1);
+
+/// Every thread that has ever pinned itself, reused by another thread after it exits.
+static PARTICIPANTS: SyncLazy<Mutex<Vec<Arc<Participant>>>> = SyncLazy::new(Default::default);
+
+thread_local! {
+    static PARTICIPANT: Registration = Registration::new();
+}
+
+#[derive(Default)]
+struct Participant {
+    /// The epoch the thread is pinned to, or `0` if it is not pinned.
+    pinned: AtomicU64,
+
+    /// Whether a thread is using it.
+    taken: AtomicBool,
+}
+
+/// A [Participant] taken by the current thread until it exits.
+struct Registration(Arc<Participant>);
+
+impl Registration {
+    fn new() -> Self {
+        let mut participants = PARTICIPANTS.lock().unwrap();
+        let vacant = participants.iter().find(|participant| {
+            participant
+                .taken
+                .compare_exchange(false, true, Ordering::Acquire, Ordering::Relaxed)
+                .is_ok()
+        });
+        let participant = match vacant {
+            Some(participant) => participant.clone(),
+            None => {
+                let participant = Arc::new(Participant {
+                    pinned: Default::default(),
+                    taken: AtomicBool::new(true),
+                });
+                participants.push(participant.clone());
+                participant
+            }
+        };
+        Self(participant)
+    }
+}
+
+impl Drop for Registration {
+    fn drop(&mut self) {
+        self.0.pinned.store(0, Ordering::Release);
+        self.0.taken.store(false, Ordering::Release);
+    }
+}
+
+/// Unpins the current thread when dropped, even if the action panics.
+struct Unpin<'a>(&'a Participant);
+
+impl Drop for Unpin<'_> {
+    fn drop(&mut self) {
+        self.0.pinned.store(0, Ordering::Release)
+    }
+}
+
+/// Runs an action during which nothing retired from now on is dropped.
+pub(crate) fn pin<R>(action: impl FnOnce() -> R) -> R {
+    PARTICIPANT.with(|registration| {
+        let participant = &registration.0;
+        if participant.pinned.load(Ordering::Relaxed) != 0 {
+            // Already pinned by an outer call
+            return action();
+        }
+        participant
+            .pinned
+            .store(EPOCH.load(Ordering::Acquire), Ordering::Relaxed);
+        fence(Ordering::SeqCst);
+        let _unpin = Unpin(participant);
+        action()
+    })
+}
+
+/// Starts a new epoch after something is unlinked.
+///
+/// # Returns
+///
+/// The epoch it is retired at, to [synchronize] with before dropping it.
+pub(crate) fn retire() -> u64 {
+    EPOCH.fetch_add(1, Ordering::SeqCst)
+}
+
+/// Waits until no thread is pinned to `epoch` or an earlier one.
+pub(crate) fn synchronize(epoch: u64) {
+    let participants = PARTICIPANTS.lock().unwrap().clone();
+    fence(Ordering::SeqCst);
+    for participant in participants {
+        let mut spins = 0;
+        loop {
+            let pinned = participant.pinned.load(Ordering::Acquire);
+            if pinned == 0 || pinned > epoch {
+                break;
+            }
+            if spins < 100 {
+                spins += 1;
+                std::thread::yield_now()
+            } else {
+                std::thread::sleep(Duration::from_millis(1))
+            }
+        }
+    }
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+    use std::sync::mpsc::channel;
+
+    #[test]
+    fn synchronize_waits() {
+        let (pinned_sender, pinned) = channel();
+        let (unpin, unpin_receiver) = channel::<()>();
+        let reader = std::thread::spawn(move || {
+            pin(|| {
+                pinned_sender.send(()).unwrap();
+                unpin_receiver.recv().unwrap();
+            })
+        });
+        pinned.recv().unwrap();
+
+        let epoch = retire();
+        let (done_sender, done) = channel();
+        let writer = std::thread::spawn(move || {
+            synchronize(epoch);
+            done_sender.send(()).unwrap();
+        });
+        assert!(done.recv_timeout(Duration::from_millis(50)).is_err());
+
+        unpin.send(()).unwrap();
+        done.recv().unwrap();
+        reader.join().unwrap();
+        writer.join().unwrap();
+
+        // Pinned after retiring, so not waited for
+        let epoch = retire();
+        pin(|| synchronize(epoch));
+    }
+}
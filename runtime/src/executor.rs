@@ -0,0 +1,559 @@
+//! Executors running async functions.
+//!
+//! The executor is chosen with [configure] before the first async function is called, otherwise
+//! the default [ExecutorConfig] is used.
+
+use futures_executor::ThreadPool;
+use futures_util::future::BoxFuture;
+use futures_util::task::waker_ref;
+use futures_util::task::ArcWake;
+use futures_util::task::SpawnExt;
+use futures_util::FutureExt;
+use std::collections::VecDeque;
+use std::future::Future;
+use std::lazy::SyncOnceCell;
+use std::sync::atomic::AtomicBool;
+use std::sync::atomic::Ordering;
+use std::sync::Arc;
+use std::sync::Condvar;
+use std::sync::Mutex;
+use std::sync::PoisonError;
+use std::task::Context;
+use std::time::Duration;
+
+static CONFIG: SyncOnceCell<ExecutorConfig> = SyncOnceCell::new();
+
+/// Maximum number of threads running blocking functions by default, the same as tokio.
+pub const DEFAULT_BLOCKING_THREADS: usize = 512;
+
+/// How long a thread running blocking functions idles before exiting, the same as tokio.
+pub const BLOCKING_KEEP_ALIVE: Duration = Duration::from_secs(10);
+
+/// Chooses the executor used by Riko.
+///
+/// # Returns
+///
+/// The same `config` as an error if an executor is already chosen, in which case nothing changes.
+pub fn configure(config: ExecutorConfig) -> Result<(), ExecutorConfig> {
+    CONFIG.set(config)
+}
+
+/// Gets the chosen configuration, choosing the default one if none is chosen yet.
+pub fn config() -> &'static ExecutorConfig {
+    CONFIG.get_or_init(Default::default)
+}
+
+/// Implementations of an executor.
+#[derive(Clone, Copy, Debug, PartialEq, Eq)]
+pub enum Backend {
+    /// A thread pool from [futures-executor](https://crates.io/crates/futures-executor).
+    ///
+    /// It has no I/O or timer driver.
+    Futures,
+
+    /// A multi-threaded [tokio](https://crates.io/crates/tokio) runtime with all its drivers.
+    ///
+    /// Requires the feature `tokio`.
+    Tokio,
+
+    /// A single-threaded [tokio](https://crates.io/crates/tokio) runtime with all its drivers,
+    /// driven by a dedicated thread.
+    ///
+    /// Requires the feature `tokio`.
+    TokioCurrentThread,
+
+    /// No threads of Riko's own, each [ForeignTask] is handed to
+    /// [scheduler](ExecutorConfig::scheduler) which runs it on a thread of the foreign language.
+    Foreign,
+}
+
+impl Backend {
+    /// Checks if the runtime is built with what the backend requires.
+    pub fn is_available(self) -> bool {
+        match self {
+            Self::Futures | Self::Foreign => true,
+            Self::Tokio | Self::TokioCurrentThread => cfg!(feature = "tokio"),
+        }
+    }
+}
+
+impl Default for Backend {
+    fn default() -> Self {
+        Self::Futures
+    }
+}
+
+/// Configuration of an executor.
+#[derive(Clone, Debug, PartialEq, Eq)]
+pub struct ExecutorConfig {
+    pub backend: Backend,
+
+    /// Number of worker threads, `0` for as many as [cores](ExecutorConfig::cores).
+    ///
+    /// Ignored by [TokioCurrentThread](Backend::TokioCurrentThread).
+    pub workers: usize,
+
+    /// Maximum number of CPU cores to occupy, `0` for all available ones.
+    ///
+    /// The number of worker threads never exceeds it, leaving the rest of the cores to the other
+    /// thread pools in the process.
+    pub cores: usize,
+
+    /// Name of the threads, each followed by a sequence number except for
+    /// [TokioCurrentThread](Backend::TokioCurrentThread).
+    pub thread_name: String,
+
+    /// Stack size of each thread in bytes, `0` for the default.
+    pub stack_size: usize,
+
+    /// Maximum number of threads running blocking functions, `0` for
+    /// [DEFAULT_BLOCKING_THREADS].
+    ///
+    /// They are spawned when needed and exit after idling for [BLOCKING_KEEP_ALIVE]. The tokio
+    /// backends use the blocking pool of tokio.
+    pub blocking_threads: usize,
+
+    /// Schedules a [ForeignTask] to be run, required by [Foreign](Backend::Foreign).
+    ///
+    /// It must not run the task before returning, because it may be called while the same task
+    /// is being polled.
+    pub scheduler: Option<fn(ForeignTask)>,
+}
+
+impl ExecutorConfig {
+    /// Resolves the maximum number of threads running blocking functions.
+    pub fn blocking_thread_count(&self) -> usize {
+        if self.blocking_threads == 0 {
+            DEFAULT_BLOCKING_THREADS
+        } else {
+            self.blocking_threads
+        }
+    }
+
+    /// Resolves the number of worker threads.
+    pub fn worker_count(&self) -> usize {
+        let available = std::thread::available_parallelism()
+            .map(Into::into)
+            .unwrap_or(1);
+        let cores = if self.cores == 0 {
+            available
+        } else {
+            self.cores.min(available)
+        };
+        if self.workers == 0 {
+            cores
+        } else {
+            self.workers.min(cores)
+        }
+    }
+}
+
+impl Default for ExecutorConfig {
+    fn default() -> Self {
+        Self {
+            backend: Default::default(),
+            workers: 0,
+            cores: 0,
+            thread_name: "riko".into(),
+            stack_size: 0,
+            blocking_threads: 0,
+            scheduler: None,
+        }
+    }
+}
+
+/// An executor chosen by an [ExecutorConfig].
+pub(crate) enum Executor {
+    Futures(ThreadPool),
+
+    #[cfg(feature = "tokio")]
+    Tokio(tokio::runtime::Runtime),
+
+    /// The runtime is owned by the thread driving it.
+    #[cfg(feature = "tokio")]
+    TokioCurrentThread(tokio::runtime::Handle),
+
+    Foreign(fn(ForeignTask)),
+}
+
+impl Executor {
+    pub fn new(config: &ExecutorConfig) -> Self {
+        match config.backend {
+            Backend::Futures => {
+                let mut builder = ThreadPool::builder();
+                builder
+                    .pool_size(config.worker_count())
+                    .name_prefix(format!("{}-", config.thread_name));
+                if config.stack_size > 0 {
+                    builder.stack_size(config.stack_size);
+                }
+                let executor = builder
+                    .create()
+                    .expect("Failed to create executor for Riko language bindings");
+                Self::Futures(executor)
+            }
+            #[cfg(feature = "tokio")]
+            Backend::Tokio => {
+                // Numbers the workers like the futures backend does
+                let name = config.thread_name.clone();
+                let index = std::sync::atomic::AtomicUsize::new(0);
+                let mut builder = tokio::runtime::Builder::new_multi_thread();
+                builder
+                    .enable_all()
+                    .worker_threads(config.worker_count())
+                    .max_blocking_threads(config.blocking_thread_count())
+                    .thread_name_fn(move || {
+                        let index = index.fetch_add(1, std::sync::atomic::Ordering::Relaxed);
+                        format!("{}-{}", name, index)
+                    });
+                if config.stack_size > 0 {
+                    builder.thread_stack_size(config.stack_size);
+                }
+                let runtime = builder
+                    .build()
+                    .expect("Failed to create executor for Riko language bindings");
+                Self::Tokio(runtime)
+            }
+            #[cfg(feature = "tokio")]
+            Backend::TokioCurrentThread => {
+                let runtime = tokio::runtime::Builder::new_current_thread()
+                    .enable_all()
+                    .max_blocking_threads(config.blocking_thread_count())
+                    .build()
+                    .expect("Failed to create executor for Riko language bindings");
+                let handle = runtime.handle().clone();
+                let mut builder = std::thread::Builder::new().name(config.thread_name.clone());
+                if config.stack_size > 0 {
+                    builder = builder.stack_size(config.stack_size);
+                }
+                builder
+                    .spawn(move || runtime.block_on(std::future::pending::<()>()))
+                    .expect("Failed to create executor for Riko language bindings");
+                Self::TokioCurrentThread(handle)
+            }
+            #[cfg(not(feature = "tokio"))]
+            Backend::Tokio | Backend::TokioCurrentThread => {
+                panic!("Riko runtime is built without feature `tokio`")
+            }
+            Backend::Foreign => Self::Foreign(
+                config
+                    .scheduler
+                    .expect("A foreign executor requires a scheduler"),
+            ),
+        }
+    }
+
+    /// Runs a future wrapping a blocking function where it may block.
+    ///
+    /// The tokio backends use the blocking pool of tokio, the others the one created by
+    /// `fallback` when first needed.
+    pub fn spawn_blocking<F>(&self, task: F, fallback: impl FnOnce() -> &'static BlockingPool)
+    where
+        F: Future<Output = ()> + Send + 'static,
+    {
+        match self {
+            #[cfg(feature = "tokio")]
+            Self::Tokio(runtime) => {
+                runtime.spawn_blocking(move || futures_executor::block_on(task));
+            }
+            #[cfg(feature = "tokio")]
+            Self::TokioCurrentThread(handle) => {
+                handle.spawn_blocking(move || futures_executor::block_on(task));
+            }
+            Self::Futures(_) | Self::Foreign(_) => fallback().spawn(task),
+        }
+    }
+
+    pub fn spawn<F>(&self, task: F)
+    where
+        F: Future<Output = ()> + Send + 'static,
+    {
+        match self {
+            Self::Futures(executor) => executor.spawn(task).expect("Failed to spawn a job"),
+            #[cfg(feature = "tokio")]
+            Self::Tokio(runtime) => {
+                runtime.spawn(task);
+            }
+            #[cfg(feature = "tokio")]
+            Self::TokioCurrentThread(handle) => {
+                handle.spawn(task);
+            }
+            Self::Foreign(scheduler) => {
+                let task = Arc::new(TaskInner {
+                    future: Mutex::new(Some(task.boxed())),
+                    aborted: AtomicBool::new(false),
+                    scheduler: *scheduler,
+                });
+                scheduler(ForeignTask(task))
+            }
+        }
+    }
+}
+
+/// Thread pool running blocking functions for the backends other than tokio.
+///
+/// It grows up to [blocking_thread_count](ExecutorConfig::blocking_thread_count) threads as the
+/// functions queue up, and each thread exits after idling for [BLOCKING_KEEP_ALIVE].
+pub(crate) struct BlockingPool(Arc<BlockingInner>);
+
+struct BlockingInner {
+    state: Mutex<BlockingState>,
+    available: Condvar,
+    max_threads: usize,
+    thread_name: String,
+    stack_size: usize,
+}
+
+#[derive(Default)]
+struct BlockingState {
+    queue: VecDeque<BoxFuture<'static, ()>>,
+    threads: usize,
+    idle: usize,
+
+    /// Sequence number of the next thread.
+    index: usize,
+}
+
+impl BlockingPool {
+    pub fn new(config: &ExecutorConfig) -> Self {
+        Self(Arc::new(BlockingInner {
+            state: Default::default(),
+            available: Default::default(),
+            max_threads: config.blocking_thread_count(),
+            thread_name: format!("{}-blocking", config.thread_name),
+            stack_size: config.stack_size,
+        }))
+    }
+
+    pub fn spawn<F>(&self, task: F)
+    where
+        F: Future<Output = ()> + Send + 'static,
+    {
+        let mut state = self.0.state.lock().unwrap();
+        state.queue.push_back(task.boxed());
+        if state.idle >= state.queue.len() {
+            self.0.available.notify_one();
+        } else if state.threads < self.0.max_threads {
+            let mut builder =
+                std::thread::Builder::new().name(format!("{}-{}", self.0.thread_name, state.index));
+            if self.0.stack_size > 0 {
+                builder = builder.stack_size(self.0.stack_size);
+            }
+            let inner = self.0.clone();
+            builder
+                .spawn(move || inner.work())
+                .expect("Failed to create a thread for blocking functions");
+            state.threads += 1;
+            state.index += 1;
+        }
+    }
+}
+
+impl BlockingInner {
+    fn work(&self) {
+        let mut state = self.state.lock().unwrap();
+        loop {
+            if let Some(task) = state.queue.pop_front() {
+                drop(state);
+                futures_executor::block_on(task);
+                state = self.state.lock().unwrap();
+                continue;
+            }
+            state.idle += 1;
+            let (next, timeout) = self
+                .available
+                .wait_timeout(state, BLOCKING_KEEP_ALIVE)
+                .unwrap();
+            state = next;
+            state.idle -= 1;
+            if timeout.timed_out() && state.queue.is_empty() {
+                state.threads -= 1;
+                return;
+            }
+        }
+    }
+}
+
+/// A [Future] spawned on a [Foreign](Backend::Foreign) executor.
+///
+/// The foreign executor calls [run](ForeignTask::run) each time the task is scheduled, and the
+/// task schedules itself again whenever it is woken. It crosses the FFI boundary as a pointer
+/// from [into_raw](ForeignTask::into_raw). A task the foreign executor cannot run must be
+/// [aborted](ForeignTask::abort).
+pub struct ForeignTask(Arc<TaskInner>);
+
+struct TaskInner {
+    /// [None] once the task has completed.
+    future: Mutex<Option<BoxFuture<'static, ()>>>,
+
+    /// Whether to drop the future instead of keeping it after polling.
+    aborted: AtomicBool,
+
+    scheduler: fn(ForeignTask),
+}
+
+impl ArcWake for TaskInner {
+    fn wake_by_ref(arc_self: &Arc<Self>) {
+        (arc_self.scheduler)(ForeignTask(arc_self.clone()))
+    }
+}
+
+impl ForeignTask {
+    /// Polls the task once on the current thread.
+    ///
+    /// A task scheduled more than once only makes progress in one of the threads at a time.
+    pub fn run(self) {
+        // A panicking future is already dropped
+        let mut slot = self.0.future.lock().unwrap_or_else(PoisonError::into_inner);
+        if let Some(mut future) = slot.take() {
+            let waker = waker_ref(&self.0);
+            let mut context = Context::from_waker(&waker);
+            if future.as_mut().poll(&mut context).is_pending() {
+                *slot = Some(future);
+            }
+        }
+        drop(slot);
+
+        // Aborted while being polled
+        if self.0.aborted.load(Ordering::SeqCst) {
+            self.abort()
+        }
+    }
+
+    /// Drops the future of a task that will never be run again, e.g. rejected by the foreign
+    /// executor.
+    ///
+    /// If the task is being polled, the future is dropped once it is done.
+    pub fn abort(self) {
+        self.0.aborted.store(true, Ordering::SeqCst);
+        let future = match self.0.future.try_lock() {
+            Ok(mut slot) => slot.take(),
+            Err(_) => None,
+        };
+        drop(future);
+    }
+
+    pub fn into_raw(self) -> *const () {
+        Arc::into_raw(self.0) as *const ()
+    }
+
+    /// Takes back a task from [into_raw](ForeignTask::into_raw).
+    ///
+    /// # Safety
+    ///
+    /// `pointer` must come from [into_raw](ForeignTask::into_raw) and be taken back only once.
+    pub unsafe fn from_raw(pointer: *const ()) -> Self {
+        Self(Arc::from_raw(pointer as *const TaskInner))
+    }
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+    use std::lazy::SyncLazy;
+
+    #[test]
+    fn worker_count() {
+        let available: usize = std::thread::available_parallelism().unwrap().into();
+        let config = ExecutorConfig {
+            workers: available + 1,
+            ..Default::default()
+        };
+        assert_eq!(available, config.worker_count());
+
+        let config = ExecutorConfig {
+            workers: 0,
+            cores: 1,
+            ..Default::default()
+        };
+        assert_eq!(1, config.worker_count());
+
+        let config = ExecutorConfig::default();
+        assert_eq!(available, config.worker_count());
+    }
+
+    #[test]
+    fn blocking_pool() {
+        let pool = BlockingPool::new(&ExecutorConfig {
+            blocking_threads: 2,
+            ..Default::default()
+        });
+        let barrier = Arc::new(std::sync::Barrier::new(2));
+        let (sender, receiver) = std::sync::mpsc::channel();
+        for _ in 0..2 {
+            let barrier = barrier.clone();
+            let sender = sender.clone();
+            // Both block until the other one runs
+            pool.spawn(async move {
+                barrier.wait();
+                sender.send(std::thread::current().name().map(Into::into)).unwrap();
+            });
+        }
+        let mut names = receiver.iter().take(2).collect::<Vec<Option<String>>>();
+        names.sort();
+        let expected = vec![
+            Some("riko-blocking-0".to_string()),
+            Some("riko-blocking-1".to_string()),
+        ];
+        assert_eq!(expected, names);
+        assert_eq!(2, pool.0.state.lock().unwrap().threads);
+    }
+
+    #[test]
+    fn foreign() {
+        static SCHEDULED: SyncLazy<Mutex<Vec<ForeignTask>>> = SyncLazy::new(Default::default);
+        static DONE: AtomicBool = AtomicBool::new(false);
+        fn schedule(task: ForeignTask) {
+            SCHEDULED.lock().unwrap().push(task)
+        }
+
+        let executor = Executor::new(&ExecutorConfig {
+            backend: Backend::Foreign,
+            scheduler: Some(schedule),
+            ..Default::default()
+        });
+        let (remote, handle) = futures_util::future::ready(()).remote_handle();
+        executor.spawn(async move {
+            handle.await;
+            DONE.store(true, Ordering::SeqCst);
+        });
+        executor.spawn(remote);
+
+        loop {
+            // Not holding the lock while running as the task may schedule itself again
+            let task = SCHEDULED.lock().unwrap().pop();
+            match task {
+                Some(task) => task.run(),
+                None => break,
+            }
+        }
+        assert!(DONE.load(Ordering::SeqCst));
+    }
+
+    #[test]
+    fn foreign_abort() {
+        fn schedule(task: ForeignTask) {
+            task.abort()
+        }
+
+        static DROPPED: AtomicBool = AtomicBool::new(false);
+        struct Guard;
+        impl Drop for Guard {
+            fn drop(&mut self) {
+                DROPPED.store(true, Ordering::SeqCst)
+            }
+        }
+
+        let executor = Executor::new(&ExecutorConfig {
+            backend: Backend::Foreign,
+            scheduler: Some(schedule),
+            ..Default::default()
+        });
+        let guard = Guard;
+        executor.spawn(async move {
+            let _guard = guard;
+            std::future::pending::<()>().await
+        });
+        assert!(DROPPED.load(Ordering::SeqCst));
+    }
+}
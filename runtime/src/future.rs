@@ -1,76 +1,315 @@
 //! Handles async functions
 
+use crate::executor::BlockingPool;
+use crate::executor::Executor;
+use crate::executor::ExecutorConfig;
 use crate::returned::Returned;
-use crate::Handle;
+use crate::stream::Demand;
+use crate::FutureHandle;
 use crate::Marshal;
-use futures_executor::ThreadPool;
 use futures_util::future::RemoteHandle;
-use futures_util::task::SpawnExt;
 use futures_util::FutureExt;
+use futures_util::Stream;
 use std::collections::HashMap;
 use std::future::Future;
 use std::lazy::SyncLazy;
+use std::lazy::SyncOnceCell;
+use std::marker::PhantomData;
+use std::sync::atomic::AtomicI64;
+use std::sync::atomic::Ordering;
+use std::sync::Arc;
 use std::sync::Mutex;
 
+/// Number of shards in a [Pool], must be a power of 2.
+const SHARDS: usize = 64;
+
 /// Pool of [Future]s being run by Riko's own executor.
+///
+/// The [Future]s are spread over several shards by their [FutureHandle]s, so that spawning and
+/// cancelling them from many threads rarely contend for the same lock.
 pub struct Pool {
-    pool: HashMap<Handle, RemoteHandle<()>>,
-    executor: ThreadPool,
-    counter: Handle,
+    shards: Vec<Mutex<HashMap<FutureHandle, RemoteHandle<()>>>>,
+    executor: Executor,
+
+    /// Runs blocking functions unless the executor has its own pool, created when first needed.
+    blocking: SyncOnceCell<BlockingPool>,
+
+    /// Demands for the [Stream]s being run.
+    demands: Mutex<HashMap<FutureHandle, Arc<Demand>>>,
+
+    config: ExecutorConfig,
+    counter: AtomicI64,
 }
 
 impl Pool {
+    /// Creates a [Pool] running on the executor chosen by `config`.
+    pub fn new(config: &ExecutorConfig) -> Self {
+        Self {
+            executor: Executor::new(config),
+            blocking: Default::default(),
+            demands: Default::default(),
+            config: config.clone(),
+            shards: std::iter::repeat_with(Default::default)
+                .take(SHARDS)
+                .collect(),
+            counter: Default::default(),
+        }
+    }
+
     /// Spawns a future.
-    pub fn spawn<F, N, R, T>(&mut self, task: F, notifier: N) -> Handle
+    pub fn spawn<F, N, R, T>(&'static self, task: F, notifier: N) -> FutureHandle
     where
         F: Future<Output = R> + Send + 'static,
-        N: FnOnce(Handle, Returned<T>) + Send + 'static,
+        N: FnOnce(FutureHandle, Returned<T>) + Send + 'static,
+        R: Into<Returned<T>>,
+        T: Marshal + 'static,
+    {
+        let handle = self.new_handle();
+        self.executor.spawn(self.track(handle, task, notifier));
+        handle
+    }
+
+    /// Runs a blocking function on a dedicated thread pool as if it were a future.
+    ///
+    /// The thread pool never blocks the futures run by the executor, and is sized by
+    /// [blocking_threads](ExecutorConfig::blocking_threads).
+    pub fn spawn_blocking<F, N, R, T>(&'static self, task: F, notifier: N) -> FutureHandle
+    where
+        F: FnOnce() -> R + Send + 'static,
+        N: FnOnce(FutureHandle, Returned<T>) + Send + 'static,
+        R: Into<Returned<T>>,
+        T: Marshal + 'static,
+    {
+        let handle = self.new_handle();
+        self.executor.spawn_blocking(
+            self.track(handle, async move { task() }, notifier),
+            || self.blocking.get_or_init(|| BlockingPool::new(&self.config)),
+        );
+        handle
+    }
+
+    /// Runs a [Stream] as items are demanded by [request](Pool::request), see [crate::stream].
+    ///
+    /// `notifier` receives each batch of items, and whether it is the last one.
+    pub fn spawn_stream<S, N, R, T>(&'static self, stream: S, mut notifier: N) -> FutureHandle
+    where
+        S: Stream<Item = R> + Send + 'static,
+        N: FnMut(FutureHandle, Vec<Returned<T>>, bool) + Send + 'static,
         R: Into<Returned<T>>,
-        T: Marshal,
+        T: Marshal + 'static,
     {
         let handle = self.new_handle();
+        let demand = Arc::<Demand>::default();
+        self.demands
+            .lock()
+            .unwrap()
+            .insert(handle, demand.clone());
+        let task = async move {
+            let notifier = |batch, ended| notifier(handle, batch, ended);
+            crate::stream::drive(stream, &demand, notifier).await;
+            self.demands.lock().unwrap().remove(&handle);
+        };
+        self.executor
+            .spawn(self.track(handle, task, |_, _: Returned<()>| {}));
+        handle
+    }
+
+    /// Demands `count` more items from a [Stream] run by this [Pool].
+    pub fn request(&self, handle: FutureHandle, count: u64) {
+        let demand = self.demands.lock().unwrap().get(&handle).cloned();
+        if let Some(demand) = demand {
+            demand.request(count)
+        }
+    }
+
+    /// Registers a future so that it can be cancelled, and wraps it to notify its result.
+    fn track<F, N, R, T>(
+        &'static self,
+        handle: FutureHandle,
+        task: F,
+        notifier: N,
+    ) -> impl Future<Output = ()> + Send + 'static
+    where
+        F: Future<Output = R> + Send + 'static,
+        N: FnOnce(FutureHandle, Returned<T>) + Send + 'static,
+        R: Into<Returned<T>>,
+        T: Marshal + 'static,
+    {
+        let mut notifier = Notifier {
+            pool: self,
+            handle,
+            notifier: Some(notifier),
+            result: PhantomData,
+        };
         let task = async move {
             let result = task.await.into();
-            if let Some(token) = POOL.lock().unwrap().pool.remove(&handle) {
-                notifier(handle, result);
-                token.forget()
-            }
+            notifier.notify(result);
         };
         let (task, token) = task.remote_handle();
-        let old_handle = self.pool.insert(handle, token);
+        let old_handle = self.shard(handle).lock().unwrap().insert(handle, token);
         assert!(old_handle.is_none(), "Same handle used more than once");
-        self.executor.spawn(task).expect("Failed to spawn a job");
-        handle
+        task
     }
 
-    /// Cancels a [Future] run by this [Pool].
-    pub fn cancel(&mut self, handle: Handle) {
-        self.pool.remove(&handle);
+    /// Cancels a [Future] or a [Stream] run by this [Pool].
+    pub fn cancel(&self, handle: FutureHandle) {
+        // Dropped outside the lock
+        let token = self.shard(handle).lock().unwrap().remove(&handle);
+        drop(token);
+        self.demands.lock().unwrap().remove(&handle);
     }
 
-    /// Creates a [Handle] by incrementing the internal counter.
+    /// Creates a [FutureHandle] by incrementing the internal counter.
     ///
-    /// New [Handle]s are always monotonically increasing, which avoid collision.
-    fn new_handle(&mut self) -> Handle {
-        let previous = self.counter;
-        self.counter += 1;
-        previous
+    /// New [FutureHandle]s are always monotonically increasing, which avoid collision.
+    fn new_handle(&self) -> FutureHandle {
+        self.counter.fetch_add(1, Ordering::Relaxed)
+    }
+
+    fn shard(&self, handle: FutureHandle) -> &Mutex<HashMap<FutureHandle, RemoteHandle<()>>> {
+        &self.shards[handle as usize & (SHARDS - 1)]
+    }
+}
+
+/// Notifies the result of a [Future] tracked by a [Pool] unless it is cancelled.
+///
+/// If the [Future] is dropped before completing without being cancelled, e.g. rejected by a
+/// [Foreign](crate::executor::Backend::Foreign) executor or panicking, it notifies an [Abandoned]
+/// error instead.
+struct Notifier<N, T>
+where
+    N: FnOnce(FutureHandle, Returned<T>),
+{
+    pool: &'static Pool,
+    handle: FutureHandle,
+    notifier: Option<N>,
+    result: PhantomData<fn(T)>,
+}
+
+impl<N, T> Notifier<N, T>
+where
+    N: FnOnce(FutureHandle, Returned<T>),
+{
+    fn notify(&mut self, result: Returned<T>) {
+        // Not holding the lock while notifying
+        let token = self
+            .pool
+            .shard(self.handle)
+            .lock()
+            .unwrap()
+            .remove(&self.handle);
+        if let (Some(token), Some(notifier)) = (token, self.notifier.take()) {
+            notifier(self.handle, result);
+            token.forget()
+        }
+    }
+}
+
+impl<N, T> Drop for Notifier<N, T>
+where
+    N: FnOnce(FutureHandle, Returned<T>),
+{
+    fn drop(&mut self) {
+        if self.notifier.is_some() {
+            self.notify(Returned {
+                error: Some(Abandoned.into()),
+                value: None,
+            })
+        }
+    }
+}
+
+/// Error notified for a [Future] dropped before completing, see [Notifier].
+#[derive(Debug)]
+struct Abandoned;
+
+impl std::fmt::Display for Abandoned {
+    fn fmt(&self, f: &mut std::fmt::Formatter<'_>) -> std::fmt::Result {
+        write!(f, "Future dropped before completing, e.g. rejected by its executor")
     }
 }
 
+impl std::error::Error for Abandoned {}
+
 impl Default for Pool {
     fn default() -> Self {
-        let executor = ThreadPool::builder()
-            .name_prefix("riko-")
-            .create()
-            .expect("Failed to create executor for Riko language bindings");
-        Self {
-            executor,
-            pool: Default::default(),
-            counter: Default::default(),
-        }
+        Self::new(&Default::default())
     }
 }
 
-/// The singleton instance of [Pool].
-pub static POOL: SyncLazy<Mutex<Pool>> = SyncLazy::new(Default::default);
+/// The singleton instance of [Pool], running on the executor chosen by
+/// [configure](crate::executor::configure).
+pub static POOL: SyncLazy<Pool> = SyncLazy::new(|| Pool::new(crate::executor::config()));
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+    use crate::executor::Backend;
+    use std::sync::mpsc::channel;
+
+    #[test]
+    fn spawn() {
+        let (sender, receiver) = channel();
+        let handles = (0..100)
+            .map(|i| {
+                let sender = sender.clone();
+                POOL.spawn(async move { i }, move |handle, result: Returned<i32>| {
+                    sender.send((handle, result.value)).unwrap()
+                })
+            })
+            .collect::<Vec<_>>();
+
+        let mut actual = receiver.iter().take(100).collect::<Vec<_>>();
+        actual.sort_unstable();
+        let expected = handles
+            .into_iter()
+            .zip(0..)
+            .map(|(handle, i)| (handle, Some(i)))
+            .collect::<Vec<_>>();
+        assert_eq!(expected, actual);
+    }
+
+    #[test]
+    fn spawn_blocking() {
+        let (sender, receiver) = channel();
+        let handle = POOL.spawn_blocking(
+            || std::thread::current().name().unwrap_or_default().to_string(),
+            move |handle, result: Returned<String>| sender.send((handle, result.value)).unwrap(),
+        );
+        let (actual_handle, thread_name) = receiver.recv().unwrap();
+        assert_eq!(handle, actual_handle);
+        assert!(thread_name.unwrap().starts_with("riko-blocking-"));
+    }
+
+    #[test]
+    fn spawn_abandoned() {
+        fn schedule(task: crate::executor::ForeignTask) {
+            task.abort()
+        }
+
+        let pool: &'static Pool = Box::leak(Box::new(Pool::new(&ExecutorConfig {
+            backend: Backend::Foreign,
+            scheduler: Some(schedule),
+            ..Default::default()
+        })));
+        let (sender, receiver) = channel();
+        let handle = pool.spawn(async { 0 }, move |handle, result: Returned<i32>| {
+            sender.send((handle, result.error.is_some())).unwrap()
+        });
+        assert_eq!((handle, true), receiver.recv().unwrap());
+    }
+
+    #[test]
+    fn spawn_stream() {
+        let (sender, receiver) = channel();
+        let handle = POOL.spawn_stream(
+            futures_util::stream::iter(0..3),
+            move |handle, batch: Vec<Returned<i32>>, ended| {
+                let values = batch.into_iter().map(|item| item.value.unwrap());
+                sender.send((handle, values.collect::<Vec<_>>(), ended)).unwrap()
+            },
+        );
+        POOL.request(handle, 10);
+        assert_eq!((handle, vec![0, 1, 2], true), receiver.recv().unwrap());
+    }
+}
@@ -1,13 +1,17 @@
 //! Runtime for wrapper code generated by Riko - Core component.
 
+#![feature(associated_type_defaults)]
 #![feature(once_cell)]
 
 use serde::de::DeserializeOwned;
 use serde::Serialize;
 
+mod epoch;
+pub mod executor;
 pub mod future;
 pub mod object;
 pub mod returned;
+pub mod stream;
 
 /// Data marshaled between the FFI boundary.
 ///
@@ -19,3 +23,13 @@ impl<T: Serialize + DeserializeOwned> Marshal for T {}
 
 /// Opaque handle pointing to some artifact in Rust.
 pub type Handle = i32;
+
+/// Opaque handle pointing to an [Object](object::Object) in [POOL](object::POOL).
+///
+/// It is 64-bit so that a slot reused by another object has a different handle.
+pub type ObjectHandle = i64;
+
+/// Opaque handle pointing to a [Future](std::future::Future) run by Riko.
+///
+/// Unlike [Handle], it is 64-bit so that it never wraps around in a long-running process.
+pub type FutureHandle = i64;
@@ -1,44 +1,167 @@
 //! Handling heap-allocated objects.
 
 use crate::returned::Returned;
-use crate::Handle;
+use crate::ObjectHandle;
 use std::any::Any;
+use std::any::TypeId;
+use std::cell::Cell;
+use std::cell::RefCell;
+use std::cell::UnsafeCell;
 use std::collections::HashMap;
 use std::error::Error;
 use std::lazy::SyncLazy;
-use std::sync::atomic::AtomicI32;
+use std::lazy::SyncOnceCell;
+use std::panic::AssertUnwindSafe;
+use std::sync::atomic::AtomicPtr;
+use std::sync::atomic::AtomicU32;
+use std::sync::atomic::AtomicU64;
+use std::sync::atomic::AtomicUsize;
 use std::sync::atomic::Ordering;
 use std::sync::Arc;
+use std::sync::Condvar;
 use std::sync::Mutex;
 use std::sync::RwLock;
+use std::thread::ThreadId;
 
 /// Object allocated on the heap.
 ///
 /// These objects are allocated and freed on the Rust side while only expose a reference to the
 /// target side. Target code must integrate the manual memory management into its own mechanism as
 /// those memory management strategy (usually garbage collection) is not aware of any native code.
-pub trait Object: Send + Sync + Any {}
+///
+/// An object only needs to be [Sync] if its [Lock] shares it between threads.
+pub trait Object: Send + Any + Sized {
+    /// How the object is guarded against concurrent access, chosen with `#[riko::object]`.
+    type Lock: Lock<Self> = Mutex<Self>;
+}
+
+/// Strategy of guarding an [Object] in the [Pool] against concurrent access.
+///
+/// Implemented by:
+///
+/// * [Mutex]: Every access is exclusive.
+/// * [RwLock]: Shared accesses run concurrently, exclusive ones run alone. Requires [Sync].
+/// * [Unlocked]: No lock at all, but only shared accesses. Requires [Sync].
+/// * [Confined]: No synchronization at all, but only on the thread storing the object.
+pub trait Lock<T>: Any + Send + Sync {
+    fn new(obj: T) -> Self;
+
+    /// Runs an action with shared access to the object.
+    ///
+    /// # Returns
+    ///
+    /// [None] if the strategy forbids it on the current thread.
+    fn read<R>(&self, action: impl FnOnce(&T) -> R) -> Option<R>;
+
+    /// Runs an action with exclusive access to the object.
+    ///
+    /// # Returns
+    ///
+    /// [None] if the strategy forbids it on the current thread, or forbids it at all.
+    fn write<R>(&self, action: impl FnOnce(&mut T) -> R) -> Option<R>;
+}
+
+impl<T: Any + Send> Lock<T> for Mutex<T> {
+    fn new(obj: T) -> Self {
+        Mutex::new(obj)
+    }
+
+    fn read<R>(&self, action: impl FnOnce(&T) -> R) -> Option<R> {
+        Some(action(&self.lock().expect("Failed to lock the object")))
+    }
+
+    fn write<R>(&self, action: impl FnOnce(&mut T) -> R) -> Option<R> {
+        Some(action(&mut self.lock().expect("Failed to lock the object")))
+    }
+}
+
+impl<T: Any + Send + Sync> Lock<T> for RwLock<T> {
+    fn new(obj: T) -> Self {
+        RwLock::new(obj)
+    }
+
+    fn read<R>(&self, action: impl FnOnce(&T) -> R) -> Option<R> {
+        Some(action(&self.read().expect("Failed to lock the object")))
+    }
+
+    fn write<R>(&self, action: impl FnOnce(&mut T) -> R) -> Option<R> {
+        Some(action(&mut self.write().expect("Failed to lock the object")))
+    }
+}
+
+/// An object accessed without any lock, only through shared references.
+pub struct Unlocked<T>(T);
+
+impl<T: Any + Send + Sync> Lock<T> for Unlocked<T> {
+    fn new(obj: T) -> Self {
+        Self(obj)
+    }
+
+    fn read<R>(&self, action: impl FnOnce(&T) -> R) -> Option<R> {
+        Some(action(&self.0))
+    }
+
+    fn write<R>(&self, _: impl FnOnce(&mut T) -> R) -> Option<R> {
+        None
+    }
+}
+
+/// An object only accessible on the thread storing it, without any synchronization.
+///
+/// The object does not need to be [Sync], but it can still be dropped from any thread.
+pub struct Confined<T> {
+    owner: ThreadId,
+    value: RefCell<T>,
+}
+
+// SAFETY: The value is only borrowed on the owner thread.
+unsafe impl<T: Send> Sync for Confined<T> {}
+
+impl<T: Any + Send> Lock<T> for Confined<T> {
+    fn new(obj: T) -> Self {
+        Self {
+            owner: std::thread::current().id(),
+            value: RefCell::new(obj),
+        }
+    }
+
+    fn read<R>(&self, action: impl FnOnce(&T) -> R) -> Option<R> {
+        if std::thread::current().id() != self.owner {
+            return None;
+        }
+        let value = self.value.try_borrow().ok()?;
+        Some(action(&value))
+    }
+
+    fn write<R>(&self, action: impl FnOnce(&mut T) -> R) -> Option<R> {
+        if std::thread::current().id() != self.owner {
+            return None;
+        }
+        let mut value = self.value.try_borrow_mut().ok()?;
+        Some(action(&mut value))
+    }
+}
 
 /// Shelves an [Object] into [POOL].
-pub trait Shelve: Any + Send + Sync {
+pub trait Shelve: Any + Send {
     /// Shelves it.
-    fn shelve(self) -> Returned<Handle>;
+    fn shelve(self) -> Returned<ObjectHandle>;
 }
 
 impl<T: Object> Shelve for T {
-    fn shelve(self) -> Returned<Handle> {
-        POOL.store(self).into()
+    fn shelve(self) -> Returned<ObjectHandle> {
+        POOL.store_object(self).into()
     }
 }
 
-impl<T: Shelve> Shelve for Arc<T> {
-    fn shelve(self) -> Returned<Handle> {
+impl<T: Shelve + Sync> Shelve for Arc<T> {
+    fn shelve(self) -> Returned<ObjectHandle> {
         POOL.store(self).into()
     }
 }
 
 impl<T: Shelve> Shelve for Option<T> {
-    fn shelve(self) -> Returned<Handle> {
+    fn shelve(self) -> Returned<ObjectHandle> {
         match self {
             Some(obj) => obj.shelve(),
             None => Default::default(),
@@ -51,7 +174,7 @@ where
     T: Shelve,
     E: Error + Send + Sync + 'static,
 {
-    fn shelve(self) -> Returned<Handle> {
+    fn shelve(self) -> Returned<ObjectHandle> {
         match self {
             Ok(obj) => obj.shelve(),
             Err(err) => Returned {
@@ -65,57 +188,796 @@ where
 /// The global [Pool] that every [Object] is stored.
 pub static POOL: SyncLazy<Pool> = SyncLazy::new(Default::default);
 
+/// Runs the destructors of dropped objects.
+static RECLAIMER: SyncLazy<Reclaimer> = SyncLazy::new(|| {
+    std::thread::Builder::new()
+        .name("riko-destructor".into())
+        .spawn(|| RECLAIMER.run())
+        .expect("Failed to start the destructor thread");
+    Default::default()
+});
+
+/// Objects dropped from a [Pool] but whose destructors have not run yet.
+#[derive(Clone, Copy, Debug, Default, PartialEq, Eq)]
+pub struct Reclamation {
+    /// Number of objects.
+    pub pending: usize,
+
+    /// Total size of the objects in bytes, not counting what they own on the heap.
+    pub pending_bytes: usize,
+}
+
+/// Gets the objects waiting for their destructors to run.
+pub fn reclamation() -> Reclamation {
+    Reclamation {
+        pending: RECLAIMER.pending.load(Ordering::Relaxed),
+        pending_bytes: RECLAIMER.pending_bytes.load(Ordering::Relaxed),
+    }
+}
+
+/// Hands dropped objects to a dedicated thread, so that a slow destructor never blocks the thread
+/// dropping the object, nor anyone waiting on the locks it holds.
+///
+/// Each object is queued with the epoch it is retired at, and only dropped once no thread can
+/// still be reading it, see [crate::epoch].
+#[derive(Default)]
+struct Reclaimer {
+    queue: Mutex<Vec<Retired>>,
+    available: Condvar,
+    pending: AtomicUsize,
+    pending_bytes: AtomicUsize,
+}
+
+/// An object unlinked from a [Pool], the size of it and the epoch it is retired at.
+type Retired = (Box<dyn Send>, usize, u64);
+
+impl Reclaimer {
+    /// Queues an object just unlinked from a [Pool].
+    fn push(&self, obj: Box<dyn Send>, size: usize) {
+        self.pending.fetch_add(1, Ordering::Relaxed);
+        self.pending_bytes.fetch_add(size, Ordering::Relaxed);
+        let epoch = crate::epoch::retire();
+        self.queue.lock().unwrap().push((obj, size, epoch));
+        self.available.notify_one();
+    }
+
+    /// Runs the destructors forever.
+    fn run(&self) {
+        loop {
+            let batch = {
+                let mut queue = self.queue.lock().unwrap();
+                while queue.is_empty() {
+                    queue = self.available.wait(queue).unwrap();
+                }
+                std::mem::take(&mut *queue)
+            };
+            if let Some(epoch) = batch.iter().map(|(_, _, epoch)| *epoch).max() {
+                crate::epoch::synchronize(epoch);
+            }
+            for (obj, size, _) in batch {
+                // A panicking destructor must not stop the others
+                let _ = std::panic::catch_unwind(AssertUnwindSafe(|| drop(obj)));
+                self.pending_bytes.fetch_sub(size, Ordering::Relaxed);
+                self.pending.fetch_sub(1, Ordering::Relaxed);
+            }
+        }
+    }
+}
+
+/// Bits of an [ObjectHandle] for the index of the slot.
+const INDEX_BITS: u32 = 32;
+
+/// Bits of an [ObjectHandle] for the type of the object.
+const TAG_BITS: u32 = 12;
+
+/// Bits of an [ObjectHandle] for the generation of the slot, leaving the sign bit unused.
+const GENERATION_BITS: u32 = 63 - INDEX_BITS - TAG_BITS;
+
+/// Maximum number of types of objects.
+const MAX_TYPES: usize = 1 << TAG_BITS;
+
+/// Number of slots in the first chunk of a [Slab], must be a power of 2.
+///
+/// Each chunk after it is twice as large as the one before.
+const CHUNK: usize = 1024;
+
+/// Number of chunks of a [Slab], enough for every index an [ObjectHandle] can tell.
+const CHUNKS: usize = (INDEX_BITS - CHUNK.trailing_zeros() + 1) as usize;
+
+/// Number of shards of the free slots of each type, must be a power of 2.
+const FREE_SHARDS: usize = 16;
+
+thread_local! {
+    /// Shard of the free slots preferred by the current thread.
+    static FREE_SHARD: Cell<usize> = Cell::new({
+        static NEXT: AtomicUsize = AtomicUsize::new(0);
+        NEXT.fetch_add(1, Ordering::Relaxed) & (FREE_SHARDS - 1)
+    });
+}
+
 /// Thread-safe collection of [Object]s.
+///
+/// Objects of each type are kept in a slab of their own, so that they are looked up without being
+/// boxed as `dyn Any`. An [ObjectHandle] tells the type, the slot and the generation of the slot,
+/// so that a slot reused by another object is never mistaken for the old one.
+///
+/// Looking up an object neither locks its slot nor counts a reference to it. It only reads the
+/// slot and checks its generation, while the current thread is pinned so that the object is not
+/// dropped meanwhile, see [reclamation].
+///
+/// Each slab grows as needed up to 2<sup>32</sup> objects alive at once, beyond which storing
+/// fails with [Exhausted].
+///
+/// Objects stored with [store_pointer](Pool::store_pointer) are not in any slab, their negative
+/// [ObjectHandle]s point to headers holding them directly.
 pub struct Pool {
-    pool: RwLock<HashMap<Handle, Arc<Mutex<dyn Any + Send>>>>,
-    counter: AtomicI32,
+    slabs: Vec<SyncOnceCell<Box<dyn ErasedSlab>>>,
+
+    /// Index in `slabs` for each type, only written when a type is first stored.
+    tags: RwLock<HashMap<TypeId, usize>>,
 }
 
 impl Pool {
-    /// Runs an action on a [Object].
-    pub fn peek<T: Any, R>(&self, handle: Handle, action: impl FnOnce(&mut T) -> R) -> R {
-        let pool_guard = self.pool.read().expect("Failed to read-lock the pool");
-        let obj_arc = pool_guard[&handle].clone();
-        drop(pool_guard);
+    /// Runs an action on an object stored with [store](Pool::store), or on an [Object] whose
+    /// [Lock] is a [Mutex].
+    ///
+    /// # Returns
+    ///
+    /// [None] if `handle` does not point to an alive object of type `T`.
+    pub fn peek<T: Any + Send, R>(
+        &self,
+        handle: ObjectHandle,
+        action: impl FnOnce(&mut T) -> R,
+    ) -> Option<R> {
+        self.with(handle, |obj: &Mutex<T>| obj.write(action)).flatten()
+    }
+
+    /// Runs an action with shared access to an [Object] stored with
+    /// [store_object](Pool::store_object), guarded by its [Lock].
+    ///
+    /// # Returns
+    ///
+    /// [None] if `handle` does not point to an alive object of type `T`, or if its [Lock] forbids
+    /// the access.
+    pub fn read<T: Object, R>(
+        &self,
+        handle: ObjectHandle,
+        action: impl FnOnce(&T) -> R,
+    ) -> Option<R> {
+        self.with(handle, |obj: &T::Lock| obj.read(action)).flatten()
+    }
+
+    /// Runs an action with exclusive access to an [Object], see [read](Pool::read).
+    pub fn write<T: Object, R>(
+        &self,
+        handle: ObjectHandle,
+        action: impl FnOnce(&mut T) -> R,
+    ) -> Option<R> {
+        self.with(handle, |obj: &T::Lock| obj.write(action)).flatten()
+    }
+
+    /// Runs an action on what is stored in a slot or behind a pointer, if it is of type `C`.
+    fn with<C: Any + Send + Sync, R>(
+        &self,
+        handle: ObjectHandle,
+        action: impl FnOnce(&C) -> R,
+    ) -> Option<R> {
+        if handle < 0 {
+            return HEADERS.with(handle, action);
+        }
+        let key = Key::decode(handle);
+        self.slab::<C>(key.tag)?.with(key, action)
+    }
+
+    /// Drops the object pointed by the [ObjectHandle].
+    ///
+    /// The object is unlinked right away, but its destructor runs later on a background thread,
+    /// see [reclamation]. Does nothing if it is already dropped.
+    pub fn drop(&self, handle: ObjectHandle) {
+        if handle < 0 {
+            HEADERS.release(handle);
+            return;
+        }
+        let key = Key::decode(handle);
+        if let Some(slab) = self.slabs.get(key.tag).and_then(SyncOnceCell::get) {
+            slab.remove(key)
+        }
+    }
 
-        let mut obj = obj_arc.lock().expect("Failed to lock the object");
-        if let Some(obj_concrete) = obj.downcast_mut::<T>() {
-            action(obj_concrete)
-        } else {
-            panic!("Incorrect data type pointed by this handle")
+    /// Drops many objects at once, see [drop](Pool::drop).
+    pub fn drop_all(&self, handles: &[ObjectHandle]) {
+        for handle in handles {
+            self.drop(*handle)
         }
     }
 
-    /// Drops the object pointed by the [Handle].
-    pub fn drop(&self, handle: Handle) {
-        self.pool
-            .write()
-            .expect("Failed to write-lock the pool!")
-            .remove(&handle);
+    /// Stores an object behind a [Mutex].
+    pub fn store<T: Any + Send>(&self, obj: T) -> Result<ObjectHandle, Exhausted> {
+        self.insert(Mutex::new(obj))
     }
 
-    /// Stores an object.
-    pub fn store<T: Any + Send>(&self, obj: T) -> Handle {
-        let mut pool_guard = self.pool.write().expect("Failed to write-lock the pool");
-        let handle = self.counter.fetch_add(1, Ordering::Relaxed);
-        pool_guard.insert(handle, Arc::new(Mutex::new(obj)));
-        handle
+    /// Stores an [Object] guarded by its own [Lock].
+    pub fn store_object<T: Object>(&self, obj: T) -> Result<ObjectHandle, Exhausted> {
+        self.insert(T::Lock::new(obj))
+    }
+
+    fn insert<C: Any + Send + Sync>(&self, obj: C) -> Result<ObjectHandle, Exhausted> {
+        let tag = self.tag::<C>();
+        let slab = self.slab::<C>(tag).expect("Slab not created for this type");
+        let (index, generation) = slab.insert(obj).ok_or(Exhausted)?;
+        let key = Key {
+            index,
+            tag,
+            generation,
+        };
+        Ok(key.encode())
+    }
+
+    /// Stores an object behind a pointer instead of in a slab.
+    ///
+    /// Looking it up skips the slab of its type, and only checks the generation of the header the
+    /// handle points to with a single atomic load. Headers are never freed, so a stale handle is
+    /// rejected instead of reaching freed memory, but a forged one is only rejected if it does not
+    /// look like the address of a header.
+    pub fn store_pointer<T: Any + Send>(&self, obj: T) -> ObjectHandle {
+        self.insert_pointer(Mutex::new(obj))
+    }
+
+    /// Stores an [Object] guarded by its own [Lock] behind a pointer, see
+    /// [store_pointer](Pool::store_pointer).
+    pub fn store_object_pointer<T: Object>(&self, obj: T) -> ObjectHandle {
+        self.insert_pointer(T::Lock::new(obj))
+    }
+
+    fn insert_pointer<C: Any + Send + Sync>(&self, obj: C) -> ObjectHandle {
+        HEADERS.insert(Box::new(obj))
     }
 
     /// Checks if the object pointed by `handle` is alive.
-    pub fn alive(&self, handle: Handle) -> bool {
-        self.pool
-            .read()
-            .expect("Failed to write-lock the pool")
-            .contains_key(&handle)
+    pub fn alive(&self, handle: ObjectHandle) -> bool {
+        if handle < 0 {
+            return HEADERS.alive(handle);
+        }
+        let key = Key::decode(handle);
+        self.slabs
+            .get(key.tag)
+            .and_then(SyncOnceCell::get)
+            .map_or(false, |slab| slab.alive(key))
+    }
+
+    /// Gets the tag of a type, creating a slab for it if this is the first time.
+    fn tag<T: Any + Send + Sync>(&self) -> usize {
+        let id = TypeId::of::<T>();
+        if let Some(tag) = self.tags.read().unwrap().get(&id) {
+            return *tag;
+        }
+        let mut tags = self.tags.write().unwrap();
+        let count = tags.len();
+        let tag = *tags.entry(id).or_insert(count);
+        assert!(tag < MAX_TYPES, "Too many types of objects");
+        self.slabs[tag].get_or_init(|| Box::new(Slab::<T>::default()));
+        tag
+    }
+
+    fn slab<T: Any + Send + Sync>(&self, tag: usize) -> Option<&Slab<T>> {
+        self.slabs
+            .get(tag)?
+            .get()?
+            .as_any()
+            .downcast_ref::<Slab<T>>()
     }
 }
 
+/// Error storing an object whose type already has as many objects alive as an [ObjectHandle] can
+/// tell apart.
+#[derive(Debug)]
+pub struct Exhausted;
+
+impl std::fmt::Display for Exhausted {
+    fn fmt(&self, f: &mut std::fmt::Formatter<'_>) -> std::fmt::Result {
+        write!(f, "Too many objects of the same type")
+    }
+}
+
+impl Error for Exhausted {}
+
 impl Default for Pool {
     fn default() -> Self {
         Self {
-            pool: HashMap::with_capacity(0).into(),
-            counter: 0.into(),
+            slabs: std::iter::repeat_with(Default::default)
+                .take(MAX_TYPES)
+                .collect(),
+            tags: Default::default(),
         }
     }
 }
+
+/// Bits of a pointer [ObjectHandle] for the address of its [Header].
+const ADDRESS_BITS: u32 = 48;
+
+/// Bits of a pointer [ObjectHandle] for the generation of its [Header].
+const HEADER_GENERATION_BITS: u32 = 63 - ADDRESS_BITS;
+
+/// Number of [Header]s allocated at once.
+const HEADER_CHUNK: usize = 1024;
+
+/// Headers of the objects stored with [store_pointer](Pool::store_pointer), shared by every [Pool].
+static HEADERS: SyncLazy<Headers> = SyncLazy::new(Default::default);
+
+/// What a pointer [ObjectHandle] points to, allocated a chunk at a time and never freed, so that
+/// even a stale handle points to a readable header.
+#[derive(Default)]
+#[repr(align(64))]
+struct Header {
+    /// Generation of the header shifted left by `1`, with the lowest bit set while an object is in
+    /// the header.
+    word: AtomicU64,
+
+    /// The object, only written while the header is free.
+    object: UnsafeCell<Option<Box<dyn Any + Send + Sync>>>,
+}
+
+// A thread only reads `object` after finding its generation alive in `word`, and the header is
+// only freed once no thread is pinned to an epoch it could have found it at.
+unsafe impl Sync for Header {}
+
+/// A [Header] whose object is dropped by the [Reclaimer], which frees the header as well.
+struct Vacated(&'static Header);
+
+impl Drop for Vacated {
+    fn drop(&mut self) {
+        let object = unsafe { (*self.0.object.get()).take() };
+        HEADERS.free(self.0);
+        drop(object)
+    }
+}
+
+#[derive(Default)]
+struct Headers {
+    /// Headers ready to be used, sharded by address.
+    free: [Mutex<Vec<&'static Header>>; FREE_SHARDS],
+}
+
+impl Headers {
+    fn insert(&self, obj: Box<dyn Any + Send + Sync>) -> ObjectHandle {
+        let header = self.allocate();
+        unsafe { *header.object.get() = Some(obj) };
+        let word = header.word.load(Ordering::Relaxed) | 1;
+        header.word.store(word, Ordering::Release);
+        let address = header as *const Header as u64;
+        debug_assert!(address < 1 << ADDRESS_BITS);
+        (address | (word >> 1) << ADDRESS_BITS) as ObjectHandle | ObjectHandle::MIN
+    }
+
+    /// Runs an action on the object of a header, lending it without locking or counting a
+    /// reference to it.
+    fn with<C: Any, R>(&self, handle: ObjectHandle, action: impl FnOnce(&C) -> R) -> Option<R> {
+        let (header, word) = Self::decode(handle)?;
+        crate::epoch::pin(|| {
+            if header.word.load(Ordering::Acquire) != word {
+                return None;
+            }
+            let object = unsafe { (*header.object.get()).as_deref()? };
+            Some(action(object.downcast_ref()?))
+        })
+    }
+
+    fn alive(&self, handle: ObjectHandle) -> bool {
+        Self::decode(handle).map_or(false, |(header, word)| {
+            header.word.load(Ordering::Acquire) == word
+        })
+    }
+
+    /// Drops the object, or does nothing if it is already dropped.
+    fn release(&self, handle: ObjectHandle) {
+        let (header, word) = match Self::decode(handle) {
+            Some(decoded) => decoded,
+            None => return,
+        };
+
+        // Only one releaser gets past this for each generation
+        let next = ((word >> 1) + 1) & ((1 << HEADER_GENERATION_BITS) - 1);
+        let released = header.word.compare_exchange(
+            word,
+            next << 1,
+            Ordering::AcqRel,
+            Ordering::Relaxed,
+        );
+        if released.is_err() {
+            return;
+        }
+        let object = unsafe { (*header.object.get()).as_deref() };
+        let size = object.map_or(0, std::mem::size_of_val);
+        RECLAIMER.push(Box::new(Vacated(header)), size)
+    }
+
+    /// Finds a free header, preferring one on the current thread's shard.
+    fn allocate(&self) -> &'static Header {
+        let preferred = FREE_SHARD.with(Cell::get);
+        let freed = (0..FREE_SHARDS)
+            .map(|offset| (preferred + offset) & (FREE_SHARDS - 1))
+            .find_map(|shard| self.free[shard].lock().unwrap().pop());
+        if let Some(header) = freed {
+            return header;
+        }
+
+        let chunk = Box::leak(
+            std::iter::repeat_with(Header::default)
+                .take(HEADER_CHUNK)
+                .collect::<Box<[_]>>(),
+        );
+        for header in &chunk[1..] {
+            self.free(header)
+        }
+        &chunk[0]
+    }
+
+    fn free(&self, header: &'static Header) {
+        let address = header as *const Header as usize;
+        let shard = (address / std::mem::size_of::<Header>()) & (FREE_SHARDS - 1);
+        self.free[shard].lock().unwrap().push(header)
+    }
+
+    /// Gets the header a handle points to, and the word it has while the object is alive.
+    ///
+    /// # Returns
+    ///
+    /// [None] if the handle cannot point to a header, which only rules out some forged handles.
+    fn decode(handle: ObjectHandle) -> Option<(&'static Header, u64)> {
+        let handle = handle as u64;
+        let address = (handle & ((1 << ADDRESS_BITS) - 1)) as usize;
+        if address == 0 || address % std::mem::align_of::<Header>() != 0 {
+            return None;
+        }
+        let generation = (handle >> ADDRESS_BITS) & ((1 << HEADER_GENERATION_BITS) - 1);
+        let header = unsafe { &*(address as *const Header) };
+        Some((header, generation << 1 | 1))
+    }
+}
+
+/// Parts of an [ObjectHandle].
+#[derive(Clone, Copy, Debug, PartialEq, Eq)]
+struct Key {
+    index: u32,
+    tag: usize,
+    generation: u32,
+}
+
+impl Key {
+    fn encode(self) -> ObjectHandle {
+        (self.index as i64)
+            | ((self.tag as i64) << INDEX_BITS)
+            | ((self.generation as i64) << (INDEX_BITS + TAG_BITS))
+    }
+
+    fn decode(handle: ObjectHandle) -> Self {
+        let handle = handle as u64;
+        Self {
+            index: handle as u32,
+            tag: ((handle >> INDEX_BITS) & (MAX_TYPES as u64 - 1)) as usize,
+            generation: ((handle >> (INDEX_BITS + TAG_BITS)) & ((1 << GENERATION_BITS) - 1)) as u32,
+        }
+    }
+}
+
+/// Operations on a [Slab] not depending on its type.
+trait ErasedSlab: Send + Sync {
+    fn remove(&self, key: Key);
+
+    fn alive(&self, key: Key) -> bool;
+
+    fn as_any(&self) -> &dyn Any;
+}
+
+/// Objects of the same type inside their locks, in slots allocated a chunk at a time and never
+/// moved.
+struct Slab<T> {
+    /// Chunk `n` has [CHUNK] << `n` slots, allocated when first needed.
+    chunks: Vec<SyncOnceCell<Box<[Slot<T>]>>>,
+
+    /// Indices of the slots freed and ready to be reused.
+    free: Vec<Mutex<Vec<u32>>>,
+
+    /// Number of slots ever used.
+    used: AtomicU64,
+}
+
+struct Slot<T> {
+    /// Generation of the object in the slot, or of the next one if the slot is free.
+    ///
+    /// Only changed by whoever removes the object, before the slot is free again.
+    generation: AtomicU32,
+
+    /// The object, or null if the slot is free.
+    value: AtomicPtr<T>,
+}
+
+impl<T> Default for Slot<T> {
+    fn default() -> Self {
+        Self {
+            generation: AtomicU32::new(1),
+            value: Default::default(),
+        }
+    }
+}
+
+impl<T> Default for Slab<T> {
+    fn default() -> Self {
+        Self {
+            chunks: std::iter::repeat_with(Default::default)
+                .take(CHUNKS)
+                .collect(),
+            free: std::iter::repeat_with(Default::default)
+                .take(FREE_SHARDS)
+                .collect(),
+            used: Default::default(),
+        }
+    }
+}
+
+impl<T> Drop for Slab<T> {
+    fn drop(&mut self) {
+        let chunks = self.chunks.iter_mut().filter_map(SyncOnceCell::get_mut);
+        for slot in chunks.flat_map(|chunk| chunk.iter_mut()) {
+            let value = *slot.value.get_mut();
+            if !value.is_null() {
+                drop(unsafe { Box::from_raw(value) })
+            }
+        }
+    }
+}
+
+impl<T: Any + Send + Sync> Slab<T> {
+    /// Stores an object and returns the index and the generation of its slot.
+    ///
+    /// # Returns
+    ///
+    /// [None] if every index is taken.
+    fn insert(&self, obj: T) -> Option<(u32, u32)> {
+        let index = self.allocate()?;
+        let slot = self.slot(index).expect("Slot not allocated");
+        slot.value.store(Box::into_raw(Box::new(obj)), Ordering::Release);
+        Some((index, slot.generation.load(Ordering::Relaxed)))
+    }
+
+    /// Runs an action on the object in a slot, lending it without locking the slot or counting a
+    /// reference to it.
+    fn with<R>(&self, key: Key, action: impl FnOnce(&T) -> R) -> Option<R> {
+        let slot = self.slot(key.index)?;
+        crate::epoch::pin(|| {
+            // A reused slot has its new generation before its new object
+            let value = slot.value.load(Ordering::Acquire);
+            if value.is_null() || slot.generation.load(Ordering::Acquire) != key.generation {
+                return None;
+            }
+            Some(action(unsafe { &*value }))
+        })
+    }
+
+    /// Finds a free slot, preferring one freed on the current thread's shard.
+    fn allocate(&self) -> Option<u32> {
+        let preferred = FREE_SHARD.with(Cell::get);
+        let freed = (0..FREE_SHARDS)
+            .map(|offset| (preferred + offset) & (FREE_SHARDS - 1))
+            .find_map(|shard| self.free[shard].lock().unwrap().pop());
+        if freed.is_some() {
+            return freed;
+        }
+
+        let index = self.used.fetch_add(1, Ordering::Relaxed);
+        if index > u32::MAX as u64 {
+            return None;
+        }
+        let (chunk, _) = Self::locate(index as u32);
+        self.chunks[chunk].get_or_init(|| {
+            std::iter::repeat_with(Default::default)
+                .take(CHUNK << chunk)
+                .collect()
+        });
+        Some(index as u32)
+    }
+
+    fn slot(&self, index: u32) -> Option<&Slot<T>> {
+        let (chunk, offset) = Self::locate(index);
+        self.chunks[chunk].get()?.get(offset)
+    }
+
+    /// Finds the chunk and the offset in it of the slot at `index`.
+    fn locate(index: u32) -> (usize, usize) {
+        let position = index as u64 + CHUNK as u64;
+        let magnitude = 63 - position.leading_zeros();
+        let chunk = magnitude - CHUNK.trailing_zeros();
+        let offset = position - (1 << magnitude);
+        (chunk as usize, offset as usize)
+    }
+}
+
+impl<T: Any + Send + Sync> ErasedSlab for Slab<T> {
+    fn remove(&self, key: Key) {
+        let slot = match self.slot(key.index) {
+            Some(slot) => slot,
+            None => return,
+        };
+
+        // Only one remover gets past this for each generation
+        let next = ((key.generation + 1) & ((1 << GENERATION_BITS) - 1)).max(1);
+        let generation = slot.generation.compare_exchange(
+            key.generation,
+            next,
+            Ordering::AcqRel,
+            Ordering::Relaxed,
+        );
+        if generation.is_err() {
+            return;
+        }
+        let removed = slot.value.swap(std::ptr::null_mut(), Ordering::AcqRel);
+        if removed.is_null() {
+            // Already free
+            return;
+        }
+
+        let shard = key.index as usize & (FREE_SHARDS - 1);
+        self.free[shard].lock().unwrap().push(key.index);
+        let removed = unsafe { Box::from_raw(removed) };
+        RECLAIMER.push(removed, std::mem::size_of::<T>())
+    }
+
+    fn alive(&self, key: Key) -> bool {
+        self.slot(key.index).map_or(false, |slot| {
+            !slot.value.load(Ordering::Acquire).is_null()
+                && slot.generation.load(Ordering::Acquire) == key.generation
+        })
+    }
+
+    fn as_any(&self) -> &dyn Any {
+        self
+    }
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+
+    #[test]
+    fn key() {
+        let key = Key {
+            index: u32::MAX,
+            tag: MAX_TYPES - 1,
+            generation: (1 << GENERATION_BITS) - 1,
+        };
+        assert!(key.encode() > 0);
+        assert_eq!(key, Key::decode(key.encode()));
+    }
+
+    #[test]
+    fn reuse() {
+        let pool = Pool::default();
+        let first = pool.store(1i32).unwrap();
+        let other = pool.store(String::from("love")).unwrap();
+        assert_eq!(Some(1), pool.peek(first, |obj: &mut i32| *obj));
+        assert_eq!(None, pool.peek(first, |obj: &mut String| obj.len()));
+        assert_eq!(Some(4), pool.peek(other, |obj: &mut String| obj.len()));
+
+        pool.drop(first);
+        assert!(!pool.alive(first));
+        assert_eq!(None, pool.peek(first, |obj: &mut i32| *obj));
+
+        // Same slot, different generation
+        let second = pool.store(2i32).unwrap();
+        assert_eq!(Key::decode(first).index, Key::decode(second).index);
+        assert_ne!(first, second);
+        assert!(!pool.alive(first));
+        assert!(pool.alive(second));
+        pool.drop(first);
+        assert_eq!(Some(2), pool.peek(second, |obj: &mut i32| *obj));
+    }
+
+    #[test]
+    fn locate() {
+        assert_eq!((0, 0), Slab::<i32>::locate(0));
+        assert_eq!((0, CHUNK - 1), Slab::<i32>::locate(CHUNK as u32 - 1));
+        assert_eq!((1, 0), Slab::<i32>::locate(CHUNK as u32));
+        assert_eq!((1, 2 * CHUNK - 1), Slab::<i32>::locate(3 * CHUNK as u32 - 1));
+        assert_eq!((2, 0), Slab::<i32>::locate(3 * CHUNK as u32));
+        let (chunk, offset) = Slab::<i32>::locate(u32::MAX);
+        assert_eq!(CHUNKS - 1, chunk);
+        assert!(offset < CHUNK << chunk);
+    }
+
+    #[test]
+    fn exhausted() {
+        let pool = Pool::default();
+        let handle = pool.store(1i32).unwrap();
+        let slab = pool.slab::<Mutex<i32>>(Key::decode(handle).tag).unwrap();
+        slab.used.store(1 << INDEX_BITS, Ordering::Relaxed);
+        assert!(pool.store(2i32).is_err());
+
+        // Freed slots are still reused
+        pool.drop(handle);
+        assert!(pool.store(3i32).is_ok());
+    }
+
+    #[test]
+    fn pointer() {
+        let pool = Pool::default();
+        let handle = pool.store_pointer(String::from("love"));
+        assert!(handle < 0);
+        assert!(pool.alive(handle));
+        assert_eq!(Some(4), pool.peek(handle, |obj: &mut String| obj.len()));
+        assert_eq!(None, pool.peek(handle, |obj: &mut i32| *obj));
+
+        pool.drop(handle);
+        pool.drop(handle);
+        assert!(!pool.alive(handle));
+        assert_eq!(None, pool.peek(handle, |obj: &mut String| obj.len()));
+
+        // The header stays, with the next generation
+        let (header, word) = Headers::decode(handle).unwrap();
+        assert_eq!((word >> 1) + 1, header.word.load(Ordering::Relaxed) >> 1);
+    }
+
+    #[test]
+    fn pointer_forged() {
+        let pool = Pool::default();
+        let handle = pool.store_pointer(1);
+        let stale = handle + (1 << ADDRESS_BITS);
+        for &forged in &[ObjectHandle::MIN, -1, handle + 8, handle - 8, stale] {
+            assert!(!pool.alive(forged));
+            assert_eq!(None, pool.peek(forged, |obj: &mut i32| *obj));
+            pool.drop(forged);
+        }
+        assert_eq!(Some(1), pool.peek(handle, |obj: &mut i32| *obj));
+        pool.drop(handle);
+    }
+
+    #[test]
+    fn lock() {
+        struct Table(i32);
+        impl Object for Table {
+            type Lock = RwLock<Self>;
+        }
+        struct Counter(Cell<i32>);
+        impl Object for Counter {
+            type Lock = Confined<Self>;
+        }
+        struct Constant(i32);
+        impl Object for Constant {
+            type Lock = Unlocked<Self>;
+        }
+
+        let pool = Arc::new(Pool::default());
+        let table = pool.store_object(Table(1)).unwrap();
+        assert_eq!(Some(()), pool.write(table, |obj: &mut Table| obj.0 = 2));
+        assert_eq!(Some(2), pool.read(table, |obj: &Table| obj.0));
+        assert_eq!(None, pool.peek(table, |obj: &mut Table| obj.0));
+
+        let constant = pool.store_object_pointer(Constant(3));
+        assert_eq!(Some(3), pool.read(constant, |obj: &Constant| obj.0));
+        assert_eq!(None, pool.write(constant, |obj: &mut Constant| obj.0));
+
+        let counter = pool.store_object(Counter(Cell::new(4))).unwrap();
+        assert_eq!(Some(4), pool.read(counter, |obj: &Counter| obj.0.get()));
+        let elsewhere = {
+            let pool = pool.clone();
+            std::thread::spawn(move || pool.read(counter, |obj: &Counter| obj.0.get()))
+        };
+        assert_eq!(None, elsewhere.join().unwrap());
+    }
+
+    #[test]
+    fn reclaim() {
+        struct Slow(std::sync::mpsc::Sender<String>);
+        impl Drop for Slow {
+            fn drop(&mut self) {
+                let name = std::thread::current().name().unwrap_or_default().to_string();
+                self.0.send(name).unwrap()
+            }
+        }
+
+        let pool = Pool::default();
+        let (sender, receiver) = std::sync::mpsc::channel();
+        let handle = pool.store(Slow(sender)).unwrap();
+        pool.drop(handle);
+        assert_eq!("riko-destructor", receiver.recv().unwrap());
+    }
+}
@@ -51,6 +51,25 @@ impl<T> From<T> for Returned<T> {
     }
 }
 
+/// Result of a function with its error kept as it is.
+///
+/// Implemented for both `Result<T, E>` and `Result<Option<T>, E>`.
+pub trait Outcome<T, E> {
+    fn into_outcome(self) -> Result<Option<T>, E>;
+}
+
+impl<T, E> Outcome<T, E> for Result<T, E> {
+    fn into_outcome(self) -> Result<Option<T>, E> {
+        self.map(Some)
+    }
+}
+
+impl<T, E> Outcome<T, E> for Result<Option<T>, E> {
+    fn into_outcome(self) -> Result<Option<T>, E> {
+        self
+    }
+}
+
 #[derive(Serialize, Deserialize)]
 pub struct Error {
     pub debug: String,
@@ -0,0 +1,222 @@
+//! Handles functions returning a [Stream].
+//!
+//! A [Stream] is driven by the [Pool](crate::future::Pool) like a future, but only while the
+//! target side has demanded more items. Items that are ready at the same time are delivered
+//! together in one batch.
+
+use crate::returned::Returned;
+use futures_util::future::Either;
+use futures_util::task::AtomicWaker;
+use futures_util::FutureExt;
+use futures_util::Stream;
+use futures_util::StreamExt;
+use std::sync::atomic::AtomicU64;
+use std::sync::atomic::Ordering;
+use std::task::Poll;
+
+/// Maximum number of items in a batch.
+pub const MAX_BATCH: usize = 256;
+
+/// Number of items demanded by the target side but not yet delivered.
+#[derive(Default)]
+pub struct Demand {
+    pending: AtomicU64,
+    waker: AtomicWaker,
+}
+
+impl Demand {
+    /// Demands `count` more items, [u64::MAX] in total meaning unbounded.
+    pub fn request(&self, count: u64) {
+        let _ = self
+            .pending
+            .fetch_update(Ordering::AcqRel, Ordering::Acquire, |pending| {
+                Some(pending.saturating_add(count))
+            });
+        self.waker.wake();
+    }
+
+    /// Waits until some items are demanded, and returns how many.
+    async fn ready(&self) -> u64 {
+        futures_util::future::poll_fn(|context| {
+            self.waker.register(context.waker());
+            match self.pending.load(Ordering::Acquire) {
+                0 => Poll::Pending,
+                pending => Poll::Ready(pending),
+            }
+        })
+        .await
+    }
+
+    fn consume(&self, count: u64) {
+        let _ = self
+            .pending
+            .fetch_update(Ordering::AcqRel, Ordering::Acquire, |pending| {
+                if pending == u64::MAX {
+                    None
+                } else {
+                    Some(pending.saturating_sub(count))
+                }
+            });
+    }
+}
+
+/// Polls `stream` as long as items are demanded, and hands them to `notifier` in batches.
+///
+/// The second argument of `notifier` tells if the batch is the last one, either because the
+/// stream has ended or because an item is an error. Once some items were demanded, the end of the
+/// stream is delivered as soon as it is known, even if no more items are demanded.
+pub(crate) async fn drive<S, N, R, T>(stream: S, demand: &Demand, mut notifier: N)
+where
+    S: Stream<Item = R>,
+    N: FnMut(Vec<Returned<T>>, bool),
+    R: Into<Returned<T>>,
+{
+    futures_util::pin_mut!(stream);
+
+    // An item polled before it is demanded
+    let mut next = None;
+
+    let mut started = false;
+    loop {
+        let ready = demand.ready();
+        futures_util::pin_mut!(ready);
+        let limit = if !started || next.is_some() {
+            ready.await
+        } else {
+            // Keeps polling for one more item so that the end of the stream is not held back
+            match futures_util::future::select(ready, stream.next()).await {
+                Either::Left((limit, _)) => limit,
+                Either::Right((Some(item), ready)) => {
+                    next = Some(item);
+                    ready.await
+                }
+                Either::Right((None, _)) => {
+                    notifier(Vec::new(), true);
+                    return;
+                }
+            }
+        };
+        let limit = limit.min(MAX_BATCH as u64) as usize;
+        started = true;
+
+        // Waits for the first item, then takes whatever else is ready. `polled` is `None` if the
+        // stream is not ready, or `Some(None)` if it has ended.
+        let mut batch = Vec::new();
+        let mut ended = false;
+        let mut polled = Some(match next.take() {
+            Some(item) => Some(item),
+            None => stream.next().await,
+        });
+        while let Some(item) = polled {
+            match item {
+                None => {
+                    ended = true;
+                    break;
+                }
+                Some(item) if batch.len() < limit => {
+                    let item: Returned<T> = item.into();
+                    ended = item.error.is_some();
+                    batch.push(item);
+                    if ended {
+                        break;
+                    }
+                }
+                Some(item) => {
+                    next = Some(item);
+                    break;
+                }
+            }
+            polled = stream.next().now_or_never();
+        }
+
+        demand.consume(batch.len() as u64);
+        notifier(batch, ended);
+        if ended {
+            return;
+        }
+    }
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+    use futures_executor::LocalPool;
+    use futures_util::future::RemoteHandle;
+    use futures_util::stream;
+    use futures_util::task::LocalSpawnExt;
+    use std::sync::Arc;
+    use std::sync::Mutex;
+
+    type Batches = Arc<Mutex<Vec<(Vec<i32>, bool)>>>;
+
+    fn spawn(
+        pool: &LocalPool,
+        stream: impl Stream<Item = i32> + 'static,
+    ) -> (Arc<Demand>, Batches, RemoteHandle<()>) {
+        let demand = Arc::new(Demand::default());
+        let batches = Batches::default();
+        let task = {
+            let demand = demand.clone();
+            let batches = batches.clone();
+            async move {
+                super::drive(stream, &demand, |batch: Vec<Returned<i32>>, ended| {
+                    let values = batch.into_iter().map(|item| item.value.unwrap());
+                    batches.lock().unwrap().push((values.collect::<Vec<_>>(), ended))
+                })
+                .await
+            }
+        };
+        let (task, handle) = task.remote_handle();
+        pool.spawner().spawn_local(task).unwrap();
+        (demand, batches, handle)
+    }
+
+    #[test]
+    fn drive() {
+        let mut pool = LocalPool::new();
+        let (demand, batches, handle) = spawn(&pool, stream::iter(1..5));
+
+        pool.run_until_stalled();
+        assert!(batches.lock().unwrap().is_empty());
+
+        demand.request(2);
+        pool.run_until_stalled();
+        assert_eq!(vec![(vec![1, 2], false)], *batches.lock().unwrap());
+
+        demand.request(u64::MAX);
+        pool.run_until(handle);
+        assert_eq!(
+            vec![(vec![1, 2], false), (vec![3, 4], true)],
+            *batches.lock().unwrap()
+        );
+    }
+
+    #[test]
+    fn drive_exact_demand() {
+        let mut pool = LocalPool::new();
+        let (demand, batches, handle) = spawn(&pool, stream::iter(0..5));
+
+        demand.request(5);
+        pool.run_until(handle);
+        assert_eq!(vec![(vec![0, 1, 2, 3, 4], true)], *batches.lock().unwrap());
+    }
+
+    #[test]
+    fn drive_end_without_demand() {
+        let (end, abort) = futures_util::future::abortable(futures_util::future::pending::<()>());
+        let end = stream::once(end).filter_map(|_| async { None });
+        let mut pool = LocalPool::new();
+        let (demand, batches, handle) = spawn(&pool, stream::iter(0..2).chain(end));
+
+        demand.request(2);
+        pool.run_until_stalled();
+        assert_eq!(vec![(vec![0, 1], false)], *batches.lock().unwrap());
+
+        abort.abort();
+        pool.run_until(handle);
+        assert_eq!(
+            vec![(vec![0, 1], false), (vec![], true)],
+            *batches.lock().unwrap()
+        );
+    }
+}
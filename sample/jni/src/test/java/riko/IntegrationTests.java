@@ -6,21 +6,30 @@ import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 import org.bson.BsonBinary;
-import org.bson.BsonBoolean;
 import org.bson.BsonDocument;
 import org.bson.BsonInt32;
 import org.bson.BsonString;
 import org.bson.BsonValue;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
 
 class IntegrationTests {
   static {
     final String library =
         Paths.get("..", "..", "target", "debug", "libriko_sample.so").toAbsolutePath().toString();
     System.load(library);
+
+    // Before any module initializes the runtime with the default config
+    Initializer.initialize(new ExecutorConfig(ExecutorBackend.FUTURES, 0, 0, "riko", 0, 1));
   }
 
   @Test
@@ -30,10 +39,12 @@ class IntegrationTests {
 
   @Test
   void i32() {
-    Assertions.assertEquals(
-        2,
-        riko_sample.Module._i32(new BsonInt32(1), new BsonInt32(1)).asInt32().intValue()
-    );
+    Assertions.assertEquals(2, riko_sample.Module._i32(1, 1));
+  }
+
+  @Test
+  void f64() {
+    Assertions.assertEquals(0.75, riko_sample.Module._f64(1.5, 0.5));
   }
 
   @Test
@@ -43,18 +54,37 @@ class IntegrationTests {
 
   @Test
   void result_option() {
-    Assertions.assertEquals(
-        2,
-        riko_sample.Module.result_option(new BsonInt32(1), new BsonInt32(1)).asInt32().intValue()
-    );
+    Assertions.assertEquals(2, (int) riko_sample.Module.result_option(1, 1));
     Assertions.assertThrows(
         ReturnedException.class, () -> riko_sample.Module.result_option(null, null));
-    Assertions.assertTrue(riko_sample.Module.result_option(null, new BsonInt32(1)).isNull());
+    Assertions.assertNull(riko_sample.Module.result_option(null, 1));
+  }
+
+  @Test
+  void nativeException() {
+    final riko_sample.Module.FmtErrorException error =
+        Assertions.assertThrows(
+            riko_sample.Module.FmtErrorException.class,
+            () -> riko_sample.Module.result_option(null, null));
+    assertEquals(riko_sample.Module.FmtErrorException.CODE, error.getCode());
+    assertEquals("Error", error.getDebug());
+  }
+
+  @Test
+  void tryVariant() {
+    final Attempt success = riko_sample.Module.tryResult_option(1, 1);
+    assertTrue(success.isOk());
+    assertEquals(2, success.getValue().asInt32().intValue());
+
+    final Attempt failure = riko_sample.Module.tryResult_option(null, null);
+    assertFalse(failure.isOk());
+    assertEquals(riko_sample.Module.FmtErrorException.CODE, failure.getCode());
+    assertTrue(failure.getError() instanceof riko_sample.Module.FmtErrorException);
   }
 
   @Test
   void marshal() {
-    Assertions.assertEquals(-1, riko_sample.Module.marshal(new BsonInt32(1)).asInt32().intValue());
+    Assertions.assertEquals(-1, riko_sample.Module.marshal(1));
   }
 
   @Test
@@ -68,6 +98,17 @@ class IntegrationTests {
     );
   }
 
+  @Test
+  void stringOverflowingDirectBuffer() {
+    final String love = String.join("", Collections.nCopies(1 << 16, "love"));
+    final String you = String.join("", Collections.nCopies(1 << 16, "you"));
+    Assertions.assertEquals(
+        love + you,
+        riko_sample.Module.string(new BsonString(love), new BsonString(you))
+            .asString()
+            .getValue());
+  }
+
   @Test
   void bytes() {
     byte[] a = {1, 2, 3};
@@ -81,10 +122,7 @@ class IntegrationTests {
 
   @Test
   void bool() {
-    assertFalse(riko_sample.Module._bool(
-        new BsonBoolean(false),
-        new BsonBoolean(true)
-    ).asBoolean().getValue());
+    assertFalse(riko_sample.Module._bool(false, true));
   }
 
   @Test
@@ -103,15 +141,90 @@ class IntegrationTests {
     assertFalse(object.alive());
   }
 
+  @Test
+  void objectCloseAll() {
+    final List<riko.Object> objects =
+        Arrays.asList(
+            riko_sample.object.Module.create_reactor(),
+            riko_sample.object.Module.create_reactor());
+    final long[] handles = objects.stream().mapToLong(object -> object.handle).toArray();
+    for (final long handle : handles) {
+      assertTrue(riko.Object.alive(handle));
+    }
+    objects.get(0).close();
+    riko.Object.closeAll(objects);
+    for (final riko.Object object : objects) {
+      assertFalse(object.alive());
+    }
+    for (final long handle : handles) {
+      assertFalse(riko.Object.alive(handle));
+    }
+  }
+
   @Test
   void asyncAwait() {
     assertEquals("love", riko_sample.Module.future().get().asString().getValue());
   }
 
+  @Test
+  void asyncCompletionQueue() throws Exception {
+    final List<Future> futures = new ArrayList<>();
+    for (int i = 0; i < 100; ++i) {
+      futures.add(riko_sample.Module.future());
+    }
+    for (final Future future : futures) {
+      assertEquals("love", future.get().asString().getValue());
+    }
+  }
+
   @Test
   void asyncCancel() {
     final Future future = riko_sample.Module.future_slow();
     future.cancel(true);
     assertThrows(CancellationException.class, future::get);
   }
+
+  @Test
+  void blocking() {
+    final BsonString a = new BsonString("love");
+    assertEquals("lovelove", riko_sample.Module.blocking(a).get().asString().getValue());
+  }
+
+  @Test
+  void stream() throws Exception {
+    final List<Integer> items = new ArrayList<>();
+    final CompletableFuture<List<Integer>> done = new CompletableFuture<>();
+    riko_sample
+        .Module
+        .stream(5)
+        .subscribe(
+            new Subscriber<BsonValue>() {
+              private Subscription subscription;
+
+              @Override
+              public void onSubscribe(final Subscription s) {
+                subscription = s;
+                s.request(2);
+              }
+
+              @Override
+              public void onNext(final BsonValue item) {
+                items.add(item.asInt32().intValue());
+                if (items.size() % 2 == 0) {
+                  subscription.request(2);
+                }
+              }
+
+              @Override
+              public void onError(final Throwable e) {
+                done.completeExceptionally(e);
+              }
+
+              @Override
+              public void onComplete() {
+                done.complete(items);
+              }
+            });
+    assertEquals(Arrays.asList(0, 1, 2, 3, 4), done.get());
+  }
 }
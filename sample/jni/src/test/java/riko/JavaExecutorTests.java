@@ -0,0 +1,73 @@
+package riko;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Paths;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.bson.BsonString;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class JavaExecutorTests {
+
+  private static final ExecutorService POOL = Executors.newCachedThreadPool();
+
+  private static final AtomicInteger EXECUTED = new AtomicInteger();
+
+  private static final AtomicBoolean REJECTING = new AtomicBoolean();
+
+  static {
+    final String library =
+        Paths.get("..", "..", "target", "debug", "libriko_sample.so").toAbsolutePath().toString();
+    System.load(library);
+
+    Initializer.initialize(
+        new ExecutorConfig(
+            ExecutorBackend.JAVA,
+            0,
+            0,
+            "riko",
+            0,
+            0,
+            task -> {
+              if (REJECTING.get()) {
+                throw new RejectedExecutionException();
+              }
+              EXECUTED.incrementAndGet();
+              POOL.execute(task);
+            }));
+  }
+
+  @AfterEach
+  void accept() {
+    REJECTING.set(false);
+  }
+
+  @Test
+  void asyncAwait() throws Exception {
+    assertEquals("love", riko_sample.Module.future().get().asString().getValue());
+    assertNotEquals(0, EXECUTED.get());
+  }
+
+  @Test
+  void blocking() throws Exception {
+    final BsonString a = new BsonString("love");
+    assertEquals("lovelove", riko_sample.Module.blocking(a).get().asString().getValue());
+  }
+
+  @Test
+  void rejected() {
+    REJECTING.set(true);
+    final Future future = riko_sample.Module.future();
+    final ExecutionException e = assertThrows(ExecutionException.class, future::get);
+    assertTrue(e.getCause() instanceof ReturnedException);
+  }
+}
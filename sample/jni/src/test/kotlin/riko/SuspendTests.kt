@@ -0,0 +1,30 @@
+package riko
+
+import java.nio.file.Paths
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withTimeoutOrNull
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertNull
+import org.junit.jupiter.api.Test
+
+class SuspendTests {
+
+  companion object {
+    init {
+      val library = Paths.get("..", "..", "target", "debug", "libriko_sample.so").toAbsolutePath()
+      System.load(library.toString())
+    }
+  }
+
+  @Test
+  fun future() = runBlocking { assertEquals("love", riko_sample.future().asString().value) }
+
+  @Test
+  fun blocking() = runBlocking {
+    val a = org.bson.BsonString("love")
+    assertEquals("lovelove", riko_sample.blocking(a).asString().value)
+  }
+
+  @Test
+  fun cancel() = runBlocking { assertNull(withTimeoutOrNull(100) { riko_sample.future_slow() }) }
+}
@@ -8,6 +8,7 @@ mod object;
 mod structs;
 
 use futures_channel::oneshot::Canceled;
+use futures_util::Stream;
 use serde_bytes::ByteBuf;
 use std::time::Duration;
 
@@ -19,6 +20,11 @@ fn _i32(a: i32, b: i32) -> i32 {
     a + b
 }
 
+#[riko::fun]
+fn _f64(a: f64, b: f64) -> f64 {
+    a * b
+}
+
 #[riko::fun(name = "rename")]
 fn rename_ffi() {}
 
@@ -68,3 +74,13 @@ async fn future() -> Result<String, Canceled> {
 async fn future_slow() {
     futures_timer::Delay::new(Duration::from_secs(10)).await
 }
+
+#[riko::fun(blocking)]
+fn blocking(a: String) -> String {
+    a.repeat(2)
+}
+
+#[riko::fun]
+fn stream(count: i32) -> impl Stream<Item = i32> + Send {
+    futures_util::stream::iter(0..count)
+}
@@ -1,9 +1,6 @@
-use riko_runtime::object::Object;
-
+#[riko::object(lock = "rw")]
 pub struct NuclearReactor;
 
-impl Object for NuclearReactor {}
-
 #[riko::fun(marshal = "Object")]
 pub fn create_reactor() -> crate::object::NuclearReactor {
     NuclearReactor